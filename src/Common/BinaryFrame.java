@@ -0,0 +1,303 @@
+package Common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Protocollo binario, alternativo a quello testuale e negoziato all'inizio della connessione:
+ * il client invia la riga "BINARY" e, se riceve "BINARY_OK", da lì in poi usa solo frame binari.
+ *
+ * Formato di un frame (varint = intero senza segno a 7 bit per byte, come in protobuf):
+ *   <varint lunghezza del resto del frame>
+ *   <1 byte opcode> <varint ID richiesta> <varint numero di campi>
+ *   per ogni campo: <varint lunghezza in byte> <byte UTF-8>
+ * L'opcode identifica il comando o la risposta (vedi NAMES); i campi sono gli argomenti,
+ * che possono contenere spazi. L'opcode 0 indica un messaggio senza opcode: il nome è il primo campo.
+ * La risposta a un frame ha lo stesso ID richiesta, quindi più richieste possono essere in corso insieme.
+ */
+public class BinaryFrame {
+
+    // Dimensione massima di un frame: oltre, la connessione viene considerata corrotta
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    // Nomi dei messaggi indicizzati per opcode (posizione 0 riservata ai messaggi senza opcode).
+    // Nuovi messaggi vanno aggiunti in fondo per non cambiare gli opcode esistenti.
+    private static final String[] NAMES = {
+        null,
+        Protocol.REGISTER, Protocol.UPDATE, Protocol.LIST_DATA_REMOTE, Protocol.GET_PEERS_FOR_RESOURCE,
+        Protocol.DOWNLOAD_FAIL, Protocol.DISCONNECTED, Protocol.DOWNLOAD_LOG, Protocol.LOG_OK,
+        Protocol.ERROR, Protocol.REGISTERED, Protocol.UPDATED, Protocol.DISCONNECTED_OK,
+        Protocol.LIST_DATA_RESPONSE, Protocol.PEER_FOR_RESOURCE, Protocol.RESOURCE_NOT_FOUND, Protocol.DOWNLOAD_PERMITTED,
+        Protocol.DOWNLOAD_REQUEST, Protocol.DOWNLOAD_DATA, Protocol.DOWNLOAD_DENIED, Protocol.DOWNLOAD_RANGE,
+        Protocol.RANGE_DATA, Protocol.UPDATE_ADD, Protocol.UPDATE_REMOVE, Protocol.VERSION_MISMATCH,
+        Protocol.LIST_DATA_PAGE, Protocol.BATCH, Protocol.BATCH_RESPONSE, Protocol.GET_PEERS_FOR_RESOURCES,
+    };
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+    static {
+        for (int i = 1; i < NAMES.length; i++) {
+            OPCODES.put(NAMES[i], i);
+        }
+    }
+
+    private final int requestId;
+    private final String[] fields;
+
+    /**
+     * fields contiene il nome del comando o della risposta seguito dagli argomenti.
+     */
+    public BinaryFrame(int requestId, String[] fields) {
+        this.requestId = requestId;
+        this.fields = fields;
+    }
+
+    /** ritorna l'ID della richiesta a cui il frame appartiene */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /** ritorna il nome del comando seguito dagli argomenti */
+    public String[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Estrae un frame completo dal buffer (in modalità lettura) a partire dalla sua posizione.
+     * Se i byte del frame non sono ancora arrivati tutti ritorna null e lascia il buffer invariato.
+     */
+    public static BinaryFrame poll(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.position(start);
+                return null;
+            }
+            byte b = buffer.get();
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 28) {
+                throw new IOException("Lunghezza del frame non valida");
+            }
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Frame troppo grande: " + length + " byte");
+        }
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+        int end = buffer.position() + length;
+        ByteBuffer payload = buffer.slice(buffer.position(), length);
+        buffer.position(end);
+        return decode(payload);
+    }
+
+    // Decodifica opcode, ID richiesta e campi dal contenuto di un frame
+    private static BinaryFrame decode(ByteBuffer payload) throws IOException {
+        try {
+            int opcode = payload.get() & 0xff;
+            int requestId = readVarint(payload);
+            int count = readVarint(payload);
+            // ogni campo occupa almeno un byte: un conteggio più grande del frame è un frame corrotto
+            if (count < 0 || count > payload.remaining() + 1) {
+                throw new IOException("Numero di campi non valido: " + count);
+            }
+            String name = null;
+            if (opcode != 0) {
+                if (opcode >= NAMES.length) {
+                    throw new IOException("Opcode sconosciuto: " + opcode);
+                }
+                name = NAMES[opcode];
+            }
+            String[] fields = new String[name == null ? count : count + 1];
+            int i = 0;
+            if (name != null) {
+                fields[i++] = name;
+            }
+            for (int f = 0; f < count; f++) {
+                int len = readVarint(payload);
+                if (len < 0 || len > payload.remaining()) {
+                    throw new IOException("Campo oltre la fine del frame");
+                }
+                fields[i++] = decodeUtf8(payload, len);
+            }
+            if (fields.length == 0) {
+                throw new IOException("Frame senza nome del messaggio");
+            }
+            return new BinaryFrame(requestId, fields);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Frame troncato");
+        }
+    }
+
+    private static String decodeUtf8(ByteBuffer buffer, int len) {
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[len];
+            buffer.get(buffer.position(), bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + len);
+        return s;
+    }
+
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint non valido");
+    }
+
+    /**
+     * Legge i frame da uno stream bloccante usando sempre lo stesso buffer.
+     */
+    public static class Reader {
+        private final InputStream in;
+        private byte[] buffer = new byte[8 * 1024];
+
+        public Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /** ritorna il prossimo frame, oppure null se lo stream è finito tra un frame e l'altro */
+        public BinaryFrame next() throws IOException {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b == -1) {
+                    if (shift == 0) {
+                        return null;
+                    }
+                    throw new EOFException("Frame troncato");
+                }
+                length |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                if (shift >= 28) {
+                    throw new IOException("Lunghezza del frame non valida");
+                }
+            }
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Frame troppo grande: " + length + " byte");
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            int read = 0;
+            while (read < length) {
+                int n = in.read(buffer, read, length - read);
+                if (n == -1) {
+                    throw new EOFException("Frame troncato");
+                }
+                read += n;
+            }
+            return decode(ByteBuffer.wrap(buffer, 0, length).slice());
+        }
+    }
+
+    /**
+     * Compone frame in un buffer riutilizzato. Non è thread-safe: ogni connessione ha il suo,
+     * usato sotto il lock di scrittura.
+     */
+    public static class Writer {
+        // spazio riservato davanti al contenuto per la lunghezza (al più 5 byte di varint)
+        private static final int HEADER = 5;
+        private byte[] buffer = new byte[8 * 1024];
+        private int position;
+
+        /**
+         * Codifica il frame e ritorna un ByteBuffer sul buffer interno, valido fino alla prossima chiamata.
+         * Il primo campo è il nome del messaggio, gli altri gli argomenti.
+         */
+        public ByteBuffer encode(int requestId, List<String> fields) {
+            position = HEADER;
+            String name = fields.get(0);
+            Integer opcode = OPCODES.get(name);
+            ensure(1);
+            buffer[position++] = (byte) (opcode == null ? 0 : opcode);
+            writeVarint(requestId);
+            int first = opcode == null ? 0 : 1;
+            writeVarint(fields.size() - first);
+            for (int i = first; i < fields.size(); i++) {
+                writeString(fields.get(i));
+            }
+            // scrive la lunghezza subito prima del contenuto, senza spostarlo
+            int length = position - HEADER;
+            int start = HEADER - varintSize(length);
+            int p = start;
+            int value = length;
+            while ((value & ~0x7f) != 0) {
+                buffer[p++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[p] = (byte) value;
+            return ByteBuffer.wrap(buffer, start, position - start);
+        }
+
+        private void writeString(String s) {
+            // i caratteri ASCII, i più comuni, si copiano senza passare da un array intermedio
+            int len = s.length();
+            boolean ascii = true;
+            for (int i = 0; i < len && ascii; i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarint(len);
+                ensure(len);
+                for (int i = 0; i < len; i++) {
+                    buffer[position++] = (byte) s.charAt(i);
+                }
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buffer, position, bytes.length);
+                position += bytes.length;
+            }
+        }
+
+        private void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                byte[] bigger = new byte[Math.max(buffer.length * 2, position + bytes)];
+                System.arraycopy(buffer, 0, bigger, 0, position);
+                buffer = bigger;
+            }
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value & ~0x7f) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+}
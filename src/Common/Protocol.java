@@ -10,28 +10,44 @@ public class Protocol {
 
     // Da Peer a Master
     public static final String REGISTER = "REGISTER"; // Peer si registra al Master
-    public static final String UPDATE = "UPDATE"; // Aggiornamento risorse disponibili
-    public static final String LIST_DATA_REMOTE = "LIST_DATA_REMOTE"; // Richiesta lista risorse remote
+    public static final String UPDATE = "UPDATE"; // Aggiornamento risorse disponibili (elenco completo)
+    public static final String UPDATE_ADD = "UPDATE_ADD"; // UPDATE_ADD <peerId> <versione> <n> <ris1> ... <risN>: risorse aggiunte
+    public static final String UPDATE_REMOVE = "UPDATE_REMOVE"; // UPDATE_REMOVE <peerId> <versione> <n> <ris1> ... <risN>: risorse rimosse
+    public static final String LIST_DATA_REMOTE = "LIST_DATA_REMOTE"; // Richiesta lista risorse remote; a pagine: LIST_DATA_REMOTE <cursor|-> <limit> [prefisso|glob]
     public static final String GET_PEERS_FOR_RESOURCE = "GET_PEERS_FOR_RESOURCE"; // Richiesta lista peer per una risorsa specifica
+    public static final String GET_PEERS_FOR_RESOURCES = "GET_PEERS_FOR_RESOURCES"; // GET_PEERS_FOR_RESOURCES <ALL|ANY> <n> <ris1> ... <risN>: peer con tutte / almeno una delle risorse
+    public static final String MATCH_ALL = "ALL";
+    public static final String MATCH_ANY = "ANY";
     public static final String DOWNLOAD_FAIL = "DOWNLOAD_FAIL"; // Download fallito notificato
     public static final String DISCONNECTED = "DISCONNECTED"; // Peer si disconnette dal Master
     public static final String DOWNLOAD_LOG = "DOWNLOAD_LOG"; // Invio log download al Master
     public static final String LOG_OK = "LOG_OK"; // Risposta alla registrazione log
+    public static final String BATCH = "BATCH"; // BATCH <n> seguito da n righe di comandi, eseguiti in ordine
+    public static final String BINARY = "BINARY"; // Richiesta di passare al protocollo binario (vedi BinaryFrame), anche verso un peer
+    public static final String REQUEST_ID_PREFIX = "#"; // #<id> CMD ...: il Master risponde #<id> ..., anche fuori ordine
 
 
 
     // Da Master a Peer
     public static final String ERROR = "ERROR";
-    public static final String REGISTERED = "REGISTERED";
-    public static final String UPDATED = "UPDATED";
+    public static final String REGISTERED = "REGISTERED"; // REGISTERED <peerId> <versione>
+    public static final String UPDATED = "UPDATED"; // UPDATED <peerId> <versione>
+    public static final String VERSION_MISMATCH = "VERSION_MISMATCH"; // VERSION_MISMATCH <peerId> <versioneAttuale>: variazione fuori sequenza, serve un UPDATE completo
     public static final String DISCONNECTED_OK = "DISCONNECTED_OK";
     public static final String LIST_DATA_RESPONSE = "LIST_DATA_RESPONSE"; // Risposta alla richiesta di lista risorse remote
+    public static final String LIST_DATA_PAGE = "LIST_DATA_PAGE"; // Pagina della lista: LIST_DATA_PAGE <prossimoCursor|-> <n> <ris1> <numPeer> <pid1> ...
+    public static final String NO_CURSOR = "-"; // Cursore di inizio lista / fine delle pagine
     public static final String PEER_FOR_RESOURCE = "PEER_FOR_RESOURCE"; // Lista dei peer che hanno una risorsa specifica
-    public static final String RESOURCE_NOT_FOUND = "RESOURCE_NOT_FOUND"; // Risorsa non trovata
+    public static final String RESOURCE_NOT_FOUND = "RESOURCE_NOT_FOUND"; // Risorsa non trovata (RESOURCE_NOT_FOUND <ris1> ... <risN> per GET_PEERS_FOR_RESOURCES)
     public static final String DOWNLOAD_PERMITTED = "DOWNLOAD_PERMITTED"; // Download permesso, peer può procedere
+    public static final String BINARY_OK = "BINARY_OK"; // Da qui in poi la connessione usa solo frame binari
+    public static final String BATCH_RESPONSE = "BATCH_RESPONSE"; // BATCH_RESPONSE <n> seguito dalle n risposte, nello stesso ordine dei comandi
 
     // Da Peer a Peer
     public static final String DOWNLOAD_REQUEST = "DOWNLOAD_REQUEST"; // Richiesta di download di una risorsa
-    public static final String DOWNLOAD_DATA = "DOWNLOAD_DATA"; // Invio dei dati della risorsa richiesta
+    public static final String DOWNLOAD_DATA = "DOWNLOAD_DATA"; // Invio dei dati della risorsa richiesta: DOWNLOAD_DATA <file> <sha256>, poi la dimensione e i byte
     public static final String DOWNLOAD_DENIED = "DOWNLOAD_DENIED"; // Download negato, peer non può procedere
+    public static final String DOWNLOAD_RANGE = "DOWNLOAD_RANGE"; // Richiesta di un intervallo: DOWNLOAD_RANGE <file> <offset> <len>
+    public static final String RANGE_DATA = "RANGE_DATA"; // Risposta: RANGE_DATA <file> <offset> <len> <totalSize> <sha256>, poi len byte
+    public static final String BUSY = "BUSY"; // BUSY <retryAfterMs>: peer saturo, la connessione viene chiusa; riprovare più tardi o con un altro peer
 }
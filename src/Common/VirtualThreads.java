@@ -0,0 +1,45 @@
+package Common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Accesso ai virtual thread (Java 21+) senza richiederli per compilare il progetto.
+ * Un virtual thread costa poca memoria e si crea in fretta: con un thread per connessione
+ * il codice di rete resta bloccante e leggibile anche con molti peer collegati.
+ * Sulle JVM che non li supportano si ripiega su un pool di thread di piattaforma.
+ */
+public class VirtualThreads {
+
+    // Executors.newVirtualThreadPerTaskExecutor, se presente nella JVM in uso
+    private static final Method FACTORY = lookup();
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /** ritorna true se la JVM in uso supporta i virtual thread */
+    public static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Ritorna un executor che esegue ogni task su un nuovo virtual thread.
+     * Se i virtual thread non sono disponibili ritorna un pool dinamico di thread di piattaforma.
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (FACTORY != null) {
+            try {
+                return (ExecutorService) FACTORY.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // in alcune versioni i virtual thread sono una preview non abilitata
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -1,9 +1,16 @@
 package Master;
 
-import Common.DownloadLogEntry;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -23,6 +30,11 @@ import java.util.Set;
  */
 class CliConsole implements Runnable {
 
+    private static final String INSPECT_USAGE =
+            "Syntax: peer <peerId> | resource <nomeRisorsa> [<nomeRisorsa> ...] | any <nomeRisorsa> ... | exit";
+    private static final String LOG_USAGE =
+            "Uso: log [--peer <peerId>] [--resource <risorsa>] [--since <tempo>] [--until <tempo>]";
+
     private final MasterServer server;
 
     // Costruttore: riceve il server Master da gestire
@@ -37,12 +49,13 @@ class CliConsole implements Runnable {
             // Ciclo continuo per leggere i comandi da console finché l'input non è nullo
             while ((line = console.readLine()) != null) {
                 // Rimuove spazi bianchi e gestisce la scelta dell'azione in base al comando inserito
-                switch (line.trim()) {
+                String[] tokens = line.trim().split("\\s+");
+                switch (tokens[0]) {
                     case "listdata" -> handleListData();
                     case "inspectNodes" -> handleInspectNodes(console);
-                    case "log" -> handleLog();
+                    case "log" -> handleLog(tokens);
                     case "quit" -> handleQuit();
-                    default -> System.out.println("Comando sconosciuto. Uso: listdata | inspectNodes | log | quit");
+                    default -> System.out.println("Comando sconosciuto. Uso: listdata | inspectNodes | log [filtri] | quit");
                 }
             }
         } catch (IOException e) {
@@ -74,7 +87,7 @@ class CliConsole implements Runnable {
     private void handleInspectNodes(BufferedReader console) throws IOException {
         // Recupera lo stato corrente del server.
         MasterState state = server.getState();
-        System.out.println("Modalità inspectNodes: digita 'peer <peerId>' o 'resource <nomeRisorsa>' o 'exit' per uscire.");
+        System.out.println("Modalità inspectNodes: digita 'peer <peerId>', 'resource <nomeRisorsa> [...]', 'any <nomeRisorsa> ...' o 'exit' per uscire.");
         while (true) {
             System.out.print("> ");
             String cmd = console.readLine();
@@ -84,8 +97,8 @@ class CliConsole implements Runnable {
                 return;
             }
             String[] tokens = cmd.trim().split("\\s+");
-            if (tokens.length != 2) {
-                System.out.println("Syntax: peer <peerId> | resource <nomeRisorsa> | exit");
+            if (tokens.length < 2 || (tokens[0].equals("peer") && tokens.length != 2)) {
+                System.out.println(INSPECT_USAGE);
                 continue;
             }
             // Valuta se il primo token è peer o resource.
@@ -103,32 +116,120 @@ class CliConsole implements Runnable {
                 }
                 // Verifica quali peer possiedono una risorsa specifica. Se nessuno, lo segnala. Altrimenti mostra l’elenco.
                 case "resource" -> {
-                    String risorsa = tokens[1];
-                    // restituisce un oggetto di tipo Set<String> contenente gli ID di tutti i peer che hanno registrato quella risorsa.
-                    Set<String> peers = state.inspectPeersByResource(risorsa);
-                    if (peers.isEmpty()) {
-                        System.out.println("Nessun peer possiede la risorsa: " + risorsa);
+                    if (tokens.length == 2) {
+                        String risorsa = tokens[1];
+                        // restituisce un oggetto di tipo Set<String> contenente gli ID di tutti i peer che hanno registrato quella risorsa.
+                        Set<String> peers = state.inspectPeersByResource(risorsa);
+                        if (peers.isEmpty()) {
+                            System.out.println("Nessun peer possiede la risorsa: " + risorsa);
+                        } else {
+                            System.out.printf("Risorsa %s posseduta da: %s%n", risorsa, peers);
+                        }
                     } else {
-                        System.out.printf("Risorsa %s posseduta da: %s%n", risorsa, peers);
+                        printHolders(state, tokens, true);
                     }
                 }
-                default -> System.out.println("Syntax: peer <peerId> | resource <nomeRisorsa> | exit");
+                // Peer che possiedono almeno una delle risorse indicate
+                case "any" -> printHolders(state, tokens, false);
+                default -> System.out.println(INSPECT_USAGE);
             }
         }
     }
 
+    // Stampa i peer che possiedono tutte le risorse in tokens[1..] (all) oppure almeno una
+    private static void printHolders(MasterState state, String[] tokens, boolean all) {
+        List<String> risorse = Arrays.asList(tokens).subList(1, tokens.length);
+        Set<String> peers = state.inspectPeersByResources(risorse, all);
+        String elenco = String.join(all ? " e " : " o ", risorse);
+        if (peers.isEmpty()) {
+            System.out.println("Nessun peer possiede " + elenco);
+        } else {
+            System.out.printf("Peer con %s: %s%n", elenco, peers);
+        }
+    }
+
     /**
-     * Gestisce il comando 'log' Mostra i tentativi di download registrati nel log del Master
+     * Gestisce il comando 'log' Mostra i tentativi di download registrati nel log del Master.
+     * Sintassi: log [--peer <peerId>] [--resource <risorsa>] [--since <tempo>] [--until <tempo>]
+     * Il tempo è un istante ISO (2024-05-01T10:00:00Z), una data e ora locale (2024-05-01T10:00)
+     * oppure una durata fa (30s, 10m, 2h, 1d). I filtri usano gli indici del log: non viene letto tutto.
      */
-    private void handleLog() {
-        //Ottiene dal server lo stato attuale e la lista di DownloadLogEntry.
+    private void handleLog(String[] tokens) {
+        String peer = null;
+        String resource = null;
+        Instant since = null;
+        Instant until = null;
+        for (int i = 1; i < tokens.length; i++) {
+            if (i + 1 >= tokens.length) {
+                System.out.println(LOG_USAGE);
+                return;
+            }
+            String value = tokens[++i];
+            switch (tokens[i - 1]) {
+                case "--peer" -> peer = value;
+                case "--resource" -> resource = value;
+                case "--since", "--until" -> {
+                    Instant time = parseTime(value);
+                    if (time == null) {
+                        System.out.println("Tempo non valido: " + value);
+                        return;
+                    }
+                    if (tokens[i - 1].equals("--since")) {
+                        since = time;
+                    } else {
+                        until = time;
+                    }
+                }
+                default -> {
+                    System.out.println(LOG_USAGE);
+                    return;
+                }
+            }
+        }
+        //Ottiene dal server lo stato attuale e scorre i tentativi che soddisfano i filtri.
         MasterState state = server.getState();
-        // var permette di inserire automaticamente il tipo della variabile in base a cosa gli viene assegnato.
-        // equivale a List<DownloadLogEntry> entries = state.getLogEntries();
-        var entries = state.getLogEntries();
         System.out.println("Elenco tentativi di download:");
-        for (DownloadLogEntry e : entries) {
-            System.out.printf("- %s risorsa: %s da: %s a: %s success: %s%n",e.getTimestamp(),e.getResource(),e.getFromPeer(),e.getToPeer(),e.isSuccess());
+        try {
+            state.queryLogs(new DownloadLog.Filter(peer, resource, since, until), e ->
+                    System.out.printf("- %s risorsa: %s da: %s a: %s success: %s%n",e.getTimestamp(),e.getResource(),e.getFromPeer(),e.getToPeer(),e.isSuccess()));
+        } catch (IOException e) {
+            System.err.println("Errore nella lettura del log: " + e.getMessage());
+        }
+    }
+
+    // Interpreta un istante ISO, una data e ora locale o una durata all'indietro da adesso; null se non valido
+    private static Instant parseTime(String value) {
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException ignored) {
+            // non è un istante ISO
+        }
+        try {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException ignored) {
+            // non è una data e ora locale
+        }
+        if (value.length() < 2) {
+            return null;
+        }
+        long amount;
+        try {
+            amount = Long.parseLong(value.substring(0, value.length() - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        try {
+            Duration ago = switch (value.charAt(value.length() - 1)) {
+                case 's' -> Duration.ofSeconds(amount);
+                case 'm' -> Duration.ofMinutes(amount);
+                case 'h' -> Duration.ofHours(amount);
+                case 'd' -> Duration.ofDays(amount);
+                default -> null;
+            };
+            return ago == null ? null : Instant.now().minus(ago);
+        } catch (ArithmeticException | DateTimeException e) {
+            // durata fuori dall'intervallo rappresentabile
+            return null;
         }
     }
 
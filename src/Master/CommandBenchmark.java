@@ -0,0 +1,128 @@
+package Master;
+
+import Common.Protocol;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Misura i byte allocati e il tempo per comando del percorso testuale del master:
+ * divisione della riga, esecuzione sul MasterState e scrittura della risposta su un Writer che scarta tutto.
+ * Ogni comando viene misurato in due varianti:
+ *   split     - come prima del CommandTokenizer: trim().split("\\s+"), copia senza l'ID, String.join della risposta
+ *   tokenizer - CommandTokenizer e risposta scritta campo per campo, come fanno PeerHandler e NioMasterServer
+ * Non fa parte del master: si compila con il resto dei sorgenti e si esegue con
+ *   java -cp <classi> Master.CommandBenchmark [iterazioni]
+ * I byte allocati sono letti con com.sun.management.ThreadMXBean, quindi serve una JVM HotSpot.
+ */
+class CommandBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 30_000;
+    // DOWNLOAD_LOG aggiunge un tentativo a ogni esecuzione: con le iterazioni predefinite
+    // il log resta sotto DownloadLog.RING_CAPACITY e non scrive su disco
+    private static final int WARMUP = 10_000;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        MasterState state = new MasterState();
+        InetAddress address = InetAddress.getLoopbackAddress();
+        for (int p = 0; p < 100; p++) {
+            List<String> resources = new ArrayList<>();
+            for (int r = 0; r < 20; r++) {
+                resources.add("file" + ((p + r) % 500) + ".txt");
+            }
+            state.registerPeer("repo" + p + "_" + (9000 + p), address, 9000 + p, resources);
+        }
+        CommandProcessor processor = new CommandProcessor(state, address);
+
+        String[][] cases = {
+            {"REGISTER with 10 resources", "REGISTER bench_1 9999 10 a.txt b.txt c.txt d.txt e.txt f.txt g.txt h.txt i.txt j.txt"},
+            {"#id GET_PEERS_FOR_RESOURCE", "#42 GET_PEERS_FOR_RESOURCE file7.txt"},
+            {"DOWNLOAD_LOG", "DOWNLOAD_LOG file7.txt repo1_9001 repo2_9002 true"},
+            {"UPDATE with 10 resources", "UPDATE bench_1 10 a.txt b.txt c.txt d.txt e.txt f.txt g.txt h.txt i.txt j.txt"},
+            {"LIST_DATA_REMOTE page with glob", "LIST_DATA_REMOTE - 20 file1*.txt"},
+        };
+        Writer sink = Writer.nullWriter();
+        CommandTokenizer tokenizer = new CommandTokenizer();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        System.out.printf("%-34s %12s %12s %12s %12s%n", "", "split B/op", "token B/op", "split ns/op", "token ns/op");
+        for (String[] c : cases) {
+            String line = c[1];
+            Runnable split = () -> {
+                String[] parts = line.trim().split("\\s+");
+                String tag = null;
+                if (parts[0].startsWith(Protocol.REQUEST_ID_PREFIX)) {
+                    tag = parts[0];
+                    parts = Arrays.copyOfRange(parts, 1, parts.length);
+                }
+                write(sink, tag, CommandProcessor.toLine(processor.execute(parts)));
+            };
+            Runnable tokens = () -> {
+                String[] parts = tokenizer.tokenize(line);
+                writeFields(sink, tokenizer.getTag(), processor.execute(parts));
+            };
+            long[] before = measure(split, iterations, threads);
+            long[] after = measure(tokens, iterations, threads);
+            System.out.printf("%-34s %12d %12d %12d %12d%n", c[0], before[0], after[0], before[1], after[1]);
+        }
+
+        // BATCH di 10 richieste: tokenizer e buffer della risposta sono riusati dal thread
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add("GET_PEERS_FOR_RESOURCE file" + i + ".txt");
+        }
+        long[] batchCost = measure(() -> write(sink, null, processor.executeBatch(batch)), iterations, threads);
+        System.out.printf("%-34s %12s %12d %12s %12d%n", "BATCH of 10 GET_PEERS_FOR_RESOURCE", "-", batchCost[0], "-", batchCost[1]);
+    }
+
+    // Ritorna byte allocati e nanosecondi medi per esecuzione, dopo il riscaldamento
+    private static long[] measure(Runnable op, int iterations, com.sun.management.ThreadMXBean threads) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long bytes = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        bytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+        return new long[] {bytes / iterations, elapsed / iterations};
+    }
+
+    private static void write(Writer out, String tag, String line) {
+        try {
+            if (tag != null) {
+                out.write(tag);
+                out.write(' ');
+            }
+            out.write(line);
+            out.write("\r\n");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeFields(Writer out, String tag, List<String> fields) {
+        try {
+            if (tag != null) {
+                out.write(tag);
+                out.write(' ');
+            }
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) {
+                    out.write(' ');
+                }
+                out.write(fields.get(i));
+            }
+            out.write("\r\n");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
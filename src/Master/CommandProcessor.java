@@ -0,0 +1,374 @@
+package Master;
+
+import Common.DownloadLogEntry;
+import Common.Protocol;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Esegue i comandi del protocollo inviati da un peer sullo stato del master e ne compone le risposte.
+ * Non legge né scrive sulla rete: è usato sia dal PeerHandler (un thread per connessione)
+ * sia dal NioMasterServer (selector e pool fisso di worker).
+*/
+class CommandProcessor {
+
+    // Numero massimo di comandi in un BATCH
+    static final int MAX_BATCH = 10000;
+    // Numero massimo di risorse in una pagina di LIST_DATA_REMOTE
+    static final int MAX_PAGE = 10000;
+    // Tokenizer e buffer della risposta dei BATCH, uno per thread: lo stesso processor può eseguire più BATCH
+    // insieme (comandi con ID nel pool del PeerHandler), ma un thread ne esegue uno alla volta
+    private static final ThreadLocal<CommandTokenizer> BATCH_TOKENIZERS = ThreadLocal.withInitial(CommandTokenizer::new);
+    private static final ThreadLocal<StringBuilder> BATCH_RESPONSES = ThreadLocal.withInitial(StringBuilder::new);
+    // Oltre questa capacità il buffer non viene riusato: un BATCH molto grande non resta in memoria nel thread
+    private static final int MAX_REUSED_RESPONSE = 64 * 1024;
+
+    // stato globale del master
+    private final MasterState state;
+    // indirizzo del peer collegato, registrato con REGISTER
+    private final InetAddress address;
+
+    CommandProcessor(MasterState state, InetAddress address) {
+        this.state = state;
+        this.address = address;
+    }
+
+    /**
+     * Invoca il metodo corrispondente al comando e ritorna la riga di risposta del protocollo testuale.
+    */
+    String dispatch(String[] tokens) {
+        // l'elenco completo è già pronto come riga di testo nella fotografia dell'indice
+        if (tokens[0].equals(Protocol.LIST_DATA_REMOTE) && tokens.length == 1) {
+            return state.getResourceSnapshot().getListResponse();
+        }
+        return toLine(execute(tokens));
+    }
+
+    /**
+     * Invoca il metodo corrispondente al comando e ritorna la risposta come elenco di campi:
+     * il nome della risposta seguito dagli argomenti. Nel protocollo testuale i campi sono
+     * separati da spazi, in quello binario ognuno è un campo del frame (e può contenere spazi).
+     * Se il master ha un journal, ritorna solo quando la modifica è su disco.
+    */
+    List<String> execute(String[] tokens) {
+        List<String> response = run(tokens);
+        state.awaitDurable();
+        return response;
+    }
+
+    // Esegue il comando senza attendere il journal
+    private List<String> run(String[] tokens) {
+        return switch (tokens[0]) {
+            case Protocol.REGISTER                   -> handleRegister(tokens);
+            case Protocol.UPDATE                     -> handleUpdate(tokens);
+            case Protocol.UPDATE_ADD                 -> handleDelta(tokens, true);
+            case Protocol.UPDATE_REMOVE              -> handleDelta(tokens, false);
+            case Protocol.LIST_DATA_REMOTE           -> tokens.length == 1 ? handleListData() : handleListPage(tokens);
+            case Protocol.GET_PEERS_FOR_RESOURCE     -> handleGetPeers(tokens);
+            case Protocol.GET_PEERS_FOR_RESOURCES    -> handleGetPeersMulti(tokens);
+            case Protocol.DOWNLOAD_LOG               -> handleDownloadLog(tokens);
+            case Protocol.DOWNLOAD_FAIL              -> handleDownloadFail(tokens);
+            default                                  -> error("UNKNOWN_COMMAND");
+        };
+    }
+
+    /** Unisce i campi di una risposta nella riga del protocollo testuale */
+    static String toLine(List<String> fields) {
+        return String.join(" ", fields);
+    }
+
+    private static List<String> error(String message) {
+        return List.of(Protocol.ERROR, message);
+    }
+
+    /**
+     * Ritorna il numero di righe annunciate da BATCH <n>, oppure -1 se non è valido.
+    */
+    static int parseBatchSize(String[] tokens) {
+        if (tokens.length != 2) {
+            return -1;
+        }
+        try {
+            int n = Integer.parseInt(tokens[1]);
+            return n < 0 || n > MAX_BATCH ? -1 : n;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Esegue in ordine i comandi di un BATCH e compone la risposta:
+     * BATCH_RESPONSE <n> seguito da una riga di risposta per ogni comando.
+     * Nel BATCH non sono ammessi ID, BATCH annidati né DISCONNECTED.
+    */
+    String executeBatch(List<String> lines) {
+        // il BATCH può essere eseguito da un worker mentre la connessione legge altre righe:
+        // tokenizer del thread, non quello della connessione
+        CommandTokenizer tokenizer = BATCH_TOKENIZERS.get();
+        StringBuilder sb = BATCH_RESPONSES.get();
+        sb.setLength(0);
+        sb.append(Protocol.BATCH_RESPONSE).append(" ").append(lines.size());
+        for (String line : lines) {
+            String[] tokens = tokenizer.tokenize(line);
+            sb.append("\r\n");
+            if (tokens.length == 0 || tokenizer.getTag() != null
+                    || tokens[0].equals(Protocol.BATCH) || tokens[0].equals(Protocol.DISCONNECTED)) {
+                appendLine(sb, error("Comando non ammesso nel BATCH"));
+            } else if (tokens[0].equals(Protocol.LIST_DATA_REMOTE) && tokens.length == 1) {
+                sb.append(state.getResourceSnapshot().getListResponse());
+            } else {
+                appendLine(sb, run(tokens));
+            }
+        }
+        // un'unica attesa del journal per tutte le modifiche del BATCH
+        state.awaitDurable();
+        String response = sb.toString();
+        if (sb.capacity() > MAX_REUSED_RESPONSE) {
+            BATCH_RESPONSES.remove();
+        }
+        return response;
+    }
+
+    // Accoda i campi di una risposta separati da spazi, senza creare la riga intermedia
+    private static void appendLine(StringBuilder sb, List<String> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(fields.get(i));
+        }
+    }
+
+     /**
+     * Gestisce il comando DOWNLOAD_LOG.
+     * Sintassi: DOWNLOAD_LOG <resource> <fromPeer> <toPeer> <success>
+     */
+
+    private List<String> handleDownloadLog(String[] tokens) {
+        if (tokens.length != 5) {
+            return error("Mancano argomenti per il comando DOWNLOAD_LOG");
+        }
+        String resource = tokens[1];
+        String fromPeer = tokens[2];
+        String toPeer = tokens[3];
+        boolean success = Boolean.parseBoolean(tokens[4]);
+        // oggetto che rappresenta un tentativo di download 
+        DownloadLogEntry entry = new DownloadLogEntry(Instant.now(), resource, fromPeer, toPeer, success);
+        // Aggiunge il log appena creato alla coda di log nel MasterState
+        state.addDownloadLog(entry);
+        // Conferma che il log è stato ricevuto e registrato correttamente dal master
+        return List.of(Protocol.LOG_OK);
+    }
+
+    /**
+     * Gestisce il comando REGISTER.
+     * Sintassi: REGISTER <peerId> <peerPort> <numRisorse> <ris1> <ris2> ... <risN>
+    */
+    private List<String> handleRegister(String[] tokens) {
+        // Controlla che i parametri siano completi e coerenti
+        if (tokens.length < 4) {
+            return error("Mancano argomenti per il comando REGISTER");
+        }
+        // ID del peer che si sta registrando
+        String peerId = tokens[1];
+        int peerPort;
+        // Parse la porta su cui il peer è in ascolto
+        try {
+            peerPort = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException ex) {
+            return error("PeerPort errata per REGISTER");
+        }
+        // Parse il numero di risorse n che il peer dichiara di voler registrare.
+        int n;
+        try {
+            n = Integer.parseInt(tokens[3]);
+        } catch (NumberFormatException ex) {
+            return error("numRisorse errato per REGISTER");
+        }
+        // Verifica che ci siano esattamente n risorse dopo i primi 4 token.
+        if (tokens.length != 4 + n) {
+            return error("Incoerenza di numero di risorse per REGISTER");
+        }
+        // Risorse che il peer sta registrando: il set senza duplicati lo costruisce il MasterState
+        List<String> resources = Arrays.asList(tokens).subList(4, 4 + n);
+        // Registra il peer nello stato condiviso, associando l'indirizzo e le risorse 
+        long version = state.registerPeer(peerId, address, peerPort, resources);
+        // Conferma la registrazione al peer, con la versione da cui partono le variazioni UPDATE_ADD / UPDATE_REMOVE
+        return List.of(Protocol.REGISTERED, peerId, Long.toString(version));
+    }
+
+    /**
+     * Gestisce il comando UPDATE --> Aggiorna le risorse disponibili di un peer già registrato.
+     * Sintassi: UPDATE <peerId> <numRisorse> <ris1> ... <risN>
+    */
+    private List<String> handleUpdate(String[] tokens) {
+        if (tokens.length < 3) {
+            return error("Mancano argomenti per il comando UPDATE");
+        }
+        // Controlla che i parametri siano completi e coerenti
+        String peerId = tokens[1];
+        int n;
+        try {
+            n = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException ex) {
+            return error("numRisorse errato per UPDATE");
+        }
+        if (tokens.length != 3 + n) {
+            return error("Incoerenza di numero di risorse per UPDATE");
+        }
+         // Costruisce il nuovo set di risorse
+        Set<String> newResources = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            newResources.add(tokens[3 + i]);
+        }
+        // Aggiorna lo stato del peer e conferma l'aggiornamento
+        long version = state.updatePeerResources(peerId, newResources);
+        return List.of(Protocol.UPDATED, peerId, Long.toString(version));
+    }
+
+    /**
+     * Gestisce i comandi UPDATE_ADD e UPDATE_REMOVE --> Aggiunge o toglie solo le risorse indicate.
+     * Sintassi: UPDATE_ADD <peerId> <versione> <numRisorse> <ris1> ... <risN> (UPDATE_REMOVE uguale)
+     * versione è quella attesa dopo la modifica; se non è la successiva di quella del master
+     * la risposta è VERSION_MISMATCH e il peer deve inviare un UPDATE completo.
+    */
+    private List<String> handleDelta(String[] tokens, boolean add) {
+        String cmd = tokens[0];
+        if (tokens.length < 4) {
+            return error("Mancano argomenti per il comando " + cmd);
+        }
+        String peerId = tokens[1];
+        long version;
+        int n;
+        try {
+            version = Long.parseLong(tokens[2]);
+            n = Integer.parseInt(tokens[3]);
+        } catch (NumberFormatException ex) {
+            return error("versione o numRisorse errati per " + cmd);
+        }
+        if (tokens.length != 4 + n) {
+            return error("Incoerenza di numero di risorse per " + cmd);
+        }
+        List<String> resources = Arrays.asList(tokens).subList(4, 4 + n);
+        long applied = state.applyResourceDelta(peerId, version, resources, add);
+        if (applied < 0) {
+            return List.of(Protocol.VERSION_MISMATCH, peerId, Long.toString(state.getResourcesVersion(peerId)));
+        }
+        return List.of(Protocol.UPDATED, peerId, Long.toString(applied));
+    }
+
+    /**
+     * Gestisce il comando LIST_DATA_REMOTE.
+     * Restituisce l'elenco completo delle risorse condivise e i peer che le possiedono.
+    */
+    private List<String> handleListData() {
+        // La risposta è calcolata una volta per versione dell'indice e condivisa tra tutti i peer
+        return state.getResourceSnapshot().getListFields();
+    }
+
+    /**
+     * Gestisce il comando LIST_DATA_REMOTE a pagine.
+     * Sintassi: LIST_DATA_REMOTE <cursor|-> <limit> [prefisso|glob]
+     * Il cursore è l'ultima risorsa della pagina precedente ("-" per la prima pagina).
+     */
+    private List<String> handleListPage(String[] tokens) {
+        if (tokens.length != 3 && tokens.length != 4) {
+            return error("Sintassi: LIST_DATA_REMOTE <cursor|-> <limit> [pattern]");
+        }
+        String cursor = tokens[1].equals(Protocol.NO_CURSOR) ? null : tokens[1];
+        int limit;
+        try {
+            limit = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException ex) {
+            return error("limit errato per LIST_DATA_REMOTE");
+        }
+        if (limit <= 0 || limit > MAX_PAGE) {
+            return error("limit deve essere tra 1 e " + MAX_PAGE);
+        }
+        String pattern = tokens.length == 4 ? tokens[3] : null;
+        return state.getResourceSnapshot().getPage(cursor, limit, pattern);
+    }
+
+    /**
+     * Gestisce il comando GET_PEERS_FOR_RESOURCE --> Restituisce i peer che posseggono una risorsa specifica.
+     * Sintassi: GET_PEERS_FOR_RESOURCE <risorsa>
+     */
+    private List<String> handleGetPeers(String[] tokens) {
+        if (tokens.length != 2) {
+            return error("Mancano argomenti per il comando GET_PEERS_FOR_RESOURCE");
+        }
+        String resource = tokens[1];
+        return state.getPeersFor(resource);
+    }
+
+    /**
+     * Gestisce il comando GET_PEERS_FOR_RESOURCES --> Restituisce i peer che posseggono tutte le risorse
+     * indicate (ALL) oppure almeno una (ANY).
+     * Sintassi: GET_PEERS_FOR_RESOURCES <ALL|ANY> <numRisorse> <ris1> ... <risN>
+     */
+    private List<String> handleGetPeersMulti(String[] tokens) {
+        if (tokens.length < 3) {
+            return error("Mancano argomenti per il comando GET_PEERS_FOR_RESOURCES");
+        }
+        boolean all;
+        if (tokens[1].equals(Protocol.MATCH_ALL)) {
+            all = true;
+        } else if (tokens[1].equals(Protocol.MATCH_ANY)) {
+            all = false;
+        } else {
+            return error("Modalità non valida per GET_PEERS_FOR_RESOURCES: " + tokens[1]);
+        }
+        int n;
+        try {
+            n = Integer.parseInt(tokens[2]);
+        } catch (NumberFormatException ex) {
+            return error("numRisorse errato per GET_PEERS_FOR_RESOURCES");
+        }
+        if (n <= 0 || tokens.length != 3 + n) {
+            return error("Incoerenza di numero di risorse per GET_PEERS_FOR_RESOURCES");
+        }
+        return state.getPeersFor(Arrays.asList(tokens).subList(3, 3 + n), all);
+    }
+
+
+    /**
+     * Gestisce il comando DOWNLOAD_FAIL --> Cerca un nuovo peer per scaricare la risorsa.
+     * Sintassi: DOWNLOAD_FAIL <risorsa> <peerFallito>
+    */
+    private List<String> handleDownloadFail(String[] tokens) {
+        if (tokens.length != 3) {
+            return error("Mancano argomenti per il comando DOWNLOAD_FAIL");
+        }
+        String risorsa = tokens[1];
+        String failedPeer = tokens[2];
+        // Richiede un nuovo peer per la risorsa
+        String nextPeer = state.handleDownloadFail(risorsa, failedPeer);
+        // Nessun peer alternativo disponibile
+        if (nextPeer == null) {
+            return List.of(Protocol.RESOURCE_NOT_FOUND, risorsa);
+        // Altrimenti, risponde con il peer suggerito
+        } else {
+            return List.of(Protocol.DOWNLOAD_PERMITTED, risorsa, nextPeer);
+        }
+    }
+
+    /**
+     * Gestisce il comando DISCONNECTED --> Rimuove il peer dal sistema.
+     * Sintassi: DISCONNECTED <peerId> 
+    */
+    List<String> handleDisconnect(String[] tokens) {
+        if (tokens.length != 2) {
+            return error("Mancano argomenti per il comando DISCONNECTED");
+        }
+        String peerId = tokens[1];
+        // Rimuove il peer dallo stato
+        state.removePeer(peerId);
+        state.awaitDurable();
+        // Conferma disconnessione
+        return List.of(Protocol.DISCONNECTED_OK, peerId);
+    }
+}
@@ -0,0 +1,91 @@
+package Master;
+
+import Common.Protocol;
+import java.util.Arrays;
+
+/**
+ * Divide una riga del protocollo testuale in token senza espressioni regolari.
+ * Sostituisce line.trim().split("\\s+"): non compila né esegue una regex, non crea la riga
+ * ripulita né array intermedi, e per il nome del comando ritorna direttamente la costante
+ * di Protocol invece di una nuova stringa. Gli unici oggetti creati sono l'array dei token
+ * e le stringhe degli argomenti.
+ * L'eventuale ID iniziale (#<id>) non fa parte dei token ed è disponibile con getTag().
+ * Non è thread-safe: ogni connessione usa il proprio.
+ */
+class CommandTokenizer {
+
+    static final String[] EMPTY = new String[0];
+
+    // Nomi riconosciuti senza creare una stringa per il token
+    private static final String[] COMMANDS = {
+        Protocol.REGISTER, Protocol.UPDATE, Protocol.UPDATE_ADD, Protocol.UPDATE_REMOVE,
+        Protocol.LIST_DATA_REMOTE, Protocol.GET_PEERS_FOR_RESOURCE, Protocol.GET_PEERS_FOR_RESOURCES, Protocol.DOWNLOAD_LOG,
+        Protocol.DOWNLOAD_FAIL, Protocol.DISCONNECTED, Protocol.BATCH, Protocol.BINARY,
+    };
+
+    // posizioni di inizio e fine dei token dell'ultima riga, riusate tra una riga e l'altra
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private String tag;
+
+    /**
+     * Divide la riga in token separati da spazi bianchi (come trim().split("\\s+")).
+     * Ritorna EMPTY se la riga non contiene un comando.
+     */
+    String[] tokenize(String line) {
+        int count = 0;
+        int length = line.length();
+        int i = 0;
+        while (true) {
+            while (i < length && line.charAt(i) <= ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            int start = i;
+            while (i < length && line.charAt(i) > ' ') {
+                i++;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = i;
+            count++;
+        }
+
+        tag = null;
+        int first = 0;
+        if (count > 0 && line.startsWith(Protocol.REQUEST_ID_PREFIX, starts[0])) {
+            tag = line.substring(starts[0], ends[0]);
+            first = 1;
+        }
+        if (first == count) {
+            return EMPTY;
+        }
+        String[] tokens = new String[count - first];
+        tokens[0] = command(line, starts[first], ends[first]);
+        for (int t = 1; t < tokens.length; t++) {
+            tokens[t] = line.substring(starts[first + t], ends[first + t]);
+        }
+        return tokens;
+    }
+
+    /** ritorna l'ID (#<id>) dell'ultima riga divisa, oppure null se non c'era */
+    String getTag() {
+        return tag;
+    }
+
+    // Ritorna la costante del comando se il token ne è una, altrimenti una copia del token
+    private static String command(String line, int start, int end) {
+        int length = end - start;
+        for (String command : COMMANDS) {
+            if (command.length() == length && line.regionMatches(start, command, 0, length)) {
+                return command;
+            }
+        }
+        return line.substring(start, end);
+    }
+}
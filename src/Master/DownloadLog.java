@@ -0,0 +1,713 @@
+package Master;
+
+import Common.DownloadLogEntry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Log dei tentativi di download con memoria limitata.
+ * Gli ultimi RING_CAPACITY tentativi restano in memoria, in forma compatta per colonne (vedi
+ * LogColumns); quando sono troppi i più vecchi vengono scritti a blocchi in segmenti su disco
+ * (log-<id>.seg), letti poi tramite memory mapping.
+ * Quando un segmento viene chiuso, le posizioni dei record di ogni peer e di ogni risorsa sono
+ * scritte in un file indice accanto (log-<id>.idx), anch'esso letto tramite memory mapping:
+ * in memoria restano solo l'intervallo di tempo coperto da ogni segmento e l'indice del segmento
+ * aperto, limitato da SEGMENT_BYTES. Una ricerca salta i segmenti fuori dall'intervallo richiesto
+ * e, dentro gli altri, legge solo i record del peer o della risorsa cercati.
+ *
+ * Senza cartella dati i segmenti vanno in una cartella temporanea cancellata all'uscita;
+ * con --data-dir stanno in <cartella>/logs e la fotografia del master ne registra la posizione
+ * (vedi checkpoint e recover).
+ *
+ * Formato di un record: <long secondi> <int nano> <byte esito> <risorsa> <da> <a>,
+ * stringhe come <int lunghezza in byte> <byte UTF-8>.
+ * Thread-safe: le ricerche leggono i segmenti senza bloccare le aggiunte.
+ */
+class DownloadLog {
+
+    // Tentativi tenuti in memoria (circa 2 MB); quando il ring è pieno ne viene scritta su disco la metà più vecchia
+    static final int RING_CAPACITY = 100_000;
+    // Dimensione oltre la quale un segmento viene chiuso e se ne apre uno nuovo
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final int ringCapacity;
+    // nomi di risorse e peer dei tentativi in memoria
+    private final IdDictionary names = new IdDictionary();
+    private final LogColumns ring;
+    // segmenti in ordine di id: tutti chiusi tranne l'ultimo
+    private final List<Segment> segments = new ArrayList<>();
+    private Path dir;
+    private boolean temporary;
+    private FileChannel writer;
+
+    DownloadLog() {
+        this(RING_CAPACITY);
+    }
+
+    DownloadLog(int ringCapacity) {
+        this.ringCapacity = ringCapacity;
+        this.ring = new LogColumns(ringCapacity, names);
+    }
+
+    /** aggiunge un tentativo; se la memoria è piena sposta su disco i più vecchi */
+    synchronized void add(DownloadLogEntry entry) {
+        if (ring.isFull()) {
+            try {
+                spill(Math.max(1, ringCapacity / 2));
+            } catch (IOException e) {
+                // senza disco si perde il più vecchio invece di crescere senza limite
+                System.err.println("Impossibile scrivere il log dei download su disco: " + e.getMessage());
+                ring.removeFirst(1);
+            }
+        }
+        ring.addLast(entry);
+    }
+
+    /** ritorna il numero totale di tentativi registrati */
+    synchronized long size() {
+        long total = ring.size();
+        for (Segment segment : segments) {
+            total += segment.count;
+        }
+        return total;
+    }
+
+    /**
+     * Passa a consumer, in ordine di registrazione, i tentativi che soddisfano il filtro.
+     * Sotto lock si raccolgono solo i riferimenti necessari; la lettura dei segmenti avviene
+     * fuori, così le aggiunte non attendono la ricerca.
+     */
+    void query(Filter filter, Consumer<DownloadLogEntry> consumer) throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        List<int[]> positions = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        List<DownloadLogEntry> recent = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (segment.count == 0 || !segment.overlaps(filter)) {
+                    continue;
+                }
+                // le posizioni di un segmento chiuso si leggono dal suo indice su disco, fuori dal lock
+                int[] offsets = segment.closed ? null : segment.candidates(filter);
+                if (offsets != null && offsets.length == 0) {
+                    continue;
+                }
+                candidates.add(segment);
+                positions.add(offsets);
+                lengths.add(segment.closed ? -1 : segment.length);
+            }
+            ring.collect(filter, recent);
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            Segment segment = candidates.get(i);
+            int[] offsets = positions.get(i);
+            if (lengths.get(i) < 0) {
+                offsets = segment.candidatesOnDisk(filter);
+                if (offsets != null && offsets.length == 0) {
+                    continue;
+                }
+            }
+            // il segmento aperto si legge fino alla lunghezza vista sotto lock, quello chiuso non cambia più
+            ByteBuffer data = segment.map(lengths.get(i) < 0 ? segment.length : lengths.get(i));
+            if (offsets != null) {
+                for (int offset : offsets) {
+                    emit(decode(data, offset), filter, consumer);
+                }
+            } else {
+                // nessun peer o risorsa indicati: si legge tutto il segmento
+                data.position(0);
+                while (data.hasRemaining()) {
+                    emit(decode(data, data.position()), filter, consumer);
+                }
+            }
+        }
+        recent.forEach(consumer);
+    }
+
+    private static void emit(DownloadLogEntry entry, Filter filter, Consumer<DownloadLogEntry> consumer) {
+        if (filter.matches(entry)) {
+            consumer.accept(entry);
+        }
+    }
+
+    /**
+     * Fissa la cartella dei segmenti e la riporta alla posizione di una fotografia:
+     * i segmenti successivi vengono cancellati e l'ultimo troncato, perché i tentativi scritti
+     * dopo la fotografia sono nel ring della fotografia o nel journal e verranno riaggiunti.
+     * Con checkpoint null (nessuna fotografia) tutti i segmenti vengono cancellati.
+     * Dei segmenti chiusi si legge solo l'intestazione del file indice; l'indice viene ricostruito
+     * leggendo i record solo per l'ultimo segmento, che resta aperto, e per i segmenti senza un
+     * indice valido (ad esempio scritti prima che esistessero i file indice).
+     * Va chiamato prima di qualsiasi aggiunta.
+     */
+    synchronized void recover(Path dir, Checkpoint checkpoint) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.temporary = false;
+        int lastSegment = checkpoint == null ? -1 : checkpoint.segment;
+        TreeMap<Integer, Path> files = listSegments(dir);
+        for (Map.Entry<Integer, Path> file : files.entrySet()) {
+            int id = file.getKey();
+            Path indexPath = indexPath(file.getValue());
+            if (id > lastSegment) {
+                Files.delete(file.getValue());
+                Files.deleteIfExists(indexPath);
+                continue;
+            }
+            Segment segment = new Segment(id, file.getValue());
+            if (id == lastSegment) {
+                // l'ultimo segmento della fotografia torna aperto: l'indice chiuso dopo non vale più
+                Files.deleteIfExists(indexPath);
+                try (FileChannel channel = FileChannel.open(file.getValue(), StandardOpenOption.WRITE)) {
+                    channel.truncate(checkpoint.length);
+                }
+                segment.rebuildIndex();
+            } else if (!segment.loadIndex()) {
+                segment.rebuildIndex();
+                segment.close(false);
+            }
+            segments.add(segment);
+        }
+        // file indice rimasti senza il loro segmento
+        try (DirectoryStream<Path> orphans = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + INDEX_SUFFIX)) {
+            for (Path orphan : orphans) {
+                String name = orphan.getFileName().toString();
+                if (!Files.exists(orphan.resolveSibling(name.substring(0, name.length() - INDEX_SUFFIX.length()) + SEGMENT_SUFFIX))) {
+                    Files.delete(orphan);
+                }
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            writer = FileChannel.open(last.path, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Rende durevoli i segmenti e ritorna la posizione raggiunta insieme a una copia dei
+     * tentativi ancora in memoria, da salvare nella fotografia.
+     */
+    synchronized Checkpoint checkpoint(long journalSequence) throws IOException {
+        if (writer != null) {
+            writer.force(false);
+        }
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        return new Checkpoint(journalSequence, last == null ? -1 : last.id, last == null ? 0 : last.length,
+                recentEntries());
+    }
+
+    private List<DownloadLogEntry> recentEntries() {
+        List<DownloadLogEntry> recent = new ArrayList<>(ring.size());
+        for (int i = 0; i < ring.size(); i++) {
+            recent.add(ring.get(i));
+        }
+        return recent;
+    }
+
+    // Scrive su disco i count tentativi più vecchi del ring
+    private void spill(int count) throws IOException {
+        if (dir == null) {
+            dir = Files.createTempDirectory("master-downloads");
+            dir.toFile().deleteOnExit();
+            temporary = true;
+        }
+        Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (current == null || current.length >= SEGMENT_BYTES) {
+            current = openSegment(current == null ? 0 : current.id + 1);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < count; i++) {
+            buffer = encode(buffer, ring.get(i));
+        }
+        buffer.flip();
+        // l'indice si aggiorna solo dopo la scrittura: un errore lascia il segmento come prima
+        long start = current.length;
+        writer.position(start);
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+        buffer.flip();
+        current.index(buffer, start);
+        ring.removeFirst(count);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        if (writer != null) {
+            // il segmento chiuso non verrà più scritto: va reso durevole ora, poi il suo indice passa su disco.
+            // Se la scrittura dell'indice fallisce il segmento resta aperto e si riprova alla prossima scrittura
+            if (!temporary) {
+                writer.force(false);
+            }
+            segments.get(segments.size() - 1).close(temporary);
+            writer.close();
+            writer = null;
+        }
+        Path path = dir.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        writer = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        if (temporary) {
+            path.toFile().deleteOnExit();
+        }
+        Segment segment = new Segment(id, path);
+        segments.add(segment);
+        return segment;
+    }
+
+    private static ByteBuffer encode(ByteBuffer buffer, DownloadLogEntry entry) {
+        byte[] resource = entry.getResource().getBytes(StandardCharsets.UTF_8);
+        byte[] from = entry.getFromPeer().getBytes(StandardCharsets.UTF_8);
+        byte[] to = entry.getToPeer().getBytes(StandardCharsets.UTF_8);
+        int size = 8 + 4 + 1 + 12 + resource.length + from.length + to.length;
+        if (buffer.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + size));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        buffer.putLong(entry.getTimestamp().getEpochSecond()).putInt(entry.getTimestamp().getNano());
+        buffer.put((byte) (entry.isSuccess() ? 1 : 0));
+        buffer.putInt(resource.length).put(resource);
+        buffer.putInt(from.length).put(from);
+        buffer.putInt(to.length).put(to);
+        return buffer;
+    }
+
+    // Legge il record che inizia a offset e lascia la posizione del buffer alla sua fine
+    private static DownloadLogEntry decode(ByteBuffer data, int offset) {
+        data.position(offset);
+        Instant timestamp = Instant.ofEpochSecond(data.getLong(), data.getInt());
+        boolean success = data.get() != 0;
+        String resource = getString(data);
+        String from = getString(data);
+        String to = getString(data);
+        return new DownloadLogEntry(timestamp, resource, from, to, success);
+    }
+
+    private static String getString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Segmenti presenti nella cartella, ordinati per id
+    private static TreeMap<Integer, Path> listSegments(Path dir) throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException ignored) {
+                    // non è un segmento del log
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static Path indexPath(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Un segmento su disco con il suo indice: intervallo di tempo coperto e, per ogni peer
+     * (sorgente o destinatario) e ogni risorsa, le posizioni dei suoi record.
+     * Finché il segmento è aperto l'indice è in memoria; alla chiusura viene scritto nel file
+     * log-<id>.idx e in memoria restano solo i contatori e l'intervallo di tempo.
+     * Formato del file indice: intestazione (MAGIC, VERSION, lunghezza del segmento, numero di record,
+     * tempo minimo e massimo, numero di peer e di risorse), poi due tabelle, peer e risorse, con una
+     * voce da 16 byte per chiave (hash del nome, posizione del nome, posizione e numero delle posizioni)
+     * ordinate per hash, poi i nomi (<int lunghezza> <byte UTF-8>) e le posizioni (int crescenti).
+     * Si modifica solo sotto il lock del DownloadLog; un segmento chiuso non cambia più.
+     */
+    private static class Segment {
+        private static final int MAGIC = 0x4C494458; // "LIDX"
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8 + 8 + 4 + 4;
+        private static final int ENTRY_BYTES = 16;
+
+        final int id;
+        final Path path;
+        long length;
+        int count;
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        // true quando l'indice è nel file .idx e le mappe in memoria sono state rilasciate
+        boolean closed;
+        private Map<String, Positions> byPeer = new HashMap<>();
+        private Map<String, Positions> byResource = new HashMap<>();
+        // mappature del segmento e del suo indice, riusate dalle ricerche successive
+        private volatile MappedByteBuffer mapped;
+        private volatile MappedByteBuffer mappedIndex;
+
+        Segment(int id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+
+        // Indicizza i record contenuti in data, che nel file iniziano alla posizione start
+        void index(ByteBuffer data, long start) {
+            while (data.hasRemaining()) {
+                int offset = (int) (start + data.position());
+                DownloadLogEntry entry = decode(data, data.position());
+                long time = toNanos(entry.getTimestamp());
+                minTime = Math.min(minTime, time);
+                maxTime = Math.max(maxTime, time);
+                byPeer.computeIfAbsent(entry.getFromPeer(), k -> new Positions()).add(offset);
+                if (!entry.getToPeer().equals(entry.getFromPeer())) {
+                    byPeer.computeIfAbsent(entry.getToPeer(), k -> new Positions()).add(offset);
+                }
+                byResource.computeIfAbsent(entry.getResource(), k -> new Positions()).add(offset);
+                count++;
+            }
+            length = start + data.limit();
+            mapped = null;
+        }
+
+        // Ricostruisce l'indice in memoria leggendo il file
+        void rebuildIndex() throws IOException {
+            long size = Files.size(path);
+            if (size > 0) {
+                index(map(size), 0);
+            }
+        }
+
+        /**
+         * Legge l'intestazione del file indice; ritorna false se manca, è danneggiato
+         * o non corrisponde alla lunghezza del segmento.
+         */
+        boolean loadIndex() throws IOException {
+            Path indexPath = indexPath(path);
+            if (!Files.isRegularFile(indexPath) || Files.size(indexPath) < HEADER_BYTES) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                while (header.hasRemaining()) {
+                    if (channel.read(header) < 0) {
+                        return false;
+                    }
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != Files.size(path)) {
+                return false;
+            }
+            length = Files.size(path);
+            count = header.getInt();
+            minTime = header.getLong();
+            maxTime = header.getLong();
+            closed = true;
+            byPeer = null;
+            byResource = null;
+            return true;
+        }
+
+        /**
+         * Scrive l'indice in memoria nel file .idx (prima in un file temporaneo, poi con una
+         * rinomina atomica) e rilascia le mappe. Per i segmenti della cartella temporanea
+         * l'indice non viene forzato su disco e si cancella all'uscita.
+         */
+        void close(boolean temporary) throws IOException {
+            List<String> peers = sortedByHash(byPeer);
+            List<String> resources = sortedByHash(byResource);
+            List<byte[]> peerNames = encodeNames(peers);
+            List<byte[]> resourceNames = encodeNames(resources);
+            long size = HEADER_BYTES + (long) ENTRY_BYTES * (peers.size() + resources.size());
+            for (byte[] name : peerNames) {
+                size += 4 + name.length;
+            }
+            for (byte[] name : resourceNames) {
+                size += 4 + name.length;
+            }
+            for (Positions p : byPeer.values()) {
+                size += 4L * p.size;
+            }
+            for (Positions p : byResource.values()) {
+                size += 4L * p.size;
+            }
+            ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(size));
+            out.putInt(MAGIC).putInt(VERSION).putLong(length).putInt(count).putLong(minTime).putLong(maxTime);
+            out.putInt(peers.size()).putInt(resources.size());
+            int names = HEADER_BYTES + ENTRY_BYTES * (peers.size() + resources.size());
+            int postings = names;
+            for (byte[] name : peerNames) {
+                postings += 4 + name.length;
+            }
+            for (byte[] name : resourceNames) {
+                postings += 4 + name.length;
+            }
+            int[] cursor = {names, postings};
+            writeTable(out, peers, peerNames, byPeer, cursor);
+            writeTable(out, resources, resourceNames, byResource, cursor);
+            for (byte[] name : peerNames) {
+                out.putInt(name.length).put(name);
+            }
+            for (byte[] name : resourceNames) {
+                out.putInt(name.length).put(name);
+            }
+            for (String peer : peers) {
+                Positions p = byPeer.get(peer);
+                out.asIntBuffer().put(p.values, 0, p.size);
+                out.position(out.position() + 4 * p.size);
+            }
+            for (String resource : resources) {
+                Positions p = byResource.get(resource);
+                out.asIntBuffer().put(p.values, 0, p.size);
+                out.position(out.position() + 4 * p.size);
+            }
+            out.flip();
+
+            Path indexPath = indexPath(path);
+            Path tmp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+                if (!temporary) {
+                    channel.force(false);
+                }
+            }
+            Files.move(tmp, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (temporary) {
+                indexPath.toFile().deleteOnExit();
+            }
+            closed = true;
+            byPeer = null;
+            byResource = null;
+        }
+
+        // Chiavi ordinate per hash, come nelle tabelle del file indice
+        private static List<String> sortedByHash(Map<String, Positions> map) {
+            List<String> keys = new ArrayList<>(map.keySet());
+            keys.sort(Comparator.comparingInt(String::hashCode));
+            return keys;
+        }
+
+        private static List<byte[]> encodeNames(List<String> keys) {
+            List<byte[]> names = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                names.add(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return names;
+        }
+
+        // Scrive le voci di una tabella; cursor contiene la prossima posizione libera per nomi e posizioni
+        private static void writeTable(ByteBuffer out, List<String> keys, List<byte[]> names,
+                                       Map<String, Positions> map, int[] cursor) {
+            for (int i = 0; i < keys.size(); i++) {
+                int n = map.get(keys.get(i)).size;
+                out.putInt(keys.get(i).hashCode()).putInt(cursor[0]).putInt(cursor[1]).putInt(n);
+                cursor[0] += 4 + names.get(i).length;
+                cursor[1] += 4 * n;
+            }
+        }
+
+        boolean overlaps(Filter filter) {
+            return (filter.since == null || maxTime >= toNanos(filter.since))
+                    && (filter.until == null || minTime <= toNanos(filter.until));
+        }
+
+        /**
+         * Ritorna le posizioni dei record del peer e/o della risorsa del filtro (array vuoto se
+         * non ce ne sono), oppure null se il filtro non indica né peer né risorsa.
+         * Solo per il segmento aperto, sotto il lock del DownloadLog.
+         */
+        int[] candidates(Filter filter) {
+            int[] result = null;
+            if (filter.peer != null) {
+                Positions p = byPeer.get(filter.peer);
+                result = p == null ? new int[0] : p.toArray();
+            }
+            if (filter.resource != null) {
+                Positions r = byResource.get(filter.resource);
+                int[] byRes = r == null ? new int[0] : r.toArray();
+                result = result == null ? byRes : intersect(result, byRes);
+            }
+            return result;
+        }
+
+        /** Come candidates, ma per un segmento chiuso: cerca nel file indice mappato in memoria */
+        int[] candidatesOnDisk(Filter filter) throws IOException {
+            if (filter.peer == null && filter.resource == null) {
+                return null;
+            }
+            ByteBuffer index = mapIndex();
+            int peers = index.getInt(HEADER_BYTES - 8);
+            int resources = index.getInt(HEADER_BYTES - 4);
+            int[] result = null;
+            if (filter.peer != null) {
+                result = lookup(index, HEADER_BYTES, peers, filter.peer);
+            }
+            if (filter.resource != null) {
+                int[] byRes = lookup(index, HEADER_BYTES + ENTRY_BYTES * peers, resources, filter.resource);
+                result = result == null ? byRes : intersect(result, byRes);
+            }
+            return result;
+        }
+
+        // Ricerca binaria per hash nella tabella di n voci che inizia a table, poi confronto dei nomi
+        private static int[] lookup(ByteBuffer index, int table, int n, String key) {
+            int hash = key.hashCode();
+            int low = 0;
+            int high = n;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (index.getInt(table + mid * ENTRY_BYTES) < hash) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+            for (int i = low; i < n && index.getInt(table + i * ENTRY_BYTES) == hash; i++) {
+                int entry = table + i * ENTRY_BYTES;
+                int name = index.getInt(entry + 4);
+                if (index.getInt(name) == wanted.length
+                        && index.slice(name + 4, wanted.length).equals(ByteBuffer.wrap(wanted))) {
+                    int[] positions = new int[index.getInt(entry + 12)];
+                    index.slice(index.getInt(entry + 8), 4 * positions.length).asIntBuffer().get(positions);
+                    return positions;
+                }
+            }
+            return new int[0];
+        }
+
+        // Mappa in memoria i primi length byte del file (il segmento aperto può crescere dopo)
+        ByteBuffer map(long length) throws IOException {
+            MappedByteBuffer current = mapped;
+            if (current != null && current.capacity() == length) {
+                return current.duplicate();
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                mapped = buffer;
+                return buffer.duplicate();
+            }
+        }
+
+        private ByteBuffer mapIndex() throws IOException {
+            MappedByteBuffer current = mappedIndex;
+            if (current == null) {
+                try (FileChannel channel = FileChannel.open(indexPath(path), StandardOpenOption.READ)) {
+                    current = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    mappedIndex = current;
+                }
+            }
+            return current.duplicate();
+        }
+
+        // Intersezione di due elenchi di posizioni crescenti
+        private static int[] intersect(int[] a, int[] b) {
+            int[] result = new int[Math.min(a.length, b.length)];
+            int i = 0;
+            int j = 0;
+            int n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+    }
+
+    // Elenco crescente di posizioni nel segmento, senza un oggetto Integer per ogni record
+    private static class Positions {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    // Nanosecondi dall'epoch; gli istanti fuori dall'intervallo di un long (oltre il 2262) vengono saturati
+    static long toNanos(Instant instant) {
+        try {
+            return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+        } catch (ArithmeticException e) {
+            return instant.getEpochSecond() < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Criteri di ricerca: ogni campo null non filtra. peer corrisponde sia alla sorgente sia
+     * al destinatario; since e until sono inclusi.
+     */
+    static class Filter {
+        final String peer;
+        final String resource;
+        final Instant since;
+        final Instant until;
+
+        Filter(String peer, String resource, Instant since, Instant until) {
+            this.peer = peer;
+            this.resource = resource;
+            this.since = since;
+            this.until = until;
+        }
+
+        boolean matches(DownloadLogEntry entry) {
+            return (peer == null || peer.equals(entry.getFromPeer()) || peer.equals(entry.getToPeer()))
+                    && (resource == null || resource.equals(entry.getResource()))
+                    && (since == null || !entry.getTimestamp().isBefore(since))
+                    && (until == null || !entry.getTimestamp().isAfter(until));
+        }
+    }
+
+    /**
+     * Stato del log da salvare nella fotografia: fin dove arrivano i segmenti su disco
+     * e i tentativi ancora in memoria. journalSequence è l'ultima sequenza del journal
+     * i cui log sono compresi.
+     */
+    static class Checkpoint {
+        final long journalSequence;
+        final int segment;
+        final long length;
+        final List<DownloadLogEntry> recent;
+
+        Checkpoint(long journalSequence, int segment, long length, List<DownloadLogEntry> recent) {
+            this.journalSequence = journalSequence;
+            this.segment = segment;
+            this.length = length;
+            this.recent = recent;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package Master;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Insieme immutabile e compresso di id non negativi, organizzato come una roaring bitmap:
+ * gli id sono divisi in blocchi di 65536 secondo i 16 bit alti, e ogni blocco è un contenitore
+ * scelto in base a quanti id contiene: fino a ARRAY_MAX un array ordinato dei 16 bit bassi
+ * (2 byte per id), oltre una bitmap di 65536 bit (8 KB fissi).
+ *
+ * with e without ritornano un nuovo IdBitmap e copiano solo il contenitore modificato: gli altri
+ * sono condivisi con la versione precedente, che resta valida. Chi ha letto un IdBitmap lo può
+ * quindi usare senza lock e senza copiarlo. Intersezione e unione lavorano contenitore per
+ * contenitore, con AND e OR a 64 bit alla volta tra bitmap.
+ */
+final class IdBitmap {
+
+    static final IdBitmap EMPTY = new IdBitmap(new char[0], new Container[0], 0);
+
+    // oltre questo numero di id una bitmap (8 KB) occupa meno di un array
+    private static final int ARRAY_MAX = 4096;
+
+    // 16 bit alti dei blocchi presenti, in ordine crescente, e i rispettivi contenitori (mai vuoti)
+    private final char[] keys;
+    private final Container[] containers;
+    private final int cardinality;
+
+    private IdBitmap(char[] keys, Container[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    boolean contains(int id) {
+        int i = Arrays.binarySearch(keys, high(id));
+        return i >= 0 && containers[i].contains(low(id));
+    }
+
+    /** ritorna questo insieme con id aggiunto (this se c'era già) */
+    IdBitmap with(int id) {
+        char high = high(id);
+        int i = Arrays.binarySearch(keys, high);
+        if (i >= 0) {
+            Container changed = containers[i].add(low(id));
+            if (changed == containers[i]) {
+                return this;
+            }
+            Container[] next = containers.clone();
+            next[i] = changed;
+            return new IdBitmap(keys, next, cardinality + 1);
+        }
+        int at = -i - 1;
+        char[] nextKeys = new char[keys.length + 1];
+        Container[] next = new Container[keys.length + 1];
+        System.arraycopy(keys, 0, nextKeys, 0, at);
+        System.arraycopy(containers, 0, next, 0, at);
+        nextKeys[at] = high;
+        next[at] = new ArrayContainer(new char[] {low(id)});
+        System.arraycopy(keys, at, nextKeys, at + 1, keys.length - at);
+        System.arraycopy(containers, at, next, at + 1, keys.length - at);
+        return new IdBitmap(nextKeys, next, cardinality + 1);
+    }
+
+    /** ritorna questo insieme senza id (this se non c'era) */
+    IdBitmap without(int id) {
+        int i = Arrays.binarySearch(keys, high(id));
+        if (i < 0) {
+            return this;
+        }
+        Container changed = containers[i].remove(low(id));
+        if (changed == containers[i]) {
+            return this;
+        }
+        if (changed != null) {
+            Container[] next = containers.clone();
+            next[i] = changed;
+            return new IdBitmap(keys, next, cardinality - 1);
+        }
+        // il blocco è rimasto vuoto e sparisce
+        char[] nextKeys = new char[keys.length - 1];
+        Container[] next = new Container[keys.length - 1];
+        System.arraycopy(keys, 0, nextKeys, 0, i);
+        System.arraycopy(containers, 0, next, 0, i);
+        System.arraycopy(keys, i + 1, nextKeys, i, keys.length - i - 1);
+        System.arraycopy(containers, i + 1, next, i, keys.length - i - 1);
+        return new IdBitmap(nextKeys, next, cardinality - 1);
+    }
+
+    /** ritorna gli id presenti sia qui sia in other */
+    IdBitmap and(IdBitmap other) {
+        char[] nextKeys = new char[Math.min(keys.length, other.keys.length)];
+        Container[] next = new Container[nextKeys.length];
+        int n = 0;
+        int total = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container c = containers[i].and(other.containers[j]);
+                if (c != null) {
+                    nextKeys[n] = keys[i];
+                    next[n++] = c;
+                    total += c.cardinality();
+                }
+                i++;
+                j++;
+            }
+        }
+        return total == 0 ? EMPTY : new IdBitmap(Arrays.copyOf(nextKeys, n), Arrays.copyOf(next, n), total);
+    }
+
+    /** ritorna gli id presenti qui oppure in other */
+    IdBitmap or(IdBitmap other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        char[] nextKeys = new char[keys.length + other.keys.length];
+        Container[] next = new Container[nextKeys.length];
+        int n = 0;
+        int total = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            Container c;
+            if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+                nextKeys[n] = keys[i];
+                c = containers[i++];
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                nextKeys[n] = other.keys[j];
+                c = other.containers[j++];
+            } else {
+                nextKeys[n] = keys[i];
+                c = containers[i++].or(other.containers[j++]);
+            }
+            // i contenitori non modificati sono condivisi: sono immutabili
+            next[n++] = c;
+            total += c.cardinality();
+        }
+        return new IdBitmap(Arrays.copyOf(nextKeys, n), Arrays.copyOf(next, n), total);
+    }
+
+    /** passa ad action gli id in ordine crescente */
+    void forEach(IntConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /** ritorna il più piccolo id presente per cui test è vero, oppure -1; gli id successivi non vengono provati */
+    int find(IntPredicate test) {
+        for (int i = 0; i < keys.length; i++) {
+            int id = containers[i].find(keys[i] << 16, test);
+            if (id >= 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private static char high(int id) {
+        return (char) (id >>> 16);
+    }
+
+    private static char low(int id) {
+        return (char) id;
+    }
+
+    /**
+     * Blocco di 65536 id possibili, immutabile. add e remove ritornano this se non cambia nulla,
+     * null se il blocco resta vuoto, altrimenti un nuovo contenitore del tipo più adatto.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        abstract Container add(char low);
+
+        abstract Container remove(char low);
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract void forEach(int base, IntConsumer action);
+
+        abstract int find(int base, IntPredicate test);
+    }
+
+    /** Fino a ARRAY_MAX id: i 16 bit bassi in un array ordinato */
+    private static final class ArrayContainer extends Container {
+        private final char[] values;
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+            int i = Arrays.binarySearch(values, low);
+            if (i >= 0) {
+                return this;
+            }
+            if (values.length == ARRAY_MAX) {
+                return BitmapContainer.from(values).add(low);
+            }
+            int at = -i - 1;
+            char[] next = new char[values.length + 1];
+            System.arraycopy(values, 0, next, 0, at);
+            next[at] = low;
+            System.arraycopy(values, at, next, at + 1, values.length - at);
+            return new ArrayContainer(next);
+        }
+
+        @Override
+        Container remove(char low) {
+            int i = Arrays.binarySearch(values, low);
+            if (i < 0) {
+                return this;
+            }
+            if (values.length == 1) {
+                return null;
+            }
+            char[] next = new char[values.length - 1];
+            System.arraycopy(values, 0, next, 0, i);
+            System.arraycopy(values, i + 1, next, i, values.length - i - 1);
+            return new ArrayContainer(next);
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[Math.min(values.length, other.cardinality())];
+            int n = 0;
+            if (other instanceof ArrayContainer array) {
+                char[] b = array.values;
+                int i = 0;
+                int j = 0;
+                while (i < values.length && j < b.length) {
+                    if (values[i] < b[j]) {
+                        i++;
+                    } else if (values[i] > b[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (char v : values) {
+                    if (other.contains(v)) {
+                        result[n++] = v;
+                    }
+                }
+            }
+            return n == 0 ? null : new ArrayContainer(Arrays.copyOf(result, n));
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            char[] b = ((ArrayContainer) other).values;
+            char[] result = new char[values.length + b.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < values.length || j < b.length) {
+                if (j == b.length || (i < values.length && values[i] < b[j])) {
+                    result[n++] = values[i++];
+                } else if (i == values.length || values[i] > b[j]) {
+                    result[n++] = b[j++];
+                } else {
+                    result[n++] = values[i++];
+                    j++;
+                }
+            }
+            return n <= ARRAY_MAX ? new ArrayContainer(Arrays.copyOf(result, n))
+                    : BitmapContainer.from(Arrays.copyOf(result, n));
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (char v : values) {
+                action.accept(base | v);
+            }
+        }
+
+        @Override
+        int find(int base, IntPredicate test) {
+            for (char v : values) {
+                if (test.test(base | v)) {
+                    return base | v;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** Oltre ARRAY_MAX id: un bit per ognuno dei 65536 id del blocco */
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        static BitmapContainer from(char[] values) {
+            long[] words = new long[1024];
+            for (char v : values) {
+                words[v >>> 6] |= 1L << v;
+            }
+            return new BitmapContainer(words, values.length);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+            if (contains(low)) {
+                return this;
+            }
+            long[] next = words.clone();
+            next[low >>> 6] |= 1L << low;
+            return new BitmapContainer(next, cardinality + 1);
+        }
+
+        @Override
+        Container remove(char low) {
+            if (!contains(low)) {
+                return this;
+            }
+            if (cardinality - 1 <= ARRAY_MAX) {
+                return toArray(words, cardinality - 1, low);
+            }
+            long[] next = words.clone();
+            next[low >>> 6] &= ~(1L << low);
+            return new BitmapContainer(next, cardinality - 1);
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] b = ((BitmapContainer) other).words;
+            long[] result = new long[1024];
+            int count = 0;
+            for (int i = 0; i < result.length; i++) {
+                result[i] = words[i] & b[i];
+                count += Long.bitCount(result[i]);
+            }
+            if (count == 0) {
+                return null;
+            }
+            return count <= ARRAY_MAX ? toArray(result, count, -1) : new BitmapContainer(result, count);
+        }
+
+        @Override
+        Container or(Container other) {
+            long[] result = words.clone();
+            int count = cardinality;
+            if (other instanceof ArrayContainer array) {
+                for (char v : array.values) {
+                    long bit = 1L << v;
+                    if ((result[v >>> 6] & bit) == 0) {
+                        result[v >>> 6] |= bit;
+                        count++;
+                    }
+                }
+            } else {
+                long[] b = ((BitmapContainer) other).words;
+                count = 0;
+                for (int i = 0; i < result.length; i++) {
+                    result[i] |= b[i];
+                    count += Long.bitCount(result[i]);
+                }
+            }
+            return new BitmapContainer(result, count);
+        }
+
+        @Override
+        void forEach(int base, IntConsumer action) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(base | (i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        int find(int base, IntPredicate test) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    int id = base | (i << 6) | Long.numberOfTrailingZeros(word);
+                    if (test.test(id)) {
+                        return id;
+                    }
+                    word &= word - 1;
+                }
+            }
+            return -1;
+        }
+
+        // Converte i bit in un array ordinato di count valori, saltando skip (-1 per non saltare nulla)
+        private static ArrayContainer toArray(long[] words, int count, int skip) {
+            char[] values = new char[count];
+            int n = 0;
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    int v = (i << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    if (v != skip) {
+                        values[n++] = (char) v;
+                    }
+                }
+            }
+            return new ArrayContainer(values);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package Master;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dizionario che associa a ogni nome (risorsa o peer) un id intero denso, 0, 1, 2, ...
+ * Chi tiene molti riferimenti allo stesso nome conserva solo l'int: la stringa esiste una volta
+ * sola, qui.
+ * Gli id dati da idOf sono permanenti. Quelli dati da acquire contano i riferimenti: quando
+ * release li porta a zero nome e id vengono liberati e l'id viene riassegnato al prossimo nome
+ * nuovo, così il dizionario non cresce con i nomi che non servono più.
+ * Per uno stesso dizionario si usa l'uno o l'altro modo, non entrambi.
+ * Thread-safe: la ricerca di un nome già noto non prende lock.
+ */
+class IdDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    // riferimenti a ogni id dato da acquire
+    private int[] references = new int[64];
+    // id liberati, riusati prima di assegnarne di nuovi
+    private int[] free = new int[16];
+    private int freeCount;
+    private int size;
+
+    /** ritorna l'id di name, assegnandone uno nuovo se il nome non è ancora noto */
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : assign(name);
+    }
+
+    /** ritorna l'id di name, oppure -1 se il nome non è registrato */
+    int find(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    /** ritorna il nome con l'id indicato, null se l'id è stato liberato */
+    String name(int id) {
+        return names[id];
+    }
+
+    /** ritorna il numero di nomi registrati */
+    synchronized int size() {
+        return size - freeCount;
+    }
+
+    /** ritorna l'id di name, assegnandolo se serve, e aggiunge un riferimento */
+    synchronized int acquire(String name) {
+        int id = assign(name);
+        references[id]++;
+        return id;
+    }
+
+    /** toglie un riferimento all'id; all'ultimo il nome viene dimenticato e l'id può essere riassegnato */
+    synchronized void release(int id) {
+        if (--references[id] > 0) {
+            return;
+        }
+        ids.remove(names[id]);
+        names[id] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = id;
+    }
+
+    private synchronized int assign(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        int id;
+        String[] current = names;
+        if (freeCount > 0) {
+            id = free[--freeCount];
+        } else {
+            id = size++;
+            if (id == current.length) {
+                current = Arrays.copyOf(current, id * 2);
+                references = Arrays.copyOf(references, id * 2);
+            }
+        }
+        current[id] = name;
+        // l'array viene pubblicato prima dell'id: chi trova l'id trova anche il nome
+        names = current;
+        ids.put(name, id);
+        return id;
+    }
+}
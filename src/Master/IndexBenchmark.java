@@ -0,0 +1,201 @@
+package Master;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Confronta l'indice risorsa -> peer di MasterState con quello usato prima delle IdBitmap:
+ *   stringhe - ConcurrentHashMap risorsa -> insieme concorrente dei nomi dei peer, letto con Set.copyOf
+ *   bitmap   - id dei peer da IdDictionary e ConcurrentHashMap id risorsa -> IdBitmap, aggiornata con compute
+ * Entrambi gli indici sono costruiti con gli stessi peer: PEERS peer con RESOURCES_PER_PEER risorse ciascuno
+ * su RESOURCES risorse. Ogni peer ha "all"; i pari hanno "even", la prima metà "low" (50k peer ciascuna);
+ * le altre risorse sono distribuite uniformemente, con circa 850 peer l'una.
+ * Misura tempo di costruzione, memoria occupata, lettura dei peer di "all", intersezione di "even" e "low"
+ * e unione di dieci risorse piccole. La vecchia struttura non aveva operazioni di insieme:
+ * per lei intersezione e unione sono copie con retainAll / addAll.
+ * Non fa parte del master: si compila con il resto dei sorgenti e si esegue con
+ *   java -Xmx1g -cp <classi> Master.IndexBenchmark
+ * La memoria è letta da Runtime dopo System.gc(), quindi è indicativa; quella delle bitmap comprende
+ * il dizionario dei nomi dei peer, riportato anche a parte.
+ */
+class IndexBenchmark {
+
+    private static final int PEERS = 100_000;
+    private static final int RESOURCES = 2_000;
+    private static final int RESOURCES_PER_PEER = 20;
+    // risorse uniformi, oltre a "all", "even" e "low"
+    private static final int SMALL = RESOURCES - 3;
+    private static final int SMALL_PER_PEER = RESOURCES_PER_PEER - 3;
+    private static final int BUILD_ROUNDS = 5;
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1_000;
+
+    // impedisce al JIT di eliminare le operazioni misurate
+    private static long sink;
+
+    public static void main(String[] args) {
+        String[] peerNames = new String[PEERS];
+        for (int p = 0; p < PEERS; p++) {
+            peerNames[p] = "repo" + p + "_" + (10_000 + p % 50_000);
+        }
+        String[] smallNames = new String[SMALL];
+        for (int r = 0; r < SMALL; r++) {
+            smallNames[r] = "file" + r + ".txt";
+        }
+
+        // costruzione: le prime volte servono da riscaldamento, conta la migliore
+        long stringBuild = Long.MAX_VALUE;
+        long bitmapBuild = Long.MAX_VALUE;
+        for (int i = 0; i < BUILD_ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += buildStrings(peerNames, smallNames).size();
+            stringBuild = Math.min(stringBuild, System.nanoTime() - start);
+            start = System.nanoTime();
+            sink += new BitmapIndex(peerNames, smallNames).index.size();
+            bitmapBuild = Math.min(bitmapBuild, System.nanoTime() - start);
+        }
+
+        long before = usedMemory();
+        Map<String, Set<String>> strings = buildStrings(peerNames, smallNames);
+        long stringHeap = usedMemory() - before;
+        before = usedMemory();
+        BitmapIndex bitmaps = new BitmapIndex(peerNames, smallNames);
+        long bitmapHeap = usedMemory() - before;
+        // la parte dovuta al dizionario dei nomi dei peer, che l'indice di stringhe non ha
+        before = usedMemory();
+        IdDictionary dictionary = new IdDictionary();
+        for (String peer : peerNames) {
+            dictionary.acquire(peer);
+        }
+        long dictionaryHeap = usedMemory() - before;
+
+        String[] ten = new String[10];
+        int[] tenIds = new int[10];
+        for (int i = 0; i < ten.length; i++) {
+            ten[i] = smallNames[i * 97];
+            tenIds[i] = bitmaps.resources.find(ten[i]);
+        }
+        int all = bitmaps.resources.find("all");
+        int even = bitmaps.resources.find("even");
+        int low = bitmaps.resources.find("low");
+
+        double stringLookup = measure(() -> Set.copyOf(strings.get("all")).size());
+        double bitmapLookup = measure(() -> bitmaps.index.get(all).cardinality());
+        double stringIterate = measure(() -> {
+            long sum = 0;
+            for (String peer : Set.copyOf(strings.get("all"))) {
+                sum += peer.length();
+            }
+            return sum;
+        });
+        double bitmapIterate = measure(() -> {
+            long[] sum = new long[1];
+            bitmaps.index.get(all).forEach(id -> sum[0] += bitmaps.peers.name(id).length());
+            return sum[0];
+        });
+        double stringAnd = measure(() -> {
+            Set<String> result = new HashSet<>(Set.copyOf(strings.get("even")));
+            result.retainAll(Set.copyOf(strings.get("low")));
+            return result.size();
+        });
+        double bitmapAnd = measure(() -> bitmaps.index.get(even).and(bitmaps.index.get(low)).cardinality());
+        double stringOr = measure(() -> {
+            Set<String> result = new HashSet<>();
+            for (String resource : ten) {
+                result.addAll(Set.copyOf(strings.get(resource)));
+            }
+            return result.size();
+        });
+        double bitmapOr = measure(() -> {
+            IdBitmap result = IdBitmap.EMPTY;
+            for (int r : tenIds) {
+                result = result.or(bitmaps.index.get(r));
+            }
+            return result.cardinality();
+        });
+
+        System.out.printf("%d peer, %d risorse, %d risorse per peer%n", PEERS, RESOURCES, RESOURCES_PER_PEER);
+        System.out.printf("%-36s %14s %14s%n", "", "stringhe", "bitmap");
+        System.out.printf("%-36s %11.0f ms %11.0f ms%n", "costruzione dell'indice", stringBuild / 1e6, bitmapBuild / 1e6);
+        System.out.printf("%-36s %11.1f MB %11.1f MB%n", "memoria dell'indice", stringHeap / 1e6, bitmapHeap / 1e6);
+        System.out.printf("%-36s %14s %11.1f MB%n", "  di cui dizionario dei peer", "", dictionaryHeap / 1e6);
+        System.out.printf("%-36s %11.1f us %11.3f us%n", "peer di \"all\" (100k)", stringLookup / 1e3, bitmapLookup / 1e3);
+        System.out.printf("%-36s %11.1f us %11.1f us%n", "peer di \"all\", scorsi per nome", stringIterate / 1e3, bitmapIterate / 1e3);
+        System.out.printf("%-36s %11.1f us %11.1f us%n", "\"even\" AND \"low\" (50k e 50k)", stringAnd / 1e3, bitmapAnd / 1e3);
+        System.out.printf("%-36s %11.1f us %11.1f us%n", "OR di 10 risorse piccole", stringOr / 1e3, bitmapOr / 1e3);
+        // gli indici restano raggiungibili fino alla fine, così la memoria misurata non viene raccolta prima
+        sink += strings.size() + bitmaps.index.size() + dictionary.size();
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    // Indice come prima delle IdBitmap: per ogni risorsa l'insieme concorrente dei nomi dei peer
+    private static Map<String, Set<String>> buildStrings(String[] peerNames, String[] smallNames) {
+        Map<String, Set<String>> index = new ConcurrentHashMap<>();
+        for (int p = 0; p < PEERS; p++) {
+            String peer = peerNames[p];
+            for (String resource : resourcesOf(p, smallNames)) {
+                index.computeIfAbsent(resource, k -> ConcurrentHashMap.newKeySet()).add(peer);
+            }
+        }
+        return index;
+    }
+
+    // Indice di MasterState: id dei peer dal dizionario e una bitmap immutabile per risorsa
+    private static final class BitmapIndex {
+        final IdDictionary peers = new IdDictionary();
+        final IdDictionary resources = new IdDictionary();
+        final Map<Integer, IdBitmap> index = new ConcurrentHashMap<>();
+
+        BitmapIndex(String[] peerNames, String[] smallNames) {
+            for (int p = 0; p < PEERS; p++) {
+                int peer = peers.acquire(peerNames[p]);
+                for (String resource : resourcesOf(p, smallNames)) {
+                    index.compute(resources.idOf(resource), (k, ids) -> (ids == null ? IdBitmap.EMPTY : ids).with(peer));
+                }
+            }
+        }
+    }
+
+    // Le risorse del peer p: "all", "even" e "low" quando gli spettano, le altre fino a RESOURCES_PER_PEER
+    private static String[] resourcesOf(int p, String[] smallNames) {
+        String[] resources = new String[RESOURCES_PER_PEER];
+        int n = 0;
+        resources[n++] = "all";
+        if (p % 2 == 0) {
+            resources[n++] = "even";
+        }
+        if (p < PEERS / 2) {
+            resources[n++] = "low";
+        }
+        // al più SMALL_PER_PEER + 2 risorse consecutive modulo SMALL: sono tutte diverse
+        for (int k = 0; n < RESOURCES_PER_PEER; k++) {
+            resources[n++] = smallNames[(int) (((long) p * SMALL_PER_PEER + k) % SMALL)];
+        }
+        return resources;
+    }
+
+    // Tempo medio in nanosecondi di un'esecuzione, dopo il riscaldamento
+    private static double measure(LongSupplier op) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += op.getAsLong();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += op.getAsLong();
+        }
+        return (double) (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,130 @@
+package Master;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Insieme di interi non negativi (gli id di un IdDictionary) senza un Integer per elemento:
+ * tabella hash a indirizzamento aperto con scansione lineare, circa 8 byte per elemento
+ * contro gli oltre 40 di un HashSet. Non thread-safe.
+ */
+class IntSet {
+
+    private static final int FREE = -1;
+
+    private int[] table;
+    private int size;
+
+    IntSet() {
+        this(4);
+    }
+
+    IntSet(int expected) {
+        int capacity = 8;
+        while (capacity * 3 < expected * 4) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        Arrays.fill(table, FREE);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int value) {
+        int mask = table.length - 1;
+        for (int i = hash(value) & mask; table[i] != FREE; i = (i + 1) & mask) {
+            if (table[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** aggiunge value e ritorna true se non era presente */
+    boolean add(int value) {
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        for (; table[i] != FREE; i = (i + 1) & mask) {
+            if (table[i] == value) {
+                return false;
+            }
+        }
+        table[i] = value;
+        // riempimento massimo 3/4, oltre le sequenze di scansione si allungano troppo
+        if (++size * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+        return true;
+    }
+
+    /** toglie value e ritorna true se era presente */
+    boolean remove(int value) {
+        int mask = table.length - 1;
+        int i = hash(value) & mask;
+        for (; table[i] != value; i = (i + 1) & mask) {
+            if (table[i] == FREE) {
+                return false;
+            }
+        }
+        // riporta indietro gli elementi successivi della sequenza, così nessuna ricerca si interrompe sul buco
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != FREE; j = (j + 1) & mask) {
+            int home = hash(table[j]) & mask;
+            // l'elemento in j può occupare gap solo se la sua posizione naturale non è tra gap (escluso) e j
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = FREE;
+        size--;
+        return true;
+    }
+
+    void forEach(IntConsumer action) {
+        for (int value : table) {
+            if (value != FREE) {
+                action.accept(value);
+            }
+        }
+    }
+
+    int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        for (int value : table) {
+            if (value != FREE) {
+                values[n++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void resize(int capacity) {
+        int[] old = table;
+        table = new int[capacity];
+        Arrays.fill(table, FREE);
+        int mask = capacity - 1;
+        for (int value : old) {
+            if (value != FREE) {
+                int i = hash(value) & mask;
+                while (table[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+
+    // gli id sono consecutivi: la moltiplicazione li sparpaglia sulla tabella
+    private static int hash(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
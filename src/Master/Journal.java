@@ -0,0 +1,510 @@
+package Master;
+
+import Common.DownloadLogEntry;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Journal append-only (write-ahead log) delle modifiche allo stato del master.
+ * Ogni modifica di MasterState viene accodata come record con un numero di sequenza crescente;
+ * un solo thread scrive i record accodati sul FileChannel e chiama force(): le modifiche arrivate
+ * mentre è in corso un fsync vengono scritte insieme al giro successivo (group commit), quindi
+ * il costo di un fsync è condiviso da tutti i comandi concorrenti.
+ * Chi ha modificato lo stato attende con awaitOwn() che i propri record siano su disco prima di
+ * rispondere al peer.
+ *
+ * Il journal è diviso in segmenti journal-<primaSequenza>.log: a ogni fotografia (vedi MasterStore)
+ * si apre un nuovo segmento e quelli precedenti, già contenuti nella fotografia, vengono cancellati.
+ *
+ * Formato di un record (interi big-endian):
+ *   <int lunghezza del corpo> <int CRC32 del corpo>
+ *   corpo: <long sequenza> <byte tipo> <campi del tipo>
+ * Stringhe: <int lunghezza in byte> <byte UTF-8>. Un record troncato o con CRC errato segna
+ * la fine del segmento (scrittura interrotta da un crash).
+ */
+class Journal {
+
+    static final byte REGISTER = 1;
+    static final byte UPDATE = 2;
+    static final byte UPDATE_ADD = 3;
+    static final byte UPDATE_REMOVE = 4;
+    static final byte REMOVE = 5;
+    static final byte DOWNLOAD_FAIL = 6;
+    static final byte DOWNLOAD_LOG = 7;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // lunghezza e CRC davanti al corpo
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final Path dir;
+    // protegge i record accodati e la sequenza; il thread di scrittura lo usa per attendere nuovi record
+    private final Object lock = new Object();
+    // protegge durableSequence; su questo attendono i thread che aspettano l'fsync
+    private final Object durable = new Object();
+    // record accodati e non ancora scritti; il thread di scrittura lo scambia con writing
+    private ByteBuffer pending = ByteBuffer.allocate(1024 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(1024 * 1024);
+    private long nextSequence;
+    // rotazione richiesta: i byte prima di rotateMark vanno nel segmento corrente, gli altri nel nuovo
+    private long rotateSequence = -1;
+    private int rotateMark;
+    private boolean closed;
+    private long durableSequence;
+    private long segmentStart;
+    private volatile boolean failed;
+    private FileChannel channel;
+    private final Thread writer;
+    private final CRC32 crc = new CRC32();
+    // ultima sequenza accodata dal thread corrente, attesa da awaitOwn()
+    private final ThreadLocal<long[]> lastOwn = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Apre un nuovo segmento in dir a partire dalla sequenza nextSequence e avvia il thread di scrittura.
+     */
+    Journal(Path dir, long nextSequence) throws IOException {
+        this.dir = dir;
+        this.nextSequence = nextSequence;
+        this.durableSequence = nextSequence - 1;
+        this.segmentStart = nextSequence;
+        this.channel = openSegment(nextSequence);
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** ritorna l'ultima sequenza assegnata */
+    long getLastSequence() {
+        synchronized (lock) {
+            return nextSequence - 1;
+        }
+    }
+
+    void appendRegister(String peerId, InetAddress address, int port, Collection<String> resources) {
+        synchronized (lock) {
+            int start = begin(REGISTER);
+            putString(peerId);
+            byte[] ip = address.getAddress();
+            ensure(1 + ip.length + 4);
+            pending.put((byte) ip.length).put(ip).putInt(port);
+            putStrings(resources);
+            end(start);
+        }
+    }
+
+    /** UPDATE completo: le risorse sostituiscono quelle del peer, che passa alla versione indicata */
+    void appendUpdate(String peerId, long version, Collection<String> resources) {
+        synchronized (lock) {
+            int start = begin(UPDATE);
+            putString(peerId);
+            ensure(8);
+            pending.putLong(version);
+            putStrings(resources);
+            end(start);
+        }
+    }
+
+    void appendDelta(String peerId, long version, Collection<String> resources, boolean add) {
+        synchronized (lock) {
+            int start = begin(add ? UPDATE_ADD : UPDATE_REMOVE);
+            putString(peerId);
+            ensure(8);
+            pending.putLong(version);
+            putStrings(resources);
+            end(start);
+        }
+    }
+
+    void appendRemove(String peerId) {
+        synchronized (lock) {
+            int start = begin(REMOVE);
+            putString(peerId);
+            end(start);
+        }
+    }
+
+    /** la risorsa è stata tolta al peer, che passa alla versione indicata */
+    void appendDownloadFail(String resource, String peerId, long version) {
+        synchronized (lock) {
+            int start = begin(DOWNLOAD_FAIL);
+            putString(resource);
+            putString(peerId);
+            ensure(8);
+            pending.putLong(version);
+            end(start);
+        }
+    }
+
+    void appendDownloadLog(DownloadLogEntry entry) {
+        synchronized (lock) {
+            int start = begin(DOWNLOAD_LOG);
+            ensure(12);
+            pending.putLong(entry.getTimestamp().getEpochSecond()).putInt(entry.getTimestamp().getNano());
+            putString(entry.getResource());
+            putString(entry.getFromPeer());
+            putString(entry.getToPeer());
+            ensure(1);
+            pending.put((byte) (entry.isSuccess() ? 1 : 0));
+            end(start);
+        }
+    }
+
+    /**
+     * Attende che i record accodati dal thread corrente siano su disco.
+     * Se il journal non riesce più a scrivere ritorna subito: il master continua solo in memoria.
+     */
+    void awaitOwn() {
+        long[] own = lastOwn.get();
+        long sequence = own[0];
+        if (sequence == 0) {
+            return;
+        }
+        own[0] = 0;
+        synchronized (durable) {
+            while (durableSequence < sequence && !failed) {
+                try {
+                    durable.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Chiude il segmento corrente e ne apre uno nuovo dalla prossima sequenza, che viene ritornata:
+     * tutti i record precedenti restano nei segmenti vecchi, tutti i successivi vanno nel nuovo.
+     * Ritorna dopo che il nuovo segmento è stato aperto.
+     */
+    long rotate() {
+        long sequence;
+        synchronized (lock) {
+            sequence = nextSequence;
+            rotateSequence = sequence;
+            rotateMark = pending.position();
+            lock.notifyAll();
+        }
+        synchronized (durable) {
+            while (segmentStart < sequence && !failed) {
+                try {
+                    durable.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return sequence;
+    }
+
+    /** cancella i segmenti che contengono solo record precedenti a sequence */
+    void deleteSegmentsBefore(long sequence) throws IOException {
+        TreeMap<Long, Path> segments = listSegments(dir);
+        for (var segment : segments.headMap(sequence).entrySet()) {
+            // un segmento finisce dove inizia il successivo
+            Long next = segments.higherKey(segment.getKey());
+            if (next != null && next <= sequence) {
+                Files.deleteIfExists(segment.getValue());
+            }
+        }
+    }
+
+    /** scrive gli ultimi record, ferma il thread di scrittura e chiude il segmento */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Inizia un record: spazio per lunghezza e CRC, poi sequenza e tipo. Ritorna la posizione di inizio
+    private int begin(byte type) {
+        ensure(RECORD_HEADER + 9);
+        int start = pending.position();
+        pending.position(start + RECORD_HEADER);
+        long sequence = nextSequence++;
+        pending.putLong(sequence).put(type);
+        lastOwn.get()[0] = sequence;
+        return start;
+    }
+
+    // Completa il record scrivendo lunghezza e CRC del corpo e sveglia il thread di scrittura
+    private void end(int start) {
+        int bodyStart = start + RECORD_HEADER;
+        int length = pending.position() - bodyStart;
+        crc.reset();
+        crc.update(pending.array(), pending.arrayOffset() + bodyStart, length);
+        pending.putInt(start, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+        lock.notifyAll();
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensure(4 + bytes.length);
+        pending.putInt(bytes.length).put(bytes);
+    }
+
+    private void putStrings(Collection<String> values) {
+        ensure(4);
+        pending.putInt(values.size());
+        for (String value : values) {
+            putString(value);
+        }
+    }
+
+    // Ingrandisce il buffer dei record accodati se non ha spazio per altri bytes byte
+    private void ensure(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+    }
+
+    // Thread di scrittura: scrive a blocchi i record accumulati e li rende durevoli con force()
+    private void writeLoop() {
+        while (true) {
+            long batchEnd;
+            long rotation;
+            int mark;
+            boolean last;
+            synchronized (lock) {
+                while (pending.position() == 0 && rotateSequence < 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                ByteBuffer batch = pending;
+                pending = writing;
+                writing = batch;
+                batchEnd = nextSequence - 1;
+                rotation = rotateSequence;
+                mark = rotateMark;
+                rotateSequence = -1;
+                last = closed;
+            }
+            try {
+                // dopo un errore i record vengono scartati: il master continua solo in memoria
+                if (!failed) {
+                    writing.flip();
+                    if (rotation >= 0) {
+                        // i record prima della rotazione chiudono il segmento corrente
+                        writeFully(writing.slice(0, mark));
+                        channel.force(false);
+                        channel.close();
+                        channel = openSegment(rotation);
+                        writing.position(mark);
+                    }
+                    writeFully(writing);
+                    channel.force(false);
+                    if (last) {
+                        channel.close();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Errore nella scrittura del journal, il master continua solo in memoria: " + e.getMessage());
+                failed = true;
+            } finally {
+                writing.clear();
+            }
+            synchronized (durable) {
+                durableSequence = batchEnd;
+                if (rotation >= 0) {
+                    segmentStart = rotation;
+                }
+                durable.notifyAll();
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        Path path = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        FileChannel segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        MasterStore.syncDirectory(dir);
+        return segment;
+    }
+
+    // Segmenti presenti nella cartella, ordinati per prima sequenza
+    private static TreeMap<Long, Path> listSegments(Path dir) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException ignored) {
+                    // non è un segmento del journal
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Riapplica allo stato i record dei segmenti in dir, in ordine di sequenza.
+     * I record precedenti a fromSequence sono già nella fotografia e vengono saltati, come i log
+     * di download con sequenza fino a logsUpTo. Gli altri record possono comunque essere già
+     * compresi nella fotografia (che viene scritta mentre il master lavora): l'applicazione è
+     * idempotente, perché REGISTER e UPDATE sostituiscono le risorse e la versione del peer, e le
+     * variazioni e i DOWNLOAD_FAIL si applicano solo alla versione che li precede.
+     * Ritorna l'ultima sequenza letta (fromSequence - 1 se non ce ne sono).
+     */
+    static long replay(Path dir, long fromSequence, long logsUpTo, MasterState state) throws IOException {
+        long last = fromSequence - 1;
+        for (Path segment : listSegments(dir).values()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 1 << 16))) {
+                last = Math.max(last, replaySegment(segment, in, fromSequence, logsUpTo, state));
+            }
+        }
+        return last;
+    }
+
+    private static long replaySegment(Path segment, DataInputStream in, long fromSequence, long logsUpTo,
+                                      MasterState state) throws IOException {
+        long last = -1;
+        byte[] body = new byte[4096];
+        CRC32 check = new CRC32();
+        while (true) {
+            int first = in.read();
+            if (first < 0) {
+                return last;
+            }
+            int length;
+            int expected;
+            try {
+                length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                expected = in.readInt();
+                if (length < 9 || length > MAX_RECORD_SIZE) {
+                    System.err.println("Journal " + segment.getFileName() + ": lunghezza non valida, record successivi ignorati");
+                    return last;
+                }
+                if (body.length < length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                in.readFully(body, 0, length);
+            } catch (EOFException e) {
+                // scrittura interrotta da un crash: il record non era stato confermato
+                System.err.println("Journal " + segment.getFileName() + " troncato: ultimo record ignorato");
+                return last;
+            }
+            check.reset();
+            check.update(body, 0, length);
+            if ((int) check.getValue() != expected) {
+                System.err.println("Journal " + segment.getFileName() + ": record corrotto, record successivi ignorati");
+                return last;
+            }
+            ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+            long sequence = record.getLong();
+            byte type = record.get();
+            last = sequence;
+            if (sequence < fromSequence) {
+                continue;
+            }
+            apply(type, sequence, record, logsUpTo, state);
+        }
+    }
+
+    private static void apply(byte type, long sequence, ByteBuffer record, long logsUpTo, MasterState state)
+            throws IOException {
+        switch (type) {
+            case REGISTER -> {
+                String peerId = getString(record);
+                byte[] ip = new byte[record.get()];
+                record.get(ip);
+                int port = record.getInt();
+                state.registerPeer(peerId, InetAddress.getByAddress(ip), port, getStrings(record));
+            }
+            case UPDATE -> {
+                String peerId = getString(record);
+                long version = record.getLong();
+                state.restoreResources(peerId, version, getStrings(record));
+            }
+            case UPDATE_ADD, UPDATE_REMOVE -> {
+                String peerId = getString(record);
+                long version = record.getLong();
+                state.applyResourceDelta(peerId, version, getStrings(record), type == UPDATE_ADD);
+            }
+            case REMOVE -> state.removePeer(getString(record));
+            case DOWNLOAD_FAIL -> {
+                String resource = getString(record);
+                String peerId = getString(record);
+                // i record scritti prima che DOWNLOAD_FAIL cambiasse la versione non la contengono
+                long version = record.remaining() >= 8 ? record.getLong() : -1;
+                state.restoreDownloadFail(resource, peerId, version);
+            }
+            case DOWNLOAD_LOG -> {
+                Instant timestamp = Instant.ofEpochSecond(record.getLong(), record.getInt());
+                String resource = getString(record);
+                String fromPeer = getString(record);
+                String toPeer = getString(record);
+                boolean success = record.get() != 0;
+                if (sequence > logsUpTo) {
+                    state.addDownloadLog(new DownloadLogEntry(timestamp, resource, fromPeer, toPeer, success));
+                }
+            }
+            default -> throw new IOException("Tipo di record sconosciuto nel journal: " + type);
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.getInt();
+        String s = new String(record.array(), record.arrayOffset() + record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return s;
+    }
+
+    private static List<String> getStrings(ByteBuffer record) {
+        int count = record.getInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(getString(record));
+        }
+        return values;
+    }
+
+    /** legge una stringa scritta come nel journal (usato anche dalla fotografia) */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,106 @@
+package Master;
+
+import Common.DownloadLogEntry;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Ring a capacità fissa dei tentativi di download più recenti, memorizzato per colonne:
+ * istante in nanosecondi dall'epoch in un long[], risorsa e peer come id di un IdDictionary
+ * in tre int[], esito in un BitSet. Circa 20 byte per tentativo, contro i circa 200 di un
+ * DownloadLogEntry con il suo Instant e le sue tre stringhe; i DownloadLogEntry vengono
+ * ricreati solo per i tentativi letti. Ogni tentativo tiene un riferimento ai suoi tre nomi nel
+ * dizionario: quando esce dal ring i nomi non più usati vengono liberati.
+ * Non thread-safe: usato sotto il lock di DownloadLog.
+ */
+class LogColumns {
+
+    private final IdDictionary names;
+    private final long[] times;
+    private final int[] resources;
+    private final int[] fromPeers;
+    private final int[] toPeers;
+    private final BitSet success;
+    // posizione del tentativo più vecchio e numero di tentativi presenti
+    private int head;
+    private int size;
+
+    LogColumns(int capacity, IdDictionary names) {
+        this.names = names;
+        this.times = new long[capacity];
+        this.resources = new int[capacity];
+        this.fromPeers = new int[capacity];
+        this.toPeers = new int[capacity];
+        this.success = new BitSet(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == times.length;
+    }
+
+    /** aggiunge un tentativo in coda; il ring non deve essere pieno */
+    void addLast(DownloadLogEntry entry) {
+        int slot = slot(size);
+        times[slot] = DownloadLog.toNanos(entry.getTimestamp());
+        resources[slot] = names.acquire(entry.getResource());
+        fromPeers[slot] = names.acquire(entry.getFromPeer());
+        toPeers[slot] = names.acquire(entry.getToPeer());
+        success.set(slot, entry.isSuccess());
+        size++;
+    }
+
+    /** ritorna l'i-esimo tentativo dal più vecchio */
+    DownloadLogEntry get(int i) {
+        int slot = slot(i);
+        long nanos = times[slot];
+        return new DownloadLogEntry(Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                Math.floorMod(nanos, 1_000_000_000L)),
+                names.name(resources[slot]), names.name(fromPeers[slot]), names.name(toPeers[slot]),
+                success.get(slot));
+    }
+
+    /** scarta i count tentativi più vecchi, rilasciando i loro nomi */
+    void removeFirst(int count) {
+        for (int i = 0; i < count; i++) {
+            int slot = slot(i);
+            names.release(resources[slot]);
+            names.release(fromPeers[slot]);
+            names.release(toPeers[slot]);
+        }
+        head = slot(count);
+        size -= count;
+    }
+
+    /** aggiunge a out, dal più vecchio, i tentativi che soddisfano il filtro */
+    void collect(DownloadLog.Filter filter, List<DownloadLogEntry> out) {
+        // i nomi del filtro diventano id: il confronto sulle colonne è tra interi
+        int peer = -1;
+        int resource = -1;
+        if (filter.peer != null && (peer = names.find(filter.peer)) < 0) {
+            return;
+        }
+        if (filter.resource != null && (resource = names.find(filter.resource)) < 0) {
+            return;
+        }
+        long since = filter.since == null ? Long.MIN_VALUE : DownloadLog.toNanos(filter.since);
+        long until = filter.until == null ? Long.MAX_VALUE : DownloadLog.toNanos(filter.until);
+        for (int i = 0; i < size; i++) {
+            int slot = slot(i);
+            if (times[slot] >= since && times[slot] <= until
+                    && (peer < 0 || fromPeers[slot] == peer || toPeers[slot] == peer)
+                    && (resource < 0 || resources[slot] == resource)) {
+                out.add(get(i));
+            }
+        }
+    }
+
+    private int slot(int i) {
+        int slot = head + i;
+        return slot < times.length ? slot : slot - times.length;
+    }
+}
@@ -1,5 +1,10 @@
 package Master;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Classe di entry-point che avvia il Master.
  * Contiene il metodo `main` usato per avviare il server Master su una porta specificata da linea di comando.
@@ -7,24 +12,49 @@ package Master;
 public class Master {
 
     public static void main(String[] args) {
-        // Controlla che ci sia esattamente un argomento (la porta)
-        if (args.length != 1) {
-            System.err.println("Uso: java Master.MasterMain <porta>");
-            // Termina il programma con codice di errore
-            System.exit(1);
+        // Controlla gli argomenti: la porta e, opzionali, la modalità del server e la cartella dati
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        Path dataDir = null;
+        int dataDirIndex = rest.indexOf("--data-dir");
+        if (dataDirIndex >= 0) {
+            if (dataDirIndex + 1 >= rest.size()) {
+                usage();
+            }
+            dataDir = Path.of(rest.get(dataDirIndex + 1));
+            rest.subList(dataDirIndex, dataDirIndex + 2).clear();
+        }
+        if (rest.size() < 1 || rest.size() > 2) {
+            usage();
         }
         int port;
         try {
             // Converte l'argomento da stringa a intero (porta)
-            port = Integer.parseInt(args[0]);
+            port = Integer.parseInt(rest.get(0));
         } catch (NumberFormatException ex) {
             // Se la conversione fallisce, l'argomento non è una porta valida --> termina con errore
-            System.err.println("Porta non valida: " + args[0]);
+            System.err.println("Porta non valida: " + rest.get(0));
+            System.exit(1);
+            return;
+        }
+        // blocking (default): un thread per peer; virtual: un virtual thread per peer (Java 21+);
+        // nio: Selector e pool fisso di worker, per molte connessioni
+        MasterServer.Mode mode;
+        try {
+            mode = rest.size() == 2 ? MasterServer.Mode.valueOf(rest.get(1).toUpperCase()) : MasterServer.Mode.BLOCKING;
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Modalità non valida: " + rest.get(1));
             System.exit(1);
             return;
         }
         // Crea un'istanza del server Master con la porta specificata e avvia il server
-        MasterServer server = new MasterServer(port);
+        // con --data-dir lo stato sopravvive al riavvio del master (vedi MasterStore)
+        MasterServer server = new MasterServer(port, mode, dataDir);
         server.start();
     }
+
+    private static void usage() {
+        System.err.println("Uso: java Master.Master <porta> [blocking|virtual|nio] [--data-dir <cartella>]");
+        // Termina il programma con codice di errore
+        System.exit(1);
+    }
 }
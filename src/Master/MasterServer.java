@@ -1,49 +1,110 @@
 package Master;
 
+import Common.VirtualThreads;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * Gestisce il ServerSocket e il thread-pool per le connessioni dei peer.
- * Metodi start() dichiarati synchronized per evitare race conditions nella fase di avvio/arresto del server.
+ * L'avvio (apertura del socket) e l'arresto sono sincronizzati per evitare race conditions tra i due.
  */
 class MasterServer {
 
     private final int port;
     // oggetto che contiene lo stato globale del sistema
     private final MasterState state = new MasterState();
+    /**
+     * Modalità di gestione delle connessioni, scelta all'avvio:
+     * BLOCKING usa un thread per peer (PeerHandler), VIRTUAL lo stesso codice ma su virtual thread,
+     * NIO un Selector con un pool fisso di worker.
+     */
+    enum Mode { BLOCKING, VIRTUAL, NIO }
+
+    private final Mode mode;
     /*
-     * Crea un thread pool dinamico, che crea nuovi thread su richiesta
-     * Thread pool è contenitore di thread pre-creati che vengono riutilizzati 
+     * Thread pool: contenitore di thread pre-creati che vengono riutilizzati
      * per eseguire task in parallelo, evitando di creare e distruggere thread continuamente.
+     * In modalità BLOCKING è dinamico (un thread per peer), in VIRTUAL crea un virtual thread per ogni task,
+     * in NIO ha un numero fisso di worker.
      */
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ExecutorService pool;
     private volatile boolean running = false;
 
     /* socket TCP è un canale di comunicazione bidirezionale
      * tra due dispositivi in rete, costruito sopra il protocollo TCP
      */
     private ServerSocket serverSocket;
+    // server basato su Selector, usato in modalità NIO
+    private NioMasterServer nioServer;
+    // journal e fotografie dello stato su disco; null se il master non ha una cartella dati
+    private final MasterStore store;
 
     MasterServer(int port) {
+        this(port, Mode.BLOCKING);
+    }
+
+    MasterServer(int port, Mode mode) {
+        this(port, mode, null);
+    }
+
+    /**
+     * Con dataDir diverso da null lo stato viene ricostruito da quella cartella all'avvio
+     * e ogni modifica viene scritta nel journal prima di essere confermata al peer.
+     */
+    MasterServer(int port, Mode mode, Path dataDir) {
         this.port = port;
+        this.mode = mode;
+        this.store = dataDir == null ? null : new MasterStore(dataDir, state);
+        this.pool = switch (mode) {
+            case NIO -> Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            case VIRTUAL -> VirtualThreads.newPerTaskExecutor();
+            case BLOCKING -> Executors.newCachedThreadPool();
+        };
+        if (mode == Mode.VIRTUAL && !VirtualThreads.isAvailable()) {
+            System.err.println("Virtual thread non disponibili in questa JVM: uso thread di piattaforma.");
+        }
     }
 
     /**
-     * Avvia il server in modo sincronizzato: apre il ServerSocket e accetta connessioni.
+     * Avvia il server: apre il ServerSocket in modo sincronizzato e poi accetta connessioni
+     * finché shutdown() non lo arresta. Il ciclo di accept è fuori dal blocco sincronizzato,
+     * altrimenti shutdown() (chiamato dalla console) non potrebbe mai entrare.
      */
-    public synchronized void start() {
-        // Evita avvii multipli se il server è già attivo.
-        if (running)
-            return;
-        try {
-            // Apre il socket sulla porta specificata e imposta lo stato a "running".
-            serverSocket = new ServerSocket(port);
+    public void start() {
+        synchronized (this) {
+            // Evita avvii multipli se il server è già attivo.
+            if (running)
+                return;
+            // Lo stato salvato va ripristinato prima di accettare peer
+            if (store != null) {
+                try {
+                    store.open();
+                } catch (IOException e) {
+                    System.err.println("Impossibile ripristinare lo stato: " + e.getMessage());
+                    return;
+                }
+            }
+            try {
+                // Apre il socket sulla porta specificata e imposta lo stato a "running".
+                if (mode == Mode.NIO) {
+                    nioServer = new NioMasterServer(port, state, pool);
+                    nioServer.bind();
+                } else {
+                    serverSocket = new ServerSocket(port);
+                }
+            } catch (IOException e) {
+                System.err.println("Errore server: " + e.getMessage());
+                if (store != null) {
+                    store.close();
+                }
+                return;
+            }
             running = true;
-            System.out.println("Master in ascolto sulla porta " + port);
+            System.out.println("Master in ascolto sulla porta " + port + " (modalità " + mode.name().toLowerCase() + ")");
 
             // Avvio del thread di console (daemon, non blocca l'accept)
             // se il server chiude, la CliConsole viene interrotta automaticamente.
@@ -51,14 +112,21 @@ class MasterServer {
             // Non impedisce la chiusura dell'app se il main thread finisce
             cliThread.setDaemon(true);
             cliThread.start();
+        }
 
-            // Ciclo che accetta connessioni finchè è attivo
-            // ogni nuova connessione Socket crea un nuovo PeerHandler eseguito in un thread del pool
-            // eseguito in pool: ogni peer è gestito in modo concorrente 
-            while (running) {
-                Socket clientSocket = serverSocket.accept();
-                PeerHandler handler = new PeerHandler(clientSocket, state);
-                pool.execute(handler);
+        try {
+            if (mode == Mode.NIO) {
+                // Il ciclo del selector gira in questo thread finché il server non viene arrestato
+                nioServer.run();
+            } else {
+                // Ciclo che accetta connessioni finchè è attivo
+                // ogni nuova connessione Socket crea un nuovo PeerHandler eseguito in un thread del pool
+                // eseguito in pool: ogni peer è gestito in modo concorrente 
+                while (running) {
+                    Socket clientSocket = serverSocket.accept();
+                    PeerHandler handler = new PeerHandler(clientSocket, state, pool);
+                    pool.execute(handler);
+                }
             }
         } catch (IOException e) {
             // Mostra l'errore solo se il server era in esecuzione
@@ -66,6 +134,13 @@ class MasterServer {
                 System.err.println("Errore server: " + e.getMessage());
             }
         }
+        // La fotografia finale viene scritta da questo thread: la console è un thread daemon
+        // e il processo potrebbe terminare prima della fine della scrittura
+        if (store != null) {
+            synchronized (this) {
+                store.close();
+            }
+        }
     }
 
 
@@ -75,6 +150,9 @@ class MasterServer {
         if (!running)
             return;
         running = false;
+        if (nioServer != null) {
+            nioServer.stop();
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -3,14 +3,15 @@ package Master;
 import Common.DownloadLogEntry;
 import Common.PeerInfo;
 import Common.Protocol;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * gestisce lo stato interno del server Master:
@@ -22,155 +23,367 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 class MasterState {
-    // Semaforo binario per proteggere operazioni critiche con accesso mutualmente esclusivo
-    private final Semaphore semaphore = new Semaphore(1, true);
-    // Mappa dei peer registrati: peerId -> PeerInfo
-    private final Map<String, PeerInfo> peers = new ConcurrentHashMap<>();
-    // Mappa risorsa -> set di peerId che la offrono
-    private final Map<String, Set<String>> resourceToPeers = new ConcurrentHashMap<>();
-    // lock per accesso concorrente: consente letture simultanee e scritture esclusive
-    private final ReadWriteLock tableLock = new ReentrantReadWriteLock();
-    // Coda thread-safe con tutti i log dei download.
-    private final LinkedBlockingQueue<DownloadLogEntry> downloadLog = new LinkedBlockingQueue<>();
+    // Numero di lock in cui sono ripartiti i peer: peer diversi si aggiornano quasi sempre in parallelo
+    private static final int PEER_LOCK_STRIPES = 64;
 
+    // Lock per peer (a strisce): serializza le modifiche dello stesso peer (REGISTER, UPDATE, DISCONNECTED)
+    // senza bloccare quelle degli altri peer
+    private final ReentrantLock[] peerLocks = new ReentrantLock[PEER_LOCK_STRIPES];
+    // Mappa dei peer registrati: peerId -> dati del peer
+    private final Map<String, PeerEntry> peers = new ConcurrentHashMap<>();
+    // Id interi di risorse e peer: indice e risorse dei peer contengono solo gli id, ogni nome esiste una volta.
+    // L'id di un peer vale finché è registrato: alla disconnessione viene liberato e riusato per un peer nuovo,
+    // quindi una bitmap letta prima della disconnessione può contenere l'id del peer vecchio.
+    // Per questo un id si traduce in nome solo con peerNameAt, che controlla da quando il peer lo possiede
+    private final IdDictionary resourceIds = new IdDictionary();
+    private final IdDictionary peerIds = new IdDictionary();
+    // Mappa id risorsa -> bitmap compressa degli id dei peer che la offrono.
+    // Ogni risorsa si modifica con compute/computeIfPresent, atomici sulla singola chiave:
+    // due peer che toccano risorse diverse non si attendono e un insieme svuotato non può perdere un'aggiunta concorrente.
+    // Le bitmap sono immutabili e ogni modifica ne pubblica una nuova: i lettori usano quella che trovano senza copiarla
+    private final Map<Integer, IdBitmap> resourceToPeers = new ConcurrentHashMap<>();
+    // Versione dell'indice: cresce a ogni modifica di resourceToPeers
+    private final AtomicLong indexVersion = new AtomicLong();
+    // Risorse modificate dopo l'ultima fotografia: solo queste vanno ricalcolate
+    private final Set<String> changedResources = ConcurrentHashMap.newKeySet();
+    // Ultima fotografia pubblicata dell'indice: i lettori la usano senza lock finché è aggiornata
+    private volatile ResourceSnapshot snapshot = ResourceSnapshot.empty(this::peerNameAt);
+    // Un solo thread alla volta ricostruisce la fotografia
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    // Log dei download: gli ultimi in memoria, i più vecchi su disco con un indice per peer, risorsa e tempo
+    private final DownloadLog downloadLog = new DownloadLog();
+    // Serializza l'aggiunta dei log con la loro copia nella fotografia (vedi checkpointLogs)
+    private final Object logLock = new Object();
+    // Journal su disco delle modifiche; null se il master non ha una cartella dati o durante il ripristino.
+    // Ogni modifica viene accodata dopo essere stata applicata e sotto lo stesso lock del peer:
+    // chi fotografa lo stato dopo una rotazione del journal vede tutte quelle con sequenza precedente
+    private volatile Journal journal;
+
+    MasterState() {
+        for (int i = 0; i < peerLocks.length; i++) {
+            peerLocks[i] = new ReentrantLock();
+        }
+    }
 
     /**
-     * Registra un nuovo peer nel sistema.
+     * Registra un nuovo peer nel sistema e ritorna la versione iniziale delle sue risorse (0).
+     * Se il peer era già registrato, le risorse non più dichiarate vengono tolte dall'indice.
+     * Le risorse ripetute vengono registrate una volta sola.
      */
-    public void registerPeer(String peerId, InetAddress address, int port, Set<String> resources) {
+    public long registerPeer(String peerId, InetAddress address, int port, Collection<String> resources) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
         try {
-            // Entra in sezione critica, solop un thread alla volta
-            semaphore.acquire();
-            // Crea e salva l'oggetto PeerInfo
-            PeerInfo info = new PeerInfo(peerId, address, port, resources, Instant.now());
-            peers.put(peerId, info);
-
-            // Aggiorna la mappa risorsa → peer in modo sicuro.
-            // Acquisisce un lock di scrittura sulla mappa
-            tableLock.writeLock().lock();
-            try {
-                for (String r : resources) {
-                    // Se la risorsa r è già presente nella mappa, prende il set associato
-                    // Altrimenti, crea e associa un nuovo set vuoto (thread-safe) alla risorsa
-                    // In entrambi i casi, aggiunge peerId al set dei peer che possiedono r
-                    resourceToPeers.computeIfAbsent(r, k -> ConcurrentHashMap.newKeySet()).add(peerId);
-                }
-            } finally {
-                tableLock.writeLock().unlock();
+            // Crea e salva i dati del peer; un peer che si registra di nuovo mantiene il suo id
+            PeerEntry oldEntry = peers.get(peerId);
+            int id = oldEntry != null ? oldEntry.id : peerIds.acquire(peerId);
+            // letta dopo acquire: comprende le rimozioni dall'indice del peer che aveva l'id prima
+            long since = oldEntry != null ? oldEntry.since : indexVersion.get();
+            PeerEntry entry = new PeerEntry(id, since, address, port, toIds(resources));
+            peers.put(peerId, entry);
+            if (oldEntry != null) {
+                oldEntry.resources.forEach(rOld -> {
+                    if (!entry.resources.contains(rOld)) {
+                        removeFromIndex(rOld, entry.id);
+                    }
+                });
+            }
+            // Aggiunge il peer al set dei peer che possiedono ogni risorsa
+            entry.resources.forEach(r -> addToIndex(r, entry.id));
+            Journal j = journal;
+            if (j != null) {
+                j.appendRegister(peerId, address, port, resourceNames(entry.resources));
             }
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
+            return entry.version;
         } finally {
-            //  Esce dalla sezione critica.
-            semaphore.release();
+            lock.unlock();
         }
     }
 
     // Aggiorna le risorse di un peer già registrato, sovrascrivendole.
+    // Ritorna la nuova versione delle risorse del peer, oppure -1 se il peer non è registrato.
+    public long updatePeerResources(String peerId, Set<String> newResources) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
+        try {
+            // aggiorna le risorse del peerId specificato
+            PeerEntry entry = peers.get(peerId);
+            if (entry == null) return -1;
 
-    public void updatePeerResources(String peerId, Set<String> newResources) {
+            replaceResources(entry, newResources);
+            long version = entry.touch();
+            Journal j = journal;
+            if (j != null) {
+                j.appendUpdate(peerId, version, newResources);
+            }
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ripristina le risorse e la versione di un peer da un UPDATE del journal o dalla fotografia.
+     * Non scrive nel journal.
+     */
+    void restoreResources(String peerId, long version, Collection<String> resources) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
         try {
-            // Entra in sezione critica
-            semaphore.acquire();
-            // aggiorna le risorse del peerId specificato            
-            PeerInfo oldInfo = peers.get(peerId);
-            if (oldInfo == null) return;
-            PeerInfo updated = new PeerInfo(peerId, oldInfo.getAddress(), oldInfo.getPort(), newResources, Instant.now());
-            peers.put(peerId, updated);
-
-            // lock per aggiornare la mappa risorsa → peer in modo sicuro
-            tableLock.writeLock().lock();
-            try {
-                // ciclo sulle vecchie risorse del peer
-                for (String rOld : oldInfo.getResources()) {
-                    // Recupera il set di peer che possiedono quella risorsa.
-                    Set<String> set = resourceToPeers.get(rOld);
-                    if (set != null) {
-                        set.remove(peerId);
-                        // Se il set diventa vuoto, rimuove la risorsa dalla mappa
-                        if (set.isEmpty()) {
-                            resourceToPeers.remove(rOld);
-                        }
+            PeerEntry entry = peers.get(peerId);
+            if (entry != null) {
+                replaceResources(entry, resources);
+                entry.version = version;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ripristina un peer dalla fotografia, con la versione delle risorse che aveva. Non scrive nel journal.
+     */
+    void restorePeer(String peerId, InetAddress address, int port, long version, Collection<String> resources) {
+        registerPeer(peerId, address, port, resources);
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
+        try {
+            peers.get(peerId).version = version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sostituisce le risorse del peer con newResources, aggiornando l'indice solo per quelle cambiate
+    private void replaceResources(PeerEntry entry, Collection<String> newResources) {
+        IntSet next = toIds(newResources);
+        // toglie il peer dalle risorse che non possiede più
+        for (int rOld : entry.resources.toArray()) {
+            if (!next.contains(rOld)) {
+                entry.resources.remove(rOld);
+                removeFromIndex(rOld, entry.id);
+            }
+        }
+        // e lo aggiunge alle nuove
+        next.forEach(rNew -> {
+            if (entry.resources.add(rNew)) {
+                addToIndex(rNew, entry.id);
+            }
+        });
+    }
+
+    // Id delle risorse indicate, senza ripetizioni; le risorse mai viste ricevono un nuovo id
+    private IntSet toIds(Collection<String> resources) {
+        IntSet ids = new IntSet(resources.size());
+        for (String r : resources) {
+            ids.add(resourceIds.idOf(r));
+        }
+        return ids;
+    }
+
+    // Nomi delle risorse con gli id indicati
+    private List<String> resourceNames(IntSet ids) {
+        List<String> names = new ArrayList<>(ids.size());
+        ids.forEach(id -> names.add(resourceIds.name(id)));
+        return names;
+    }
+
+    /**
+     * Applica una variazione delle risorse di un peer (UPDATE_ADD / UPDATE_REMOVE):
+     * aggiunge o toglie solo le risorse indicate, senza toccare le altre.
+     * version è la versione che il peer si aspetta dopo la modifica (quella attuale + 1):
+     * se non corrisponde la variazione è fuori sequenza (persa, ripetuta o basata su un elenco
+     * non aggiornato) e non viene applicata.
+     * Ritorna la nuova versione, oppure -1 se il peer non è registrato o la versione non corrisponde.
+     */
+    public long applyResourceDelta(String peerId, long version, Collection<String> resources, boolean add) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
+        try {
+            PeerEntry entry = peers.get(peerId);
+            if (entry == null || version != entry.version + 1) {
+                return -1;
+            }
+            for (String name : resources) {
+                if (add) {
+                    int r = resourceIds.idOf(name);
+                    if (entry.resources.add(r)) {
+                        addToIndex(r, entry.id);
+                    }
+                } else {
+                    // una risorsa mai vista non può essere tra quelle del peer: non serve darle un id
+                    int r = resourceIds.find(name);
+                    if (r >= 0 && entry.resources.remove(r)) {
+                        removeFromIndex(r, entry.id);
                     }
                 }
-                // Cicla su tutte le risorse dichiarate da un peer
-                for (String rNew : newResources) {
-                    // se la risorsa non è presente, la aggiunge
-                    // altrimenti aggiunge il peerId al set di peer che la offrono
-                    resourceToPeers.computeIfAbsent(rNew, k -> ConcurrentHashMap.newKeySet()).add(peerId);
-                }
-            } finally {
-                tableLock.writeLock().unlock();
             }
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
+            long applied = entry.touch();
+            Journal j = journal;
+            if (j != null) {
+                j.appendDelta(peerId, applied, resources, add);
+            }
+            return applied;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ripete un DOWNLOAD_FAIL del journal: come per le variazioni, la risorsa viene tolta solo se il
+     * peer è alla versione che precede quella del record, che diventa la sua versione.
+     * version < 0 indica un record scritto senza versione: la risorsa viene tolta senza controlli.
+     * Non scrive nel journal.
+     */
+    void restoreDownloadFail(String resource, String peerId, long version) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
+        try {
+            PeerEntry entry = peers.get(peerId);
+            if (entry == null || (version >= 0 && version != entry.version + 1)) {
+                return;
+            }
+            int r = resourceIds.find(resource);
+            if (r >= 0 && entry.resources.remove(r)) {
+                removeFromIndex(r, entry.id);
+            }
+            if (version >= 0) {
+                entry.version = version;
+            }
         } finally {
-            semaphore.release();
+            lock.unlock();
+        }
+    }
+
+    // Ritorna la versione attuale delle risorse del peer, oppure -1 se non è registrato
+    public long getResourcesVersion(String peerId) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
+        try {
+            PeerEntry entry = peers.get(peerId);
+            return entry == null ? -1 : entry.version;
+        } finally {
+            lock.unlock();
         }
     }
 
     // rimuove un peer sia dalla mappa peers che da tutte le risorse che possedeva
     public void removePeer(String peerId) {
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
         try {
-            // Entra in sezione critica
-            semaphore.acquire();
             // Rimuove il peerId dalla mappa dei peer
-            PeerInfo info = peers.remove(peerId);
-            if (info == null) return;
-            // Rimuove il peerId da tutte le risorse che possedeva
-            // lock per aggiornare la mappa risorsa → peer in modo sicuro
-            tableLock.writeLock().lock();
-            try {
-                for (String r : info.getResources()) {
-                    // per ogni risorsa recupera il set di peer che la offrono
-                    Set<String> set = resourceToPeers.get(r);
-                    if (set != null) {
-                        set.remove(peerId);
-                        if (set.isEmpty()) {
-                            resourceToPeers.remove(r);
-                        }
-                    }
-                }
-            } finally {
-                tableLock.writeLock().unlock();
+            PeerEntry entry = peers.remove(peerId);
+            if (entry == null) return;
+            // Rimuove il peer da tutte le risorse che possedeva: nessuna bitmap dell'indice contiene più il suo id,
+            // che può essere liberato
+            entry.resources.forEach(r -> removeFromIndex(r, entry.id));
+            peerIds.release(entry.id);
+            Journal j = journal;
+            if (j != null) {
+                j.appendRemove(peerId);
             }
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
         } finally {
-            semaphore.release();
+            lock.unlock();
         }
     }
 
-    // Restituisce una copia immutabile e ordinata (TreeMap) della mappa risorse -> peer.
+    // Restituisce la mappa immutabile e ordinata risorse -> peer dell'ultima fotografia dell'indice.
     public Map<String, Set<String>> listAllResources() {
-        // Legge sotto lock di sola lettura
-        tableLock.readLock().lock();
+        return getResourceSnapshot().getResources();
+    }
+
+    /**
+     * Ritorna una fotografia immutabile e aggiornata dell'indice risorsa -> peer.
+     * Se l'indice non è cambiato dall'ultima richiesta la fotografia viene riusata senza prendere lock;
+     * altrimenti la successiva condivide con la precedente i blocchi senza risorse modificate e ricostruisce
+     * solo gli altri: il costo dipende dalle modifiche, non dalla dimensione del catalogo.
+     */
+    public ResourceSnapshot getResourceSnapshot() {
+        ResourceSnapshot current = snapshot;
+        if (current.getVersion() == indexVersion.get()) {
+            return current;
+        }
+        snapshotLock.lock();
         try {
-            // Crea una TreeMap per ordinare alfabeticamente le risorse
-            Map<String, Set<String>> snapshot = new TreeMap<>();
-            // Copia ogni entry (risorsa -> set di peer)
-            for (Map.Entry<String, Set<String>> entry : resourceToPeers.entrySet()) {
-                snapshot.put(entry.getKey(), Set.copyOf(entry.getValue()));
+            current = snapshot;
+            // la versione si legge prima di raccogliere le risorse cambiate: una modifica concorrente
+            // ha già segnato la sua risorsa oppure farà crescere la versione, e la prossima lettura la includerà
+            long version = indexVersion.get();
+            if (current.getVersion() == version) {
+                return current;
+            }
+            List<String> changed = new ArrayList<>();
+            for (Iterator<String> it = changedResources.iterator(); it.hasNext(); ) {
+                changed.add(it.next());
+                it.remove();
             }
-            return snapshot;
+            ResourceSnapshot next = current.withChanges(version, this::fetchPeerIds, changed);
+            snapshot = next;
+            return next;
         } finally {
-            tableLock.readLock().unlock();
+            snapshotLock.unlock();
         }
     }
 
-    // Metodo di utilità interno che restituisce i peer che possiedono una specifica risorsa
-    private Set<String> fetchPeerIds(String resource) {
-        // garantisce lettura concorrente sicura
-        tableLock.readLock().lock();
-        try {
-            // Accede alla mappa resourceToPeers e cerca la risorsa passata come chiave
-            Set<String> set = resourceToPeers.get(resource);
-            // Se non esiste, restituisce un set vuoto
-            // Altrimenti restituisce una copia immutabile del set di peer
-            return (set == null) ? Collections.emptySet() : Set.copyOf(set);
-        } finally {
-            tableLock.readLock().unlock();
-        }
+    // Metodo di utilità interno che restituisce i peer che possiedono una specifica risorsa:
+    // la bitmap pubblicata nell'indice, senza copiarla
+    private IdBitmap fetchPeerIds(String resource) {
+        int r = resourceIds.find(resource);
+        IdBitmap peers = r < 0 ? null : resourceToPeers.get(r);
+        return peers == null ? IdBitmap.EMPTY : peers;
+    }
+
+    // Nomi dei peer con gli id indicati, letti dall'indice alla versione version (vedi peerNameAt)
+    private Set<String> peerNames(IdBitmap ids, long version) {
+        Set<String> names = new HashSet<>(ids.cardinality() * 2);
+        ids.forEach(id -> {
+            String name = peerNameAt(id, version);
+            if (name != null) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+    /*
+    * Ritorna il nome del peer registrato con l'id indicato, oppure null, per una bitmap letta
+    * dall'indice dopo averne letto la versione version.
+    * Un peer toglie il suo id da tutte le risorse prima di liberarlo, e chi lo riceve dopo ha since
+    * non minore della versione raggiunta con quelle rimozioni. Quindi se since è maggiore di version
+    * la bitmap può essere stata letta quando l'id era ancora del peer precedente: l'id viene saltato
+    * invece di attribuire le sue risorse al peer nuovo. Lo stesso vale per le fotografie, che leggono
+    * le bitmap dopo la loro versione.
+    */
+    private String peerNameAt(int id, long version) {
+        String name = peerIds.name(id);
+        PeerEntry entry = name == null ? null : peers.get(name);
+        return entry != null && entry.id == id && entry.since <= version ? name : null;
+    }
+
+    // Aggiunge il peer all'insieme della risorsa, creandolo se la risorsa è nuova
+    private void addToIndex(int resource, int peer) {
+        resourceToPeers.compute(resource, (k, peers) -> (peers == null ? IdBitmap.EMPTY : peers).with(peer));
+        markChanged(resource);
+    }
+
+    // Toglie il peer dall'insieme della risorsa; se resta vuoto la risorsa sparisce dalla mappa
+    private void removeFromIndex(int resource, int peer) {
+        resourceToPeers.computeIfPresent(resource, (k, peers) -> {
+            IdBitmap next = peers.without(peer);
+            return next.isEmpty() ? null : next;
+        });
+        markChanged(resource);
+    }
+
+    // Segna la risorsa come da ricalcolare nella prossima fotografia; va chiamato dopo la modifica dell'indice
+    private void markChanged(int resource) {
+        changedResources.add(resourceIds.name(resource));
+        indexVersion.incrementAndGet();
+    }
+
+    private ReentrantLock lockFor(String peerId) {
+        return peerLocks[(peerId.hashCode() & 0x7fffffff) % peerLocks.length];
     }
 
     /**
@@ -181,74 +394,247 @@ class MasterState {
      *   RESOURCE_NOT_FOUND <resource>
      */
 
-    public String getPeersFor(String resource) {
+    public List<String> getPeersFor(String resource) {
         // Recupera gli ID dei peer che offrono la risorsa
-        Set<String> ids = fetchPeerIds(resource);
-        if (ids.isEmpty()) {
-            return Protocol.RESOURCE_NOT_FOUND + " " + resource;
+        long version = indexVersion.get();
+        List<String> fields = peerFields(fetchPeerIds(resource), version);
+        return fields == null ? List.of(Protocol.RESOURCE_NOT_FOUND, resource) : fields;
+    }
+
+    /**
+     * Genera la risposta al comando GET_PEERS_FOR_RESOURCES: i peer che possiedono tutte le risorse
+     * indicate (all) oppure almeno una, nello stesso formato di GET_PEERS_FOR_RESOURCE.
+     * Se nessun peer soddisfa la richiesta: RESOURCE_NOT_FOUND <ris1> ... <risN>
+     */
+    public List<String> getPeersFor(List<String> resources, boolean all) {
+        long version = indexVersion.get();
+        List<String> fields = peerFields(peersHolding(resources, all), version);
+        if (fields == null) {
+            List<String> notFound = new ArrayList<>(1 + resources.size());
+            notFound.add(Protocol.RESOURCE_NOT_FOUND);
+            notFound.addAll(resources);
+            return notFound;
+        }
+        return fields;
+    }
+
+    /**
+     * Ritorna gli id dei peer che possiedono tutte le risorse indicate (all) oppure almeno una.
+     * Le bitmap dell'indice vengono combinate senza copiarle; per l'intersezione si parte dalla
+     * più piccola, così ogni passo lavora al più sui suoi peer.
+     */
+    private IdBitmap peersHolding(List<String> resources, boolean all) {
+        if (resources.isEmpty()) {
+            return IdBitmap.EMPTY;
+        }
+        IdBitmap[] sets = new IdBitmap[resources.size()];
+        for (int i = 0; i < sets.length; i++) {
+            sets[i] = fetchPeerIds(resources.get(i));
+            if (all && sets[i].isEmpty()) {
+                return IdBitmap.EMPTY;
+            }
+        }
+        if (all) {
+            Arrays.sort(sets, Comparator.comparingInt(IdBitmap::cardinality));
         }
-        // Inizia a costruire il messaggio
-        StringBuilder sb = new StringBuilder();
-        sb.append(Protocol.PEER_FOR_RESOURCE).append(" ").append(ids.size());
-        for (String pid : ids) {
-            PeerInfo info = peers.get(pid);
-            sb.append(" ").append(pid).append(" ").append(info.getAddress().getHostAddress()).append(" ").append(info.getPort());
+        IdBitmap result = sets[0];
+        for (int i = 1; i < sets.length && !(all && result.isEmpty()); i++) {
+            result = all ? result.and(sets[i]) : result.or(sets[i]);
         }
-        return sb.toString();
+        return result;
+    }
+
+    // Campi PEER_FOR_RESOURCE <count> <pid1> <ip1> <port1> ... per i peer indicati, null se nessuno è registrato.
+    // version è la versione dell'indice letta prima delle bitmap (vedi peerNameAt)
+    private List<String> peerFields(IdBitmap ids, long version) {
+        // Costruisce i campi della risposta: per ogni peer ID, indirizzo e porta
+        // un peer appena disconnesso può essere ancora nell'indice ma non più nella mappa: viene saltato
+        List<String> fields = new ArrayList<>(2 + ids.cardinality() * 3);
+        fields.add(Protocol.PEER_FOR_RESOURCE);
+        fields.add(null); // numero di peer, noto alla fine
+        ids.forEach(id -> {
+            String pid = peerIds.name(id);
+            PeerEntry info = pid == null ? null : peers.get(pid);
+            if (info != null && info.id == id && info.since <= version) {
+                fields.add(pid);
+                fields.add(info.address.getHostAddress());
+                fields.add(Integer.toString(info.port));
+            }
+        });
+        int count = (fields.size() - 2) / 3;
+        if (count == 0) {
+            return null;
+        }
+        fields.set(1, Integer.toString(count));
+        return fields;
     }
 
     /* gestisce il fallimento di un download.
-    *  1- Rimuove il peer fallito dalla lista dei possessori
+    *  1- Rimuove il peer fallito dalla lista dei possessori (anche dalle sue risorse, così l'indice
+    *     resta ricostruibile dai soli peer). Le risorse del peer cambiano senza che lui lo sappia,
+    *     quindi la loro versione cresce: la sua prossima variazione è fuori sequenza e il peer
+    *     reinvia l'elenco completo
     *  2- Restituisce un altro peer, se esiste, per tentare di nuovo
     */ 
     public String handleDownloadFail(String resource, String failedPeer) {
-        String nextPeer = null;
+        int r = resourceIds.find(resource);
+        ReentrantLock lock = lockFor(failedPeer);
+        lock.lock();
         try {
-            // Entra in sezione critica per aggiornare la tabella
-            semaphore.acquire();
-            tableLock.writeLock().lock();
-            try {
-                // Rimuove failedPeer dalla lista.
-                Set<String> set = resourceToPeers.get(resource);
-                if (set != null) {
-                    set.remove(failedPeer);
-                    if (set.isEmpty()) {
-                        resourceToPeers.remove(resource);
-                    }
+            // solo un peer registrato può essere nell'indice; il suo id si legge sotto il suo lock
+            PeerEntry entry = peers.get(failedPeer);
+            if (entry != null && r >= 0 && entry.resources.remove(r)) {
+                // Rimuove failedPeer dalla lista, in modo atomico sulla sola risorsa coinvolta
+                removeFromIndex(r, entry.id);
+                long version = entry.touch();
+                Journal j = journal;
+                if (j != null) {
+                    j.appendDownloadFail(resource, failedPeer, version);
                 }
-            } finally {
-                tableLock.writeLock().unlock();
-            }
-            // Cerca un altro peer che possiede la risorsa
-            Set<String> candidato = fetchPeerIds(resource);
-            if (!candidato.isEmpty()) {
-                nextPeer = candidato.iterator().next();
             }
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
         } finally {
-            semaphore.release();
+            lock.unlock();
         }
-        return nextPeer;
+        // Cerca un altro peer registrato che possiede la risorsa: il primo id che ha ancora un nome valido
+        long version = indexVersion.get();
+        String[] candidato = new String[1];
+        fetchPeerIds(resource).find(id -> (candidato[0] = peerNameAt(id, version)) != null);
+        return candidato[0];
     }
 
     // Aggiunge un log nella coda.
     public void addDownloadLog(DownloadLogEntry entry) {
-        downloadLog.add(entry);
+        synchronized (logLock) {
+            downloadLog.add(entry);
+            Journal j = journal;
+            if (j != null) {
+                j.appendDownloadLog(entry);
+            }
+        }
+    }
+
+    /** collega il journal: da qui in poi ogni modifica viene scritta su disco */
+    void attachJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Attende che le modifiche fatte dal thread corrente siano sul journal su disco:
+     * va chiamato prima di confermarle al peer. Senza journal ritorna subito.
+     */
+    void awaitDurable() {
+        Journal j = journal;
+        if (j != null) {
+            j.awaitOwn();
+        }
+    }
+
+    /**
+     * Ritorna la posizione del log dei download da salvare nella fotografia, con l'ultima sequenza
+     * del journal a quel momento: i log con sequenza fino a questa sono tutti compresi, i successivi nessuno.
+     */
+    DownloadLog.Checkpoint checkpointLogs() throws IOException {
+        synchronized (logLock) {
+            Journal j = journal;
+            return downloadLog.checkpoint(j == null ? 0 : j.getLastSequence());
+        }
+    }
+
+    /**
+     * Riporta il log dei download su disco alla posizione della fotografia (null se non c'è)
+     * nella cartella indicata; va chiamato prima di ripristinare i log.
+     */
+    void recoverLogs(Path dir, DownloadLog.Checkpoint checkpoint) throws IOException {
+        downloadLog.recover(dir, checkpoint);
+    }
+
+    /** Riceve i dati di un peer durante la scrittura della fotografia */
+    interface PeerVisitor {
+        void visit(String peerId, InetAddress address, int port, long version, Collection<String> resources)
+                throws IOException;
+    }
+
+    /**
+     * Passa al visitor ogni peer registrato, ciascuno letto sotto il proprio lock:
+     * il singolo peer è coerente, ma peer diversi possono essere fotografati in momenti diversi.
+     */
+    void forEachPeer(PeerVisitor visitor) throws IOException {
+        for (String peerId : peers.keySet()) {
+            ReentrantLock lock = lockFor(peerId);
+            lock.lock();
+            try {
+                PeerEntry entry = peers.get(peerId);
+                if (entry != null) {
+                    visitor.visit(peerId, entry.address, entry.port, entry.version, resourceNames(entry.resources));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
-    // Restituisce una copia immutabile dei log
-    public List<DownloadLogEntry> getLogEntries() {
-        return List.copyOf(downloadLog);
+    /**
+     * Passa a consumer, in ordine di registrazione, i log che soddisfano il filtro,
+     * senza copiare in memoria tutto il log.
+     */
+    public void queryLogs(DownloadLog.Filter filter, Consumer<DownloadLogEntry> consumer) throws IOException {
+        downloadLog.query(filter, consumer);
     }
 
     // Restituisce i dati di un singolo peer
     public PeerInfo inspectPeer(String peerId) {
-        return peers.get(peerId);
+        ReentrantLock lock = lockFor(peerId);
+        lock.lock();
+        try {
+            PeerEntry entry = peers.get(peerId);
+            return entry == null ? null
+                    : new PeerInfo(peerId, entry.address, entry.port, new HashSet<>(resourceNames(entry.resources)), entry.lastSeen);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Restituisce l’insieme di peer che possiedono la risorsa
     public Set<String> inspectPeersByResource(String resource) {
-        return fetchPeerIds(resource);
+        long version = indexVersion.get();
+        return peerNames(fetchPeerIds(resource), version);
+    }
+
+    // Restituisce l'insieme di peer che possiedono tutte le risorse indicate (all) oppure almeno una
+    public Set<String> inspectPeersByResources(List<String> resources, boolean all) {
+        long version = indexVersion.get();
+        return peerNames(peersHolding(resources, all), version);
+    }
+
+    /**
+     * Dati di un peer registrato. A differenza di PeerInfo (immutabile, usato dalla CLI)
+     * l'insieme delle risorse viene modificato sul posto, così aggiungere un file non copia tutto l'elenco;
+     * contiene gli id delle risorse, non i nomi.
+     * resources, version e lastSeen si usano solo tenendo il lock del peer.
+     */
+    private static class PeerEntry {
+        final int id;
+        // versione dell'indice quando il peer ha ricevuto id (vedi peerNameAt)
+        final long since;
+        final InetAddress address;
+        final int port;
+        final IntSet resources;
+        // cresce di 1 a ogni modifica delle risorse: permette al peer di accorgersi di variazioni perse
+        long version = 0;
+        Instant lastSeen = Instant.now();
+
+        PeerEntry(int id, long since, InetAddress address, int port, IntSet resources) {
+            this.id = id;
+            this.since = since;
+            this.address = address;
+            this.port = port;
+            this.resources = resources;
+        }
+
+        // Registra una modifica delle risorse e ritorna la nuova versione
+        long touch() {
+            lastSeen = Instant.now();
+            return ++version;
+        }
     }
 }
@@ -0,0 +1,351 @@
+package Master;
+
+import Common.DownloadLogEntry;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persistenza dello stato del master nella cartella indicata con --data-dir.
+ * All'avvio carica l'ultima fotografia (snapshot-<sequenza>.bin) e riapplica i record del journal
+ * successivi; poi collega allo stato un nuovo Journal e scrive periodicamente una nuova fotografia
+ * compatta, dopo la quale i segmenti di journal più vecchi vengono cancellati.
+ *
+ * La fotografia viene scritta mentre il master continua a servire i peer: prima si ruota il journal
+ * (la fotografia contiene certamente tutti i record precedenti alla rotazione), poi si copia un peer
+ * alla volta. Al ripristino si riapplicano i record dalla rotazione in poi, anche quelli già compresi
+ * nella fotografia: vedi Journal.replay per il perché è sicuro.
+ *
+ * Formato della fotografia (DataOutputStream):
+ *   <int MAGIC> <long sequenza di rotazione>
+ *   per ogni peer: <byte 1> <id> <byte lunghezza ip> <ip> <int porta> <long versione> <int n> <risorse>
+ *   <byte 0> <long ultima sequenza dei log compresi>
+ *   <int ultimo segmento del log su disco> <long sua lunghezza>
+ *   <int numLog> per ogni log ancora in memoria: <long secondi> <int nano> <risorsa> <da> <a> <boolean esito>
+ *   <long CRC32 di tutto il precedente>
+ */
+class MasterStore {
+
+    private static final int MAGIC = 0x4C505332; // "LPS2"
+    // formato precedente, senza la posizione dei segmenti: tutti i log erano nella fotografia
+    private static final int MAGIC_V1 = 0x4C50534E; // "LPSN"
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    // una nuova fotografia quando il journal ha accumulato tanti record, oppure dopo SNAPSHOT_MAX_AGE
+    private static final long SNAPSHOT_RECORDS = 200_000;
+    private static final long SNAPSHOT_MAX_AGE_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long CHECK_INTERVAL_SECONDS = 10;
+
+    private final Path dir;
+    private final MasterState state;
+    private Journal journal;
+    // impedisce a due master di usare la stessa cartella dati
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private ScheduledExecutorService snapshotter;
+    // sequenza di rotazione dell'ultima fotografia e istante in cui è stata scritta
+    private long snapshotSequence;
+    private long snapshotTime;
+
+    MasterStore(Path dir, MasterState state) {
+        this.dir = dir;
+        this.state = state;
+    }
+
+    /**
+     * Ricostruisce lo stato dalla cartella dati, apre il journal e avvia le fotografie periodiche.
+     */
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("la cartella " + dir + " è già usata da un altro master");
+        }
+        long start = System.nanoTime();
+        long fromSequence = 1;
+        long logsUpTo = 0;
+        int peers = 0;
+        Path snapshot = latestSnapshot();
+        if (snapshot != null) {
+            long[] header = loadSnapshot(snapshot);
+            fromSequence = header[0];
+            logsUpTo = header[1];
+            peers = (int) header[2];
+        } else {
+            // senza fotografia tutti i log verranno riletti dal journal
+            state.recoverLogs(logsDir(), null);
+        }
+        long last = Journal.replay(dir, fromSequence, logsUpTo, state);
+        System.out.printf("Stato ripristinato da %s: %d peer dalla fotografia, ultima sequenza del journal %d (%d ms)%n",
+                dir, peers, last, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        journal = new Journal(dir, last + 1);
+        state.attachJournal(journal);
+        snapshotSequence = fromSequence;
+        snapshotTime = System.currentTimeMillis();
+
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "master-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshotIfNeeded,
+                CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** scrive un'ultima fotografia, così il prossimo avvio non deve riapplicare il journal, e lo chiude */
+    void close() {
+        if (journal == null) {
+            return;
+        }
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            snapshot();
+        } catch (IOException e) {
+            System.err.println("Errore nella fotografia finale dello stato: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        state.attachJournal(null);
+        journal.close();
+        journal = null;
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Errore nel rilascio della cartella dati: " + e.getMessage());
+        }
+    }
+
+    private void snapshotIfNeeded() {
+        long records = journal.getLastSequence() + 1 - snapshotSequence;
+        boolean old = System.currentTimeMillis() - snapshotTime >= SNAPSHOT_MAX_AGE_MS;
+        if (records >= SNAPSHOT_RECORDS || (records > 0 && old)) {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Errore nella fotografia dello stato: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Scrive una nuova fotografia e cancella i segmenti di journal e le fotografie che contiene.
+     * Il file viene scritto a parte e rinominato solo quando è completo e su disco.
+     */
+    private synchronized void snapshot() throws IOException {
+        long sequence = journal.rotate();
+        Path tmp = dir.resolve(SNAPSHOT_PREFIX + "tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream file = Channels.newOutputStream(channel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeLong(sequence);
+            // i peer sono scritti mentre vengono copiati, uno per lock: il numero non è noto in anticipo
+            state.forEachPeer((peerId, address, port, version, resources) -> {
+                out.writeByte(1);
+                writePeer(out, peerId, address, port, version, resources);
+            });
+            out.writeByte(0);
+            // i log più vecchi sono già nei segmenti su disco: basta ricordare fin dove arrivano
+            DownloadLog.Checkpoint logs = state.checkpointLogs();
+            out.writeLong(logs.journalSequence);
+            out.writeInt(logs.segment);
+            out.writeLong(logs.length);
+            out.writeInt(logs.recent.size());
+            for (DownloadLogEntry log : logs.recent) {
+                out.writeLong(log.getTimestamp().getEpochSecond());
+                out.writeInt(log.getTimestamp().getNano());
+                writeString(out, log.getResource());
+                writeString(out, log.getFromPeer());
+                writeString(out, log.getToPeer());
+                out.writeBoolean(log.isSuccess());
+            }
+            out.flush();
+            // il CRC copre tutto ciò che precede e viene scritto fuori dal CheckedOutputStream
+            new DataOutputStream(file).writeLong(crc.getValue());
+            channel.force(true);
+        }
+        Path target = dir.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(dir);
+
+        // da qui la fotografia basta per ripartire: il vecchio stato su disco non serve più
+        journal.deleteSegmentsBefore(sequence);
+        for (Path old : listSnapshots().headMap(sequence).values()) {
+            Files.deleteIfExists(old);
+        }
+        snapshotSequence = sequence;
+        snapshotTime = System.currentTimeMillis();
+    }
+
+    private static void writePeer(DataOutputStream out, String peerId, InetAddress address, int port,
+                                  long version, Collection<String> resources) throws IOException {
+        writeString(out, peerId);
+        byte[] ip = address.getAddress();
+        out.writeByte(ip.length);
+        out.write(ip);
+        out.writeInt(port);
+        out.writeLong(version);
+        out.writeInt(resources.size());
+        for (String resource : resources) {
+            writeString(out, resource);
+        }
+    }
+
+    /**
+     * Carica la fotografia nello stato e ritorna sequenza di rotazione, ultima sequenza dei log e numero di peer.
+     * Il CRC si verifica prima di leggerla: il ripristino dei log tronca e cancella i segmenti su disco,
+     * quindi una fotografia corrotta deve essere scartata prima di toccare stato e cartella dei log.
+     */
+    private long[] loadSnapshot(Path snapshot) throws IOException {
+        verifyChecksum(snapshot);
+        try (BufferedInputStream file = new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16)) {
+            DataInputStream in = new DataInputStream(file);
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Fotografia non valida: " + snapshot);
+            }
+            long sequence = in.readLong();
+            int peers = 0;
+            List<String> resources = new ArrayList<>();
+            while (in.readByte() != 0) {
+                peers++;
+                String peerId = Journal.readString(in);
+                byte[] ip = new byte[in.readUnsignedByte()];
+                in.readFully(ip);
+                int port = in.readInt();
+                long version = in.readLong();
+                int count = in.readInt();
+                resources.clear();
+                for (int r = 0; r < count; r++) {
+                    resources.add(Journal.readString(in));
+                }
+                state.restorePeer(peerId, InetAddress.getByAddress(ip), port, version, resources);
+            }
+            long logsUpTo = in.readLong();
+            int segment = magic == MAGIC ? in.readInt() : -1;
+            long length = magic == MAGIC ? in.readLong() : 0;
+            state.recoverLogs(logsDir(), new DownloadLog.Checkpoint(logsUpTo, segment, length, List.of()));
+            int logs = in.readInt();
+            for (int i = 0; i < logs; i++) {
+                Instant timestamp = Instant.ofEpochSecond(in.readLong(), in.readInt());
+                String resource = Journal.readString(in);
+                String fromPeer = Journal.readString(in);
+                String toPeer = Journal.readString(in);
+                state.addDownloadLog(new DownloadLogEntry(timestamp, resource, fromPeer, toPeer, in.readBoolean()));
+            }
+            return new long[] {sequence, logsUpTo, peers};
+        }
+    }
+
+    // Confronta il CRC in fondo alla fotografia con quello di tutti i byte che lo precedono
+    private static void verifyChecksum(Path snapshot) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            long content = channel.size() - Long.BYTES;
+            if (content < 0) {
+                throw new IOException("Fotografia corrotta (troppo corta): " + snapshot);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            long position = 0;
+            while (position < content) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), content - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Fotografia troncata: " + snapshot);
+                }
+                crc.update(buffer.flip());
+                position += read;
+            }
+            buffer.clear().limit(Long.BYTES);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, content + buffer.position()) < 0) {
+                    throw new EOFException("Fotografia troncata: " + snapshot);
+                }
+            }
+            if (buffer.flip().getLong() != crc.getValue()) {
+                throw new IOException("Fotografia corrotta (CRC errato): " + snapshot);
+            }
+        }
+    }
+
+    private Path logsDir() {
+        return dir.resolve("logs");
+    }
+
+    private Path latestSnapshot() throws IOException {
+        TreeMap<Long, Path> snapshots = listSnapshots();
+        return snapshots.isEmpty() ? null : snapshots.lastEntry().getValue();
+    }
+
+    // Fotografie presenti nella cartella, ordinate per sequenza di rotazione
+    private TreeMap<Long, Path> listSnapshots() throws IOException {
+        TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    snapshots.put(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(),
+                            name.length() - SNAPSHOT_SUFFIX.length())), file);
+                } catch (NumberFormatException ignored) {
+                    // non è una fotografia
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Rende durevole la creazione o la rinomina di un file nella cartella.
+     * Non tutti i sistemi permettono di aprire una cartella: in quel caso non si può fare di più.
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // ad esempio su Windows
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package Master;
+
+import Common.BinaryFrame;
+import Common.Protocol;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Variante del server del master basata su Selector e SocketChannel non bloccanti.
+ * Un solo thread accetta le connessioni, legge i byte in arrivo e li divide in righe;
+ * i comandi vengono eseguiti da un pool fisso di worker. Il numero di thread non dipende
+ * più dal numero di peer collegati, quindi il master regge decine di migliaia di connessioni.
+ * I comandi di una connessione sono eseguiti uno alla volta nell'ordine di arrivo,
+ * così le risposte senza ID restano ordinate come nel PeerHandler.
+ */
+class NioMasterServer {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Lunghezza massima di una riga di comando: oltre, la connessione viene chiusa
+    private static final int MAX_LINE_LENGTH = 4 * 1024 * 1024;
+    // Oltre questi limiti la connessione smette di essere letta finché i worker non recuperano
+    private static final int MAX_PENDING_COMMANDS = 64;
+    private static final long MAX_PENDING_OUTPUT = 1024 * 1024;
+    // Comandi eseguiti di fila per una connessione prima di cedere il worker alle altre
+    private static final int COMMANDS_PER_TURN = 16;
+    // Coda delle connessioni in attesa di accept: serve a reggere i picchi di nuovi peer
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    // Un buffer per comporre i frame binari per ogni worker, invece che uno per connessione
+    private static final ThreadLocal<BinaryFrame.Writer> FRAME_WRITERS = ThreadLocal.withInitial(BinaryFrame.Writer::new);
+
+    private final int port;
+    private final MasterState state;
+    // pool fisso che esegue i comandi sullo stato del master
+    private final ExecutorService workers;
+    // Buffer di lettura del thread del selector, su heap: le righe complete si decodificano direttamente
+    // dal suo array, senza copiare i byte di ogni lettura
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // connessioni con risposte da inviare o lettura da riattivare, raccolte dal thread del selector
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    NioMasterServer(int port, MasterState state, ExecutorService workers) {
+        this.port = port;
+        this.state = state;
+        this.workers = workers;
+    }
+
+    /**
+     * Apre il canale in ascolto sulla porta.
+     */
+    void bind() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+    }
+
+    /**
+     * Ciclo del selector: eseguito nel thread chiamante finché non viene chiamato stop().
+     */
+    void run() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                applyInterestChanges();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            // ad esempio troppi file aperti: il server resta attivo per le connessioni esistenti
+                            System.err.println("Errore accept: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        // Peer disconnesso inaspettatamente
+                        connection.close();
+                    }
+                }
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Ferma il ciclo del selector e chiude tutte le connessioni.
+     */
+    void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            CommandProcessor processor = new CommandProcessor(state, channel.socket().getInetAddress());
+            Connection connection = new Connection(channel, processor);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    // Aggiorna, nel thread del selector, gli interessi delle connessioni segnalate dai worker
+    private void applyInterestChanges() {
+        Connection connection;
+        while ((connection = interestChanges.poll()) != null) {
+            connection.updateInterest();
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection connection) {
+                connection.close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Errore chiusura server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stato di una connessione: righe parziali, BATCH in lettura, comandi da eseguire e risposte da inviare.
+     * La lettura avviene nel thread del selector, l'esecuzione dei comandi nei worker.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final CommandProcessor processor;
+        private SelectionKey key;
+
+        // byte di una riga non ancora terminata da '\n'
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        // BATCH in lettura: righe ancora attese e righe già ricevute
+        private String batchTag;
+        private int batchRemaining;
+        private List<String> batchLines;
+        // divide le righe in token; usato solo dal thread del selector
+        private final CommandTokenizer tokenizer = new CommandTokenizer();
+        // dopo DISCONNECTED le righe successive vengono ignorate
+        private boolean disconnecting = false;
+        // connessione passata al protocollo binario con la riga BINARY, e frame non ancora completi
+        private boolean binary = false;
+        private ByteBuffer frameBuffer;
+
+        // comandi in attesa di esecuzione, eseguiti in ordine da un worker alla volta
+        private final ArrayDeque<Runnable> commands = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private final AtomicInteger pendingCommands = new AtomicInteger();
+        // risposte in attesa di essere scritte sul canale
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingOutput = new AtomicLong();
+        private volatile boolean closeAfterFlush = false;
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel, CommandProcessor processor) {
+            this.channel = channel;
+            this.processor = processor;
+        }
+
+        // Legge i byte disponibili e li divide in righe, lavorando direttamente sull'array di readBuffer:
+        // solo una riga che prosegue nella lettura successiva viene copiata in partialLine
+        void onReadable() throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            byte[] bytes = readBuffer.array();
+            int length = readBuffer.position();
+            int start = 0;
+            for (int i = 0; i < length && !binary; i++) {
+                if (bytes[i] == '\n') {
+                    String line;
+                    if (partialLine.size() == 0) {
+                        // il '\r' finale si esclude dagli indici, senza creare una seconda stringa
+                        int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                        line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+                    } else {
+                        partialLine.write(bytes, start, i - start);
+                        line = partialLine.toString(StandardCharsets.UTF_8);
+                        partialLine.reset();
+                        if (line.endsWith("\r")) {
+                            line = line.substring(0, line.length() - 1);
+                        }
+                    }
+                    start = i + 1;
+                    onLine(line);
+                    if (closed) {
+                        return;
+                    }
+                }
+            }
+            if (binary) {
+                // i byte dopo la riga BINARY (o di una lettura successiva) sono frame binari
+                onBinary(bytes, start, length - start);
+                if (closed) {
+                    return;
+                }
+            } else {
+                partialLine.write(bytes, start, length - start);
+                if (partialLine.size() > MAX_LINE_LENGTH) {
+                    close();
+                    return;
+                }
+            }
+            updateInterest();
+        }
+
+        // Accumula i byte ricevuti in modalità binaria ed estrae i frame completi
+        private void onBinary(byte[] bytes, int offset, int length) throws IOException {
+            if (frameBuffer.remaining() < length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(frameBuffer.capacity() * 2, frameBuffer.position() + length));
+                frameBuffer.flip();
+                bigger.put(frameBuffer);
+                frameBuffer = bigger;
+            }
+            frameBuffer.put(bytes, offset, length);
+            frameBuffer.flip();
+            try {
+                BinaryFrame frame;
+                while (!closed && (frame = BinaryFrame.poll(frameBuffer)) != null) {
+                    onFrame(frame);
+                }
+            } finally {
+                frameBuffer.compact();
+            }
+        }
+
+        // Accoda il comando di un frame binario; la risposta è un frame con lo stesso ID
+        private void onFrame(BinaryFrame frame) {
+            if (disconnecting) {
+                return;
+            }
+            final int id = frame.getRequestId();
+            final String[] fields = frame.getFields();
+            switch (fields[0]) {
+                case Protocol.DISCONNECTED -> {
+                    disconnecting = true;
+                    enqueue(() -> {
+                        respondFrame(id, processor.handleDisconnect(fields));
+                        closeAfterFlush = true;
+                        requestInterestUpdate();
+                    });
+                }
+                // i frame sono già indipendenti e in pipeline: il BATCH non serve
+                case Protocol.BATCH -> enqueue(() -> respondFrame(id, List.of(Protocol.ERROR, "BATCH non supportato nel protocollo binario")));
+                default -> enqueue(() -> respondFrame(id, processor.execute(fields)));
+            }
+        }
+
+        // Interpreta una riga ricevuta e accoda il comando corrispondente
+        private void onLine(String line) {
+            if (disconnecting) {
+                return;
+            }
+            // Riga di un BATCH in lettura
+            if (batchRemaining > 0) {
+                batchLines.add(line);
+                if (--batchRemaining == 0) {
+                    final String tag = batchTag;
+                    final List<String> lines = batchLines;
+                    batchLines = null;
+                    enqueue(() -> respond(tag, processor.executeBatch(lines)));
+                }
+                return;
+            }
+
+            String[] tokens = tokenizer.tokenize(line);
+            // Eventuale ID della richiesta, da ripetere nella risposta
+            String tag = tokenizer.getTag();
+            if (tokens.length == 0) {
+                if (tag != null) {
+                    final String id = tag;
+                    enqueue(() -> respond(id, Protocol.ERROR + " Comando mancante"));
+                }
+                return;
+            }
+
+            final String id = tag;
+            final String[] request = tokens;
+            if (tokens[0].equals(Protocol.BINARY) && tag == null) {
+                binary = true;
+                frameBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                enqueue(() -> respond(null, Protocol.BINARY_OK));
+                return;
+            }
+            switch (tokens[0]) {
+                case Protocol.DISCONNECTED -> {
+                    disconnecting = true;
+                    enqueue(() -> {
+                        respond(id, CommandProcessor.toLine(processor.handleDisconnect(request)));
+                        // la connessione si chiude appena la risposta è stata inviata
+                        closeAfterFlush = true;
+                        requestInterestUpdate();
+                    });
+                }
+                case Protocol.BATCH -> {
+                    int n = CommandProcessor.parseBatchSize(tokens);
+                    if (n < 0) {
+                        enqueue(() -> respond(id, Protocol.ERROR + " Dimensione del BATCH non valida"));
+                    } else if (n == 0) {
+                        enqueue(() -> respond(id, processor.executeBatch(List.of())));
+                    } else {
+                        batchTag = tag;
+                        batchRemaining = n;
+                        batchLines = new ArrayList<>(n);
+                    }
+                }
+                default -> enqueue(() -> respond(id, processor.dispatch(request)));
+            }
+        }
+
+        // Accoda un comando e, se nessun worker sta servendo la connessione, ne avvia uno
+        private void enqueue(Runnable command) {
+            pendingCommands.incrementAndGet();
+            synchronized (commands) {
+                commands.add(command);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // pool in chiusura: il master si sta arrestando
+                close();
+            }
+        }
+
+        // Eseguito da un worker: esegue in ordine alcuni comandi della connessione.
+        // Un comando che fallisce chiude la connessione; in ogni caso il worker o libera la connessione
+        // (scheduled = false) o la rimette in coda, così non resta mai segnata come servita da nessuno
+        private void drain() {
+            boolean idle = false;
+            try {
+                for (int i = 0; i < COMMANDS_PER_TURN; i++) {
+                    Runnable command;
+                    synchronized (commands) {
+                        command = commands.poll();
+                        if (command == null) {
+                            scheduled = false;
+                            idle = true;
+                            return;
+                        }
+                    }
+                    if (!closed) {
+                        try {
+                            command.run();
+                        } catch (RuntimeException e) {
+                            System.err.println("Errore nell'esecuzione di un comando: " + e);
+                            close();
+                        }
+                    }
+                    if (pendingCommands.decrementAndGet() < MAX_PENDING_COMMANDS) {
+                        requestInterestUpdate();
+                    }
+                }
+            } finally {
+                // restano comandi (o il turno si è interrotto): cede il worker e si rimette in coda nel pool
+                if (!idle) {
+                    schedule();
+                }
+            }
+        }
+
+        // Eseguito da un worker: accoda la risposta e chiede al selector di inviarla
+        private void respond(String tag, String msg) {
+            String reply = tag == null ? msg + "\r\n" : tag + " " + msg + "\r\n";
+            byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+            output.add(ByteBuffer.wrap(bytes));
+            pendingOutput.addAndGet(bytes.length);
+            requestInterestUpdate();
+        }
+
+        // Eseguito da un worker: codifica il frame nel buffer del worker e ne accoda una copia
+        private void respondFrame(int requestId, List<String> fields) {
+            ByteBuffer frame = FRAME_WRITERS.get().encode(requestId, fields);
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame).flip();
+            output.add(copy);
+            pendingOutput.addAndGet(copy.capacity());
+            requestInterestUpdate();
+        }
+
+        private void requestInterestUpdate() {
+            interestChanges.add(this);
+            selector.wakeup();
+        }
+
+        // Scrive le risposte in coda finché il canale le accetta
+        void onWritable() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = output.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                output.poll();
+                pendingOutput.addAndGet(-buffer.capacity());
+            }
+            updateInterest();
+        }
+
+        // Eseguito nel thread del selector: scrittura se ci sono risposte, lettura se la connessione non è in ritardo
+        void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            if (output.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+            int ops = 0;
+            if (!output.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (!disconnecting && pendingCommands.get() < MAX_PENDING_COMMANDS
+                    && pendingOutput.get() < MAX_PENDING_OUTPUT) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+}
@@ -1,14 +1,17 @@
 package Master;
 
-import Common.DownloadLogEntry;
+import Common.BinaryFrame;
 import Common.Protocol;
 import java.io.*;
-import java.net.InetAddress;
 import java.net.Socket;
-import java.time.Instant;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Ogni istanza gestisce la comunicazione tra un singolo peer e il master, 
@@ -16,52 +19,122 @@ import java.util.Set;
 */
 class PeerHandler implements Runnable {
 
+    // Numero massimo di comandi con ID in esecuzione contemporanea per connessione:
+    // oltre questo limite la lettura si ferma finché una risposta non è stata inviata
+    private static final int MAX_IN_FLIGHT = 64;
+
     // connessione con un peer
     private final Socket socket;
-    // stato globale del master
-    private final MasterState state;
+    // esegue i comandi sullo stato globale del master
+    private final CommandProcessor processor;
+    // divide le righe lette in token; usato solo dal thread di lettura
+    private final CommandTokenizer tokenizer = new CommandTokenizer();
+    // pool del master su cui eseguire i comandi con ID
+    private final ExecutorService executor;
     // stream per leggere / scrivere dal e verso il peer
     private BufferedReader in;
     private BufferedWriter out;
+    // dopo la negoziazione del protocollo binario: stream dei frame e buffer per comporli
+    private OutputStream binaryOut;
+    private final BinaryFrame.Writer frameWriter = new BinaryFrame.Writer();
+    // le risposte possono essere scritte da più thread: il lock evita che le righe si mescolino
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
 
     /**
-     * Costruttore: inizializza socket e stato condiviso
+     * Costruttore: inizializza socket, stato condiviso e pool per i comandi con ID
     */
-    PeerHandler(Socket socket, MasterState state) {
+    PeerHandler(Socket socket, MasterState state, ExecutorService executor) {
         this.socket = socket;
-        this.state = state;
+        this.processor = new CommandProcessor(state, socket.getInetAddress());
+        this.executor = executor;
     }
 
     /**
      * Metodo principale eseguito nel thread: legge e interpreta i comandi del peer.
+     * Un comando senza ID riceve la risposta subito, nell'ordine di arrivo.
+     * Un comando con ID (#<id> CMD ...) viene eseguito nel pool e la risposta (#<id> ...)
+     * può arrivare fuori ordine: il peer può così inviare più comandi senza attendere ogni risposta.
+     * BATCH <n> seguito da n righe di comandi riceve BATCH_RESPONSE <n> seguito dalle n risposte.
+     * La riga BINARY passa la connessione al protocollo binario (vedi BinaryFrame).
     */
     @Override
     public void run() {
         // Prepara gli stream per comunicare con il peer
         try {
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
 
             // Ciclo che ascolta i comandi inviati dal peer riga per riga
             String line;
             while ((line = in.readLine()) != null) {
-                // Divisione della riga in token, usando lo spazio come delimitatore
-                String[] tokens = line.trim().split("\\s+");
-                if (tokens.length == 0) continue;
+                // Divisione della riga in token, senza l'eventuale ID della richiesta
+                String[] tokens = tokenizer.tokenize(line);
+                // Eventuale ID della richiesta, da ripetere nella risposta
+                String tag = tokenizer.getTag();
+                if (tokens.length == 0) {
+                    if (tag != null) {
+                        sendResponse(tag, Protocol.ERROR + " Comando mancante");
+                    }
+                    continue;
+                }
 
                 String cmd = tokens[0];
-                // Invoca il metodo corrispondente al comando.
-                switch (cmd) {
-                    case Protocol.REGISTER                   -> handleRegister(tokens);
-                    case Protocol.UPDATE                     -> handleUpdate(tokens);
-                    case Protocol.LIST_DATA_REMOTE           -> handleListData();
-                    case Protocol.GET_PEERS_FOR_RESOURCE     -> handleGetPeers(tokens);
-                    case Protocol.DOWNLOAD_LOG               -> handleDownloadLog(tokens);
-                    case Protocol.DOWNLOAD_FAIL              -> handleDownloadFail(tokens);
-                    case Protocol.DISCONNECTED               -> {handleDisconnect(tokens);
-                        return; // chiude il thread
+                if (cmd.equals(Protocol.BINARY) && tag == null) {
+                    // Il peer attende BINARY_OK prima di inviare frame: nel BufferedReader non resta nulla da leggere
+                    sendResponse(null, Protocol.BINARY_OK);
+                    runBinary();
+                    return;
+                }
+                if (cmd.equals(Protocol.DISCONNECTED)) {
+                    // Prima di chiudere attende le risposte dei comandi ancora in esecuzione
+                    inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+                    sendResponse(tag, processor.handleDisconnect(tokens));
+                    return; // chiude il thread
+                }
+
+                List<String> batch = null;
+                if (cmd.equals(Protocol.BATCH)) {
+                    batch = readBatch(tokens);
+                    if (batch == null) {
+                        sendResponse(tag, Protocol.ERROR + " Dimensione del BATCH non valida");
+                        continue;
+                    }
+                }
+
+                if (tag == null) {
+                    // Comando senza ID: risposta immediata e ordinata
+                    if (batch == null) {
+                        sendResponse(null, processor.execute(tokens));
+                    } else {
+                        sendResponse(null, processor.executeBatch(batch));
+                    }
+                } else {
+                    // Comando con ID: eseguito nel pool, la risposta arriva appena pronta
+                    inFlight.acquireUninterruptibly();
+                    final String id = tag;
+                    final String[] request = tokens;
+                    final List<String> requests = batch;
+                    try {
+                        executor.execute(() -> {
+                            try {
+                                if (requests == null) {
+                                    sendResponse(id, processor.execute(request));
+                                } else {
+                                    sendResponse(id, processor.executeBatch(requests));
+                                }
+                            } catch (IOException e) {
+                                // la connessione è caduta: il ciclo di lettura se ne accorgerà
+                                cleanup();
+                            } finally {
+                                inFlight.release();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // pool in chiusura: il master si sta arrestando
+                        inFlight.release();
+                        return;
                     }
-                    default                                 -> sendResponse(Protocol.ERROR + " UNKNOWN_COMMAND");
                 }
             }
         } catch (IOException e) {
@@ -72,187 +145,118 @@ class PeerHandler implements Runnable {
         }
     }
 
-     /**
-     * Gestisce il comando DOWNLOAD_LOG.
-     * Sintassi: DOWNLOAD_LOG <resource> <fromPeer> <toPeer> <success>
-     */
-
-    private void handleDownloadLog(String[] tokens) throws IOException {
-        if (tokens.length != 5) {
-            sendResponse(Protocol.ERROR + " Mancano argomenti per il comando DOWNLOAD_LOG");
-            return;
-        }
-        String resource = tokens[1];
-        String fromPeer = tokens[2];
-        String toPeer = tokens[3];
-        boolean success = Boolean.parseBoolean(tokens[4]);
-        // oggetto che rappresenta un tentativo di download 
-        DownloadLogEntry entry = new DownloadLogEntry(Instant.now(), resource, fromPeer, toPeer, success);
-        // Aggiunge il log appena creato alla coda di log nel MasterState
-        state.addDownloadLog(entry);
-        // Conferma che il log è stato ricevuto e registrato correttamente dal master
-        sendResponse(Protocol.LOG_OK);
-    }
-
     /**
-     * Gestisce il comando REGISTER.
-     * Sintassi: REGISTER <peerId> <peerPort> <numRisorse> <ris1> <ris2> ... <risN>
+     * Ciclo del protocollo binario: ogni frame è una richiesta con ID, eseguita nel pool
+     * come i comandi con ID del protocollo testuale; la risposta ha lo stesso ID.
     */
-    private void handleRegister(String[] tokens) throws IOException {
-        // Controlla che i parametri siano completi e coerenti
-        if (tokens.length < 4) {
-            sendResponse(Protocol.ERROR + " Mancano argomenti per il comando REGISTER");
-            return;
-        }
-        // ID del peer che si sta registrando
-        String peerId = tokens[1];
-        int peerPort;
-        // Parse la porta su cui il peer è in ascolto
-        try {
-            peerPort = Integer.parseInt(tokens[2]);
-        } catch (NumberFormatException ex) {
-            sendResponse(Protocol.ERROR + " PeerPort errata per REGISTER");
-            return;
-        }
-        // Parse il numero di risorse n che il peer dichiara di voler registrare.
-        int n;
-        try {
-            n = Integer.parseInt(tokens[3]);
-        } catch (NumberFormatException ex) {
-            sendResponse(Protocol.ERROR + " numRisorse errato per REGISTER");
-            return;
-        }
-        // Verifica che ci siano esattamente n risorse dopo i primi 4 token.
-        if (tokens.length != 4 + n) {
-            sendResponse(Protocol.ERROR + " Incoerenza di numero di risorse per REGISTER");
-            return;
-        }
-        // Costruisce il set (no duplicati) di risorse che il peer sta registrando
-        Set<String> resources = new HashSet<>();
-        for (int i = 0; i < n; i++) {
-            resources.add(tokens[4 + i]);
+    private void runBinary() throws IOException {
+        binaryOut = new BufferedOutputStream(socket.getOutputStream());
+        BinaryFrame.Reader reader = new BinaryFrame.Reader(new BufferedInputStream(socket.getInputStream()));
+        BinaryFrame frame;
+        while ((frame = reader.next()) != null) {
+            final int id = frame.getRequestId();
+            final String[] fields = frame.getFields();
+            String cmd = fields[0];
+            if (cmd.equals(Protocol.DISCONNECTED)) {
+                inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+                sendFrame(id, processor.handleDisconnect(fields));
+                return;
+            }
+            if (cmd.equals(Protocol.BATCH)) {
+                // i frame sono già indipendenti e in pipeline: il BATCH non serve
+                sendFrame(id, List.of(Protocol.ERROR, "BATCH non supportato nel protocollo binario"));
+                continue;
+            }
+            inFlight.acquireUninterruptibly();
+            try {
+                executor.execute(() -> {
+                    try {
+                        sendFrame(id, processor.execute(fields));
+                    } catch (IOException e) {
+                        cleanup();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                return;
+            }
         }
-        // Registra il peer nello stato condiviso, associando l'indirizzo e le risorse 
-        InetAddress address = socket.getInetAddress();
-        state.registerPeer(peerId, address, peerPort, resources);
-        // Conferma la registrazione al peer
-        sendResponse(Protocol.REGISTERED + " " + peerId);
     }
 
-    /**
-     * Gestisce il comando UPDATE --> Aggiorna le risorse disponibili di un peer già registrato.
-     * Sintassi: UPDATE <peerId> <numRisorse> <ris1> ... <risN>
-    */
-    private void handleUpdate(String[] tokens) throws IOException {
-        if (tokens.length < 3) {
-            sendResponse(Protocol.ERROR + " Mancano argomenti per il comando UPDATE");
-            return;
-        }
-        // Controlla che i parametri siano completi e coerenti
-        String peerId = tokens[1];
-        int n;
+    // Invia un frame di risposta; il buffer del frame è condiviso, quindi si compone sotto il lock
+    private void sendFrame(int requestId, List<String> fields) throws IOException {
+        writeLock.lock();
         try {
-            n = Integer.parseInt(tokens[2]);
-        } catch (NumberFormatException ex) {
-            sendResponse(Protocol.ERROR + " numRisorse errato per UPDATE");
-            return;
-        }
-        if (tokens.length != 3 + n) {
-            sendResponse(Protocol.ERROR + " Incoerenza di numero di risorse per UPDATE");
-            return;
-        }
-         // Costruisce il nuovo set di risorse
-        Set<String> newResources = new HashSet<>();
-        for (int i = 0; i < n; i++) {
-            newResources.add(tokens[3 + i]);
+            ByteBuffer frame = frameWriter.encode(requestId, fields);
+            binaryOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            binaryOut.flush();
+        } finally {
+            writeLock.unlock();
         }
-        // Aggiorna lo stato del peer e conferma l'aggiornamento
-        state.updatePeerResources(peerId, newResources);
-        sendResponse(Protocol.UPDATED + " " + peerId);
     }
 
     /**
-     * Gestisce il comando LIST_DATA_REMOTE.
-     * Restituisce l'elenco completo delle risorse condivise e i peer che le possiedono.
+     * Legge le righe di un BATCH <n>. Ritorna null se n non è valido.
     */
-    private void handleListData() throws IOException {
-        Map<String, Set<String>> all = state.listAllResources();
-        StringBuilder sb = new StringBuilder();
-        sb.append(Protocol.LIST_DATA_RESPONSE).append(" ").append(all.size());
-        // Per ogni risorsa, aggiunge la lista dei peer che la posseggono
-        for (var entry : all.entrySet()) {
-            String risorsa = entry.getKey();
-            Set<String> peers = entry.getValue();
-            sb.append(" ").append(risorsa).append(" ").append(peers.size());
-            for (String pid : peers) {
-                sb.append(" ").append(pid);
-            }
+    private List<String> readBatch(String[] tokens) throws IOException {
+        int n = CommandProcessor.parseBatchSize(tokens);
+        if (n < 0) {
+            return null;
         }
-        // Invia risposta al peer
-        sendResponse(sb.toString());
-    }
-
-
-    /**
-     * Gestisce il comando GET_PEERS_FOR_RESOURCE --> Restituisce i peer che posseggono una risorsa specifica.
-     * Sintassi: GET_PEERS_FOR_RESOURCE <risorsa>
-     */
-    private void handleGetPeers(String[] tokens) throws IOException {
-        if (tokens.length != 2) {
-            sendResponse(Protocol.ERROR + " Mancano argomenti per il comando GET_PEERS_FOR_RESOURCE");
-            return;
+        List<String> lines = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("BATCH interrotto");
+            }
+            lines.add(line);
         }
-        String resource = tokens[1];
-        String reply = state.getPeersFor(resource);
-        sendResponse(reply);
+        return lines;
     }
 
-
     /**
-     * Gestisce il comando DOWNLOAD_FAIL --> Cerca un nuovo peer per scaricare la risorsa.
-     * Sintassi: DOWNLOAD_FAIL <risorsa> <peerFallito>
+     * Invia una risposta al peer nel formato del protocollo,
+     * preceduta dall'ID della richiesta se presente
     */
-    private void handleDownloadFail(String[] tokens) throws IOException {
-        if (tokens.length != 3) {
-            sendResponse(Protocol.ERROR + " Mancano argomenti per il comando DOWNLOAD_FAIL");
-            return;
-        }
-        String risorsa = tokens[1];
-        String failedPeer = tokens[2];
-        // Richiede un nuovo peer per la risorsa
-        String nextPeer = state.handleDownloadFail(risorsa, failedPeer);
-        // Nessun peer alternativo disponibile
-        if (nextPeer == null) {
-            sendResponse(Protocol.RESOURCE_NOT_FOUND + " " + risorsa);
-        // Altrimenti, risponde con il peer suggerito
-        } else {
-            sendResponse(Protocol.DOWNLOAD_PERMITTED + " " + risorsa + " " + nextPeer);
+    private void sendResponse(String tag, String msg) throws IOException {
+        writeLock.lock();
+        try {
+            if (tag != null) {
+                out.write(tag);
+                out.write(" ");
+            }
+            out.write(msg);
+            out.write("\r\n");
+            out.flush();
+        } finally {
+            writeLock.unlock();
         }
     }
 
     /**
-     * Gestisce il comando DISCONNECTED --> Rimuove il peer dal sistema.
-     * Sintassi: DISCONNECTED <peerId> 
+     * Invia una risposta scrivendo i campi direttamente nel buffer dello stream,
+     * senza comporre prima la riga in una nuova stringa
     */
-    private void handleDisconnect(String[] tokens) throws IOException {
-        if (tokens.length != 2) {
-            sendResponse(Protocol.ERROR + " Mancano argomenti per il comando DISCONNECTED");
-            return;
+    private void sendResponse(String tag, List<String> fields) throws IOException {
+        writeLock.lock();
+        try {
+            if (tag != null) {
+                out.write(tag);
+                out.write(' ');
+            }
+            for (int i = 0; i < fields.size(); i++) {
+                if (i > 0) {
+                    out.write(' ');
+                }
+                out.write(fields.get(i));
+            }
+            out.write("\r\n");
+            out.flush();
+        } finally {
+            writeLock.unlock();
         }
-        String peerId = tokens[1];
-        // Rimuove il peer dallo stato
-        state.removePeer(peerId);
-        // Conferma disconnessione
-        sendResponse(Protocol.DISCONNECTED_OK + " " + peerId);
-    }
-
-    /**
-     * Invia una risposta al peer nel formato del protocollo
-    */
-    private void sendResponse(String msg) throws IOException {
-        out.write(msg);
-        out.write("\r\n");
-        out.flush();
     }
 
     /**
@@ -0,0 +1,409 @@
+package Master;
+
+import Common.Protocol;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Fotografia immutabile dell'indice risorsa -> peer a una certa versione.
+ * Una volta pubblicata non cambia più: più thread possono leggerla senza lock.
+ * Per ogni risorsa tiene la stessa IdBitmap pubblicata nell'indice, senza copiarla:
+ * gli id dei peer diventano nomi solo quando una risposta viene composta, e solo se alla versione
+ * della fotografia l'id era già del peer che lo ha ora (un id liberato può essere stato riassegnato).
+ * Le risorse sono in ordine alfabetico, divise in blocchi di al più CHUNK_SIZE:
+ * la fotografia successiva copia solo l'elenco dei blocchi e quelli che contengono risorse cambiate,
+ * gli altri sono condivisi, così il costo di una ricostruzione non cresce con tutto il catalogo.
+ * La risposta a LIST_DATA_REMOTE viene composta alla prima richiesta e poi riusata
+ * finché l'indice non cambia versione.
+ */
+class ResourceSnapshot {
+
+    // Numero massimo di risorse in un blocco
+    static final int CHUNK_SIZE = 256;
+    // Un blocco ricostruito più piccolo di così viene unito al successivo: l'elenco non si riempie di blocchi quasi vuoti
+    private static final int MIN_CHUNK_SIZE = CHUNK_SIZE / 4;
+
+    private final long version;
+    // blocchi in ordine, mai vuoti; ogni risorsa ha la bitmap immutabile dei suoi peer
+    private final Chunk[] chunks;
+    private final int size;
+    // nome del peer con un certo id alla versione della fotografia, null se l'id non è più suo
+    private final PeerNames peerNames;
+    private final Map<String, Set<String>> view = new View();
+    // risposta serializzata, calcolata al primo uso
+    private volatile List<String> listFields;
+    private volatile String listResponse;
+
+    private ResourceSnapshot(long version, Chunk[] chunks, int size, PeerNames peerNames) {
+        this.version = version;
+        this.chunks = chunks;
+        this.size = size;
+        this.peerNames = peerNames;
+    }
+
+    /** ritorna la fotografia di un indice vuoto; peerNames traduce gli id dei peer in nomi */
+    static ResourceSnapshot empty(PeerNames peerNames) {
+        return new ResourceSnapshot(-1, new Chunk[0], 0, peerNames);
+    }
+
+    /** ritorna la versione dell'indice fotografata */
+    long getVersion() {
+        return version;
+    }
+
+    /** ritorna la mappa ordinata e immutabile risorsa -> peer */
+    Map<String, Set<String>> getResources() {
+        return view;
+    }
+
+    /**
+     * Crea la fotografia della versione successiva ricalcolando solo le risorse cambiate con index,
+     * che ritorna la bitmap dei peer della risorsa, vuota se non ne ha più.
+     * I blocchi senza risorse cambiate sono condivisi con questa fotografia; quelli toccati vengono
+     * ricostruiti e, se crescono oltre CHUNK_SIZE, divisi.
+     */
+    ResourceSnapshot withChanges(long newVersion, Function<String, IdBitmap> index, Collection<String> changed) {
+        String[] keys = changed.toArray(new String[0]);
+        Arrays.sort(keys);
+        List<Chunk> next = new ArrayList<>(chunks.length + 1);
+        Run run = new Run();
+        int k = 0;
+        for (int c = 0; c < chunks.length; c++) {
+            // le risorse cambiate prima del primo nome del blocco successivo appartengono a questo blocco
+            String bound = c + 1 < chunks.length ? chunks[c + 1].names[0] : null;
+            int end = k;
+            while (end < keys.length && (bound == null || keys[end].compareTo(bound) < 0)) {
+                end++;
+            }
+            if (end == k && run.size() == 0) {
+                next.add(chunks[c]);
+                continue;
+            }
+            run.merge(chunks[c], keys, k, end, index);
+            k = end;
+            if (run.size() >= MIN_CHUNK_SIZE) {
+                run.flushTo(next);
+            }
+        }
+        // senza blocchi (indice vuoto) tutte le risorse cambiate sono nuove
+        run.merge(null, keys, k, keys.length, index);
+        run.flushTo(next);
+        int total = 0;
+        for (Chunk chunk : next) {
+            total += chunk.names.length;
+        }
+        return new ResourceSnapshot(newVersion, next.toArray(new Chunk[0]), total, peerNames);
+    }
+
+    /**
+     * Ritorna una pagina del catalogo: al massimo limit risorse successive a cursor (esclusa) in ordine
+     * alfabetico, filtrate con pattern. cursor null parte dall'inizio; pattern null non filtra.
+     * Il pattern è un prefisso, oppure un glob con '*' (qualsiasi sequenza) e '?' (un carattere):
+     * la parte prima del primo carattere jolly limita la ricerca a un intervallo dell'indice ordinato.
+     * Risposta: LIST_DATA_PAGE <prossimoCursor|-> <numRisorse> <ris1> <numPeer> <pid1> ...
+     * con "-" quando non ci sono altre pagine.
+     */
+    List<String> getPage(String cursor, int limit, String pattern) {
+        String prefix = "";
+        Pattern glob = null;
+        if (pattern != null) {
+            int wildcard = firstWildcard(pattern);
+            prefix = wildcard < 0 ? pattern : pattern.substring(0, wildcard);
+            if (wildcard >= 0) {
+                glob = compileGlob(pattern);
+            }
+        }
+        // le chiavi che iniziano con prefix sono consecutive a partire da prefix
+        String from = cursor != null && cursor.compareTo(prefix) > 0 ? cursor : prefix;
+
+        List<String> fields = new ArrayList<>();
+        fields.add(Protocol.LIST_DATA_PAGE);
+        fields.add(null); // prossimo cursore, noto alla fine
+        fields.add(null); // numero di risorse, noto alla fine
+        int count = 0;
+        String last = null;
+        boolean more = false;
+        int c = chunkFor(from);
+        int i = c < chunks.length ? ceiling(chunks[c], from) : 0;
+        scan:
+        for (; c < chunks.length; c++, i = 0) {
+            Chunk chunk = chunks[c];
+            for (; i < chunk.names.length; i++) {
+                String name = chunk.names[i];
+                if (!name.startsWith(prefix)) {
+                    break scan;
+                }
+                // la ricerca include il cursore, che era l'ultima risorsa della pagina precedente
+                if (name.equals(cursor) || (glob != null && !glob.matcher(name).matches())) {
+                    continue;
+                }
+                if (count == limit) {
+                    more = true;
+                    break scan;
+                }
+                appendEntry(fields, name, chunk.peers[i]);
+                last = name;
+                count++;
+            }
+        }
+        fields.set(1, more ? last : Protocol.NO_CURSOR);
+        fields.set(2, Integer.toString(count));
+        return fields;
+    }
+
+    // Ritorna l'indice dell'ultimo blocco che inizia con un nome non successivo a key (0 se non ce n'è)
+    private int chunkFor(String key) {
+        int low = 0;
+        int high = chunks.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (chunks[mid].names[0].compareTo(key) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // Ritorna la posizione nel blocco del primo nome non precedente a key
+    private static int ceiling(Chunk chunk, String key) {
+        int i = Arrays.binarySearch(chunk.names, key);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Traduce il glob in espressione regolare: '*' e '?' sono jolly, il resto è letterale
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    /**
+     * Ritorna la risposta a LIST_DATA_REMOTE come campi (per il protocollo binario):
+     * LIST_DATA_RESPONSE <numRisorse> <ris1> <numPeer> <pid1> ... <risN> <numPeer> <pid1> ...
+     */
+    List<String> getListFields() {
+        List<String> fields = listFields;
+        if (fields == null) {
+            List<String> all = new ArrayList<>();
+            all.add(Protocol.LIST_DATA_RESPONSE);
+            all.add(Integer.toString(size));
+            for (Chunk chunk : chunks) {
+                for (int i = 0; i < chunk.names.length; i++) {
+                    appendEntry(all, chunk.names[i], chunk.peers[i]);
+                }
+            }
+            // più thread possono calcolarla insieme: il risultato è lo stesso
+            fields = Collections.unmodifiableList(all);
+            listFields = fields;
+        }
+        return fields;
+    }
+
+    /**
+     * Ritorna la stessa risposta come riga del protocollo testuale.
+     */
+    String getListResponse() {
+        String response = listResponse;
+        if (response == null) {
+            response = String.join(" ", getListFields());
+            listResponse = response;
+        }
+        return response;
+    }
+
+    // Aggiunge ai campi una risorsa seguita dal numero di peer e dai loro ID
+    private void appendEntry(List<String> fields, String resource, IdBitmap peers) {
+        fields.add(resource);
+        int count = fields.size();
+        fields.add(null); // numero di peer, noto alla fine
+        peers.forEach(id -> {
+            String name = peerNames.nameAt(id, version);
+            if (name != null) {
+                fields.add(name);
+            }
+        });
+        fields.set(count, Integer.toString(fields.size() - count - 1));
+    }
+
+    // Nomi dei peer con gli id indicati, per la vista come mappa
+    private Set<String> names(IdBitmap peers) {
+        Set<String> names = new HashSet<>(peers.cardinality() * 2);
+        peers.forEach(id -> {
+            String name = peerNames.nameAt(id, version);
+            if (name != null) {
+                names.add(name);
+            }
+        });
+        return Collections.unmodifiableSet(names);
+    }
+
+    /** Traduce l'id di un peer nel nome, per bitmap lette dall'indice dopo averne letto la versione version */
+    interface PeerNames {
+        String nameAt(int id, long version);
+    }
+
+    /** Blocco immutabile di risorse consecutive con i rispettivi peer */
+    private static final class Chunk {
+        final String[] names;
+        final IdBitmap[] peers;
+
+        Chunk(String[] names, IdBitmap[] peers) {
+            this.names = names;
+            this.peers = peers;
+        }
+    }
+
+    /** Risorse dei blocchi in ricostruzione, in ordine, non ancora divise in nuovi blocchi */
+    private static final class Run {
+        private final List<String> names = new ArrayList<>();
+        private final List<IdBitmap> peers = new ArrayList<>();
+
+        int size() {
+            return names.size();
+        }
+
+        // Accoda le risorse del blocco (null se nessuno) unite a quelle cambiate keys[from, to), già ordinate
+        void merge(Chunk chunk, String[] keys, int from, int to, Function<String, IdBitmap> index) {
+            int n = chunk == null ? 0 : chunk.names.length;
+            int i = 0;
+            int j = from;
+            while (i < n || j < to) {
+                int cmp = i == n ? 1 : j == to ? -1 : chunk.names[i].compareTo(keys[j]);
+                if (cmp < 0) {
+                    names.add(chunk.names[i]);
+                    peers.add(chunk.peers[i]);
+                    i++;
+                } else {
+                    IdBitmap current = index.apply(keys[j]);
+                    if (!current.isEmpty()) {
+                        names.add(keys[j]);
+                        peers.add(current);
+                    }
+                    if (cmp == 0) {
+                        i++;
+                    }
+                    j++;
+                }
+            }
+        }
+
+        // Divide le risorse accumulate in blocchi di dimensione simile, al più CHUNK_SIZE
+        void flushTo(List<Chunk> out) {
+            int total = names.size();
+            if (total == 0) {
+                return;
+            }
+            int pieces = (total + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            int from = 0;
+            for (int p = 1; p <= pieces; p++) {
+                int to = (int) ((long) total * p / pieces);
+                out.add(new Chunk(names.subList(from, to).toArray(new String[0]),
+                        peers.subList(from, to).toArray(new IdBitmap[0])));
+                from = to;
+            }
+            names.clear();
+            peers.clear();
+        }
+    }
+
+    /** Vista della fotografia come mappa ordinata e immutabile, senza copiarla: i nomi dei peer si calcolano a ogni lettura */
+    private final class View extends AbstractMap<String, Set<String>> {
+        private final Set<Entry<String, Set<String>>> entries = new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Set<String>>> iterator() {
+                return new Iterator<>() {
+                    private int c = 0;
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return c < chunks.length;
+                    }
+
+                    @Override
+                    public Entry<String, Set<String>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Chunk chunk = chunks[c];
+                        Entry<String, Set<String>> entry = new SimpleImmutableEntry<>(chunk.names[i], names(chunk.peers[i]));
+                        if (++i == chunk.names.length) {
+                            c++;
+                            i = 0;
+                        }
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+
+        @Override
+        public Set<Entry<String, Set<String>>> entrySet() {
+            return entries;
+        }
+
+        @Override
+        public Set<String> get(Object key) {
+            if (!(key instanceof String name) || chunks.length == 0) {
+                return null;
+            }
+            Chunk chunk = chunks[chunkFor(name)];
+            int i = Arrays.binarySearch(chunk.names, name);
+            return i >= 0 ? names(chunk.peers[i]) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (!(key instanceof String name) || chunks.length == 0) {
+                return false;
+            }
+            return Arrays.binarySearch(chunks[chunkFor(name)].names, name) >= 0;
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package Peer;
 
+import Peer.client.PeerBusyException;
 import Peer.client.PeerClientToMaster;
 import Peer.client.PeerClientToPeer;
+import Peer.client.SwarmDownloader;
 import Peer.server.PeerServer;
+import Peer.server.UploadShaper;
 import Peer.utils.FileManager;
 import Peer.utils.Logger;
 
@@ -10,11 +13,42 @@ import java.util.*;
 import java.io.*;
 
 public class Client {
+    private static final String USAGE =
+            "Utilizzo corretto: java Client <masterAddress> <masterPort> [virtual] [maxUpload] [upload=<KB/s>] [conn=<KB/s>]";
+
     public static void main(String[] args) {
-        if (args.length != 2) {
-            Logger.error("Utilizzo corretto: java Client <masterAddress> <masterPort>");
+        if (args.length < 2 || args.length > 6) {
+            Logger.error(USAGE);
             return;
         }
+        // con "virtual" le richieste degli altri peer sono servite su virtual thread (Java 21+)
+        boolean virtualThreads = false;
+        // upload serviti contemporaneamente; oltre questi (e la coda) il peer risponde BUSY
+        int maxUploads = PeerServer.DEFAULT_MAX_UPLOADS;
+        // limiti di banda in upload in KB/s, totale e per connessione (0 = nessun limite)
+        long uploadLimit = 0;
+        long connectionLimit = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("virtual")) {
+                virtualThreads = true;
+                continue;
+            }
+            try {
+                if (args[i].startsWith("upload=")) {
+                    uploadLimit = Long.parseLong(args[i].substring("upload=".length()));
+                } else if (args[i].startsWith("conn=")) {
+                    connectionLimit = Long.parseLong(args[i].substring("conn=".length()));
+                } else {
+                    maxUploads = Integer.parseInt(args[i]);
+                }
+            } catch (NumberFormatException e) {
+                maxUploads = -1;
+            }
+            if (maxUploads <= 0 || uploadLimit < 0 || connectionLimit < 0) {
+                Logger.error(USAGE);
+                return;
+            }
+        }
 
         String masterIP = args[0];
         int masterPort = Integer.parseInt(args[1]);
@@ -90,7 +124,9 @@ public class Client {
         FileManager.setSharedFolderPath(myRepo.getPath());
         FileManager.setDownloadsFolderPath(myRepo.getPath());
 
-        PeerServer peerServer = new PeerServer(myPort);
+        // la coda ammette il doppio degli upload in corso prima di rispondere BUSY
+        UploadShaper shaper = new UploadShaper(uploadLimit * 1024, connectionLimit * 1024);
+        PeerServer peerServer = new PeerServer(myPort, virtualThreads, maxUploads, 2 * maxUploads, shaper);
         Thread serverThread = new Thread(peerServer);
         serverThread.start();
 
@@ -99,10 +135,13 @@ public class Client {
 
         PeerClientToMaster masterClient = new PeerClientToMaster(masterIP, masterPort);
         masterClient.register(peerName, myPort, localFiles);
+        // Risorse già comunicate al Master: gli aggiornamenti successivi inviano solo le differenze
+        List<String> announced = localFiles;
 
         // 5. Interazione con comandi
         Scanner scanner = new Scanner(System.in);
         PeerClientToPeer downloader = new PeerClientToPeer();
+        SwarmDownloader swarm = new SwarmDownloader();
 
         while (true) {
             System.out.print("> ");
@@ -115,11 +154,12 @@ public class Client {
                     if (parts.length == 2 && parts[1].equals("local")) {
                         localFiles = FileManager.getLocalFiles();
                         System.out.println("Local: " + localFiles);
-                    } else if (parts.length == 2 && parts[1].equals("remote")) {
-                        java.util.Map<String, java.util.List<String>> remote = masterClient.listRemoteResources();
-                        remote.forEach((r,p) -> System.out.println(r + " -> " + p));
+                    } else if (parts.length >= 2 && parts.length <= 3 && parts[1].equals("remote")) {
+                        // le risorse vengono stampate pagina per pagina; il filtro opzionale è un prefisso o un glob
+                        String pattern = parts.length == 3 ? parts[2] : null;
+                        masterClient.forEachRemoteResource(pattern, (r, p) -> System.out.println(r + " -> " + p));
                     } else {
-                        System.out.println("Uso: listdata local|remote");
+                        System.out.println("Uso: listdata local | listdata remote [prefisso|glob]");
                     }
                 }
                 case "add" -> {
@@ -129,7 +169,9 @@ public class Client {
                         try {
                             FileManager.createLocalFile(name, content);
                             localFiles = FileManager.getLocalFiles();
-                            masterClient.update(peerName, myPort, localFiles);
+                            if (masterClient.syncResources(peerName, myPort, announced, localFiles)) {
+                                announced = localFiles;
+                            }
                             System.out.println("File aggiunto: " + name);
                         } catch (IOException e) {
                             Logger.error("Impossibile creare il file: " + e.getMessage());
@@ -139,47 +181,47 @@ public class Client {
                     }
                 }
                 case "download" -> {
-                    if (parts.length == 2) {
-                        String resource = parts[1];
-                        List<String> peers = masterClient.getPeersForFile(resource);
-                        if (peers.isEmpty()) {
-                            Logger.warn("Risorsa non trovata: " + resource);
-                            break;
-                        }
-                        boolean success = false;
-                        for (String info : peers) {
-                            String[] t = info.split(" ");
-                            String pid = t[0];
-                            String ip = t[1];
-                            int port = Integer.parseInt(t[2]);
-                            byte[] data = downloader.requestFile(ip, port, resource);
-                            boolean attemptOk = false;
-                            if (data != null) {
-                                try {
-                                    FileManager.saveFile(resource, data);
-                                    localFiles = FileManager.getLocalFiles();
-                                    masterClient.update(peerName, myPort, localFiles);
-                                    Logger.info("File '" + resource + "' salvato in " + myRepo.getPath() + "/.");
-                                    attemptOk = true;
-                                    success = true;
-                                } catch (Exception e) {
-                                    Logger.error("Errore salvataggio: " + e.getMessage());
-                                }
+                    if (parts.length >= 2) {
+                        // download <r1> [<r2> ...]: i peer di tutte le risorse si chiedono al Master in un solo BATCH
+                        List<String> resources = Arrays.asList(line.substring(parts[0].length()).trim().split("\\s+"));
+                        Map<String, List<String>> holders = resources.size() == 1
+                                ? Map.of(resources.get(0), masterClient.getPeersForFile(resources.get(0)))
+                                : masterClient.getPeersForFiles(resources);
+                        boolean anySuccess = false;
+                        for (String resource : resources) {
+                            List<String> peers = holders.getOrDefault(resource, List.of());
+                            if (peers.isEmpty()) {
+                                Logger.warn("Risorsa non trovata: " + resource);
+                                continue;
                             }
-                            masterClient.logDownload(resource, pid, peerName, attemptOk);
-                            if (attemptOk) {
-                                break;
+                            if (downloadResource(resource, peers, peerName, masterClient, downloader, swarm)) {
+                                anySuccess = true;
+                                Logger.info("File '" + resource + "' salvato in " + myRepo.getPath() + "/.");
                             } else {
-                                masterClient.notifyDownloadFail(resource, pid);
+                                Logger.error("Download fallito per la risorsa " + resource);
                             }
                         }
-                        if (!success) {
-                            Logger.error("Download fallito per la risorsa " + resource);
+                        if (anySuccess) {
+                            localFiles = FileManager.getLocalFiles();
+                            if (masterClient.syncResources(peerName, myPort, announced, localFiles)) {
+                                announced = localFiles;
+                            }
                         }
                     } else {
-                        System.out.println("Uso: download <risorsa>");
+                        System.out.println("Uso: download <risorsa> [<risorsa> ...]");
+                    }
+                }
+                case "peers" -> {
+                    // peers all|any <r1> [<r2> ...]: peer con tutte le risorse o con almeno una
+                    if (parts.length == 3 && (parts[1].equals("all") || parts[1].equals("any"))) {
+                        List<String> resources = Arrays.asList(parts[2].split("\\s+"));
+                        List<String> peers = masterClient.getPeersHolding(resources, parts[1].equals("all"));
+                        System.out.println(peers.isEmpty() ? "Nessun peer trovato." : String.join("\n", peers));
+                    } else {
+                        System.out.println("Uso: peers all|any <risorsa> [<risorsa> ...]");
                     }
                 }
+                case "uploads" -> peerServer.getUploadStatus().forEach(System.out::println);
              case "quit" -> {
                     masterClient.disconnect(peerName);
                     peerServer.stop();
@@ -198,4 +240,92 @@ public class Client {
                 }
             }
         }
+
+    /**
+     * Scarica una risorsa dai peer indicati: in parallelo se sono più di uno,
+     * poi un peer alla volta con quelli rimasti se il download parallelo non è riuscito.
+     * Ogni tentativo viene registrato nel log del Master.
+     */
+    private static boolean downloadResource(String resource, List<String> peers, String peerName,
+                                            PeerClientToMaster masterClient, PeerClientToPeer downloader,
+                                            SwarmDownloader swarm) {
+        boolean success = false;
+        // Se più peer possiedono la risorsa, la scarica a blocchi in parallelo da tutti
+        if (peers.size() > 1) {
+            SwarmDownloader.Result result = swarm.download(resource, peers);
+            // un solo BATCH di log per tutti i peer sorgente
+            Map<String, Boolean> outcomes = new LinkedHashMap<>();
+            for (String pid : result.getSuccessfulPeers()) {
+                outcomes.put(pid, true);
+            }
+            for (String pid : result.getFailedPeers()) {
+                outcomes.put(pid, false);
+            }
+            masterClient.logDownloads(resource, peerName, outcomes);
+            for (String pid : result.getFailedPeers()) {
+                masterClient.notifyDownloadFail(resource, pid);
+            }
+            success = result.isCompleted();
+            // Se il download parallelo non è riuscito riprova un peer alla volta con quelli rimasti
+            List<String> remaining = new ArrayList<>();
+            for (String info : peers) {
+                if (!result.getFailedPeers().contains(info.split(" ")[0])) {
+                    remaining.add(info);
+                }
+            }
+            peers = remaining;
+        }
+        // Peer saturi (BUSY): si passa subito al successivo e, se nessuno completa il download,
+        // si riprovano una volta dopo l'attesa che hanno suggerito
+        List<String> busy = new ArrayList<>();
+        long retryAfter = 0;
+        for (String info : peers) {
+            if (success) {
+                break;
+            }
+            try {
+                success = downloadFrom(info, resource, peerName, masterClient, downloader);
+            } catch (PeerBusyException e) {
+                Logger.warn("Peer " + info.split(" ")[0] + " saturo: " + e.getMessage());
+                busy.add(info);
+                retryAfter = Math.max(retryAfter, e.getRetryAfterMs());
+            }
+        }
+        if (!success && !busy.isEmpty()) {
+            try {
+                Thread.sleep(retryAfter);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            for (String info : busy) {
+                if (success) {
+                    break;
+                }
+                try {
+                    success = downloadFrom(info, resource, peerName, masterClient, downloader);
+                } catch (PeerBusyException e) {
+                    Logger.warn("Peer " + info.split(" ")[0] + " ancora saturo: " + e.getMessage());
+                }
+            }
+        }
+        return success;
+    }
+
+    // Scarica la risorsa da un solo peer ("<pid> <ip> <porta>") e comunica l'esito al Master.
+    // Un peer saturo non viene segnalato come fallito: ha ancora la risorsa
+    private static boolean downloadFrom(String info, String resource, String peerName,
+                                        PeerClientToMaster masterClient, PeerClientToPeer downloader) throws PeerBusyException {
+        String[] t = info.split(" ");
+        String pid = t[0];
+        String ip = t[1];
+        int port = Integer.parseInt(t[2]);
+        // il file viene scritto direttamente nella repo durante la ricezione
+        boolean attemptOk = downloader.downloadFile(ip, port, resource);
+        masterClient.logDownload(resource, pid, peerName, attemptOk);
+        if (!attemptOk) {
+            masterClient.notifyDownloadFail(resource, pid);
+        }
+        return attemptOk;
+    }
 }
@@ -0,0 +1,108 @@
+package Peer.client;
+
+import Common.BinaryFrame;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Legge gli header delle risposte di un peer (righe di testo UTF-8 o frame binari) da un canale,
+ * in un ByteBuffer diretto che serve poi anche a ricevere il contenuto del file.
+ * Il canale viene letto a blocchi e non un byte alla volta: i byte del file arrivati insieme
+ * all'header restano nel buffer, dove PartialDownload.receive li trova e li scrive per primi
+ * senza copiarli altrove.
+ * Il buffer è sempre in modalità lettura: tra position e limit ci sono i byte non ancora consumati.
+ */
+class HeaderDecoder {
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    HeaderDecoder(ReadableByteChannel channel, int capacity) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+    }
+
+    /**
+     * Ritorna la prossima riga decodificata in UTF-8, senza il terminatore "\n" o "\r\n".
+     * Ritorna null se il flusso termina senza dati.
+     */
+    String readLine() throws IOException {
+        int scanned = buffer.position();
+        while (true) {
+            for (int i = scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = i > buffer.position() && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    String line = decode(buffer.position(), end);
+                    buffer.position(i + 1);
+                    return line;
+                }
+            }
+            // fill() sposta i byte non consumati all'inizio del buffer: la scansione riprende dallo stesso byte
+            int alreadyScanned = buffer.limit() - buffer.position();
+            if (!fill()) {
+                if (!buffer.hasRemaining()) {
+                    return null;
+                }
+                // ultima riga senza terminatore
+                String line = decode(buffer.position(), buffer.limit());
+                buffer.position(buffer.limit());
+                return line;
+            }
+            scanned = buffer.position() + alreadyScanned;
+        }
+    }
+
+    /**
+     * Ritorna il prossimo frame binario, oppure null se il flusso termina tra un frame e l'altro.
+     */
+    BinaryFrame readFrame() throws IOException {
+        while (true) {
+            BinaryFrame frame = BinaryFrame.poll(buffer);
+            if (frame != null) {
+                return frame;
+            }
+            if (!fill()) {
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("Frame troncato");
+                }
+                return null;
+            }
+        }
+    }
+
+    /** ritorna il buffer con i byte già letti dopo l'ultimo header, da passare a PartialDownload.receive */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /** ritorna il canale da cui leggere il resto del contenuto */
+    ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+    // Legge altri byte dal canale in coda a quelli non consumati; ritorna false a fine flusso
+    private boolean fill() throws IOException {
+        buffer.compact();
+        try {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Header più lungo di " + buffer.capacity() + " byte");
+            }
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            return read > 0;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private String decode(int start, int end) {
+        return StandardCharsets.UTF_8.decode(buffer.slice(start, end - start)).toString();
+    }
+}
@@ -0,0 +1,42 @@
+package Peer.client;
+
+import Common.Protocol;
+import java.io.IOException;
+
+/**
+ * Il peer sorgente ha risposto BUSY: è saturo, ma possiede ancora la risorsa.
+ * Chi scarica passa a un altro possessore e può riprovare questo dopo getRetryAfterMs();
+ * non va segnalato al Master come download fallito.
+ */
+public class PeerBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMs;
+
+    public PeerBusyException(String peer, long retryAfterMs) {
+        super("peer " + peer + " occupato, riprovare tra " + retryAfterMs + " ms");
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    /** ritorna l'attesa suggerita dal peer prima di riprovare */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    /**
+     * Se la riga è una risposta "BUSY <retryAfterMs>" ritorna l'eccezione corrispondente, altrimenti null.
+     */
+    static PeerBusyException parse(String peer, String[] reply) {
+        if (reply.length == 0 || !reply[0].equals(Protocol.BUSY)) {
+            return null;
+        }
+        long retryAfter = 0;
+        if (reply.length > 1) {
+            try {
+                retryAfter = Long.parseLong(reply[1]);
+            } catch (NumberFormatException ignored) { }
+        }
+        return new PeerBusyException(peer, retryAfter);
+    }
+}
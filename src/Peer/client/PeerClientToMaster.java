@@ -1,29 +1,74 @@
 /*
  * Classe che rappresenta la comunicazione tra il Peer Client e il Master.
  * Si occupa di:
- * - Creare un socket per connettersi al Master
+ * - Mantenere un'unica connessione persistente verso il Master, riaperta automaticamente se cade
  * - Inviare comandi come REGISTER, GET_PEEERS_FOR_RESOURCE, DOWNLOAD_FAIL, DISCONNECTED
  * - Ricevere e interpretare le risposte
- * - Chiudere automaticamente la connessione al termine
+ * - Chiudere la connessione alla disconnessione del peer
  */
 package Peer.client;
+import Common.BinaryFrame;
 import Common.Protocol;
 import Peer.utils.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class PeerClientToMaster {
     private final String masterAddress; // Indirizzo del Master
     private final int masterPort; // Porta del Master
 
+    // Numero massimo di comandi inviati in un singolo BATCH
+    private static final int BATCH_LIMIT = 1000;
+    // Risorse richieste per ogni pagina di LIST_DATA_REMOTE
+    private static final int LIST_PAGE_SIZE = 1000;
+    // Attesa massima per aprire la connessione, per l'handshake e per la risposta a una richiesta:
+    // la connessione è condivisa da tutti i thread, un Master bloccato non deve fermarli per sempre
+    private static final int TIMEOUT_MS = 30_000;
+    // Comandi che il Master può eseguire due volte senza effetti diversi: solo questi vengono
+    // reinviati se la connessione cade dopo l'invio. DOWNLOAD_LOG aggiungerebbe un log doppio
+    // e UPDATE_ADD / UPDATE_REMOVE tornerebbero VERSION_MISMATCH
+    private static final Set<String> IDEMPOTENT = Set.of(Protocol.REGISTER, Protocol.UPDATE,
+            Protocol.LIST_DATA_REMOTE, Protocol.GET_PEERS_FOR_RESOURCE, Protocol.GET_PEERS_FOR_RESOURCES,
+            Protocol.DOWNLOAD_FAIL, Protocol.DISCONNECTED);
+
+    // Connessione persistente verso il Master: il PeerHandler del Master serve più comandi
+    // sulla stessa connessione, quindi non serve un nuovo handshake TCP per ogni comando.
+    // I comandi portano un ID, così più thread possono usarla insieme senza attendersi a vicenda
+    private Connection connection;
+    // ReentrantLock invece di synchronized: l'apertura della connessione è I/O bloccante
+    // e un virtual thread fermo dentro un blocco synchronized occuperebbe il thread di piattaforma
+    private final ReentrantLock connectionLock = new ReentrantLock();
+
+    // Versione delle risorse del peer secondo il Master (da REGISTERED / UPDATED), -1 se sconosciuta.
+    // Ogni UPDATE_ADD / UPDATE_REMOVE dichiara la versione successiva
+    private final AtomicLong resourcesVersion = new AtomicLong(-1);
+
     // Costruttore che inizializza l'indirizzo e la porta del Master
     public PeerClientToMaster(String masterAddress, int masterPort) {
         this.masterAddress = masterAddress;
@@ -34,51 +79,102 @@ public class PeerClientToMaster {
         // Invia il comando di registrazione al Master
         // Invia il nome del peer, la porta e la lista delle risorse disponibili
         // Attende una risposta dal Master
-        // Chiude tutto
-        try(Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true); // per inviare messaggi al Master
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())); // per leggere le risposte dal Master
+        try{
             // Invia il comando di registrazione al Master
-            String joinedResources = String.join(" ", resources);
-            String cmdRegister = Protocol.REGISTER
-                    + " " + peerName
-                    + " " + peerPort
-                    + " " + resources.size()
-                    + " " + joinedResources;
-            out.println(cmdRegister);
+            List<String> cmdRegister = command(Protocol.REGISTER, peerName, String.valueOf(peerPort));
+            addResources(cmdRegister, resources);
 
             //Legge la risposta dal Master
-            String response = in.readLine();
+            String[] response = sendCommand(cmdRegister);
             // Espone la risposta del Master
-            Logger.info("Risposta dal Master alla registrazione: " + response);
-            if(response != null && response.startsWith(Protocol.REGISTERED)){
+            Logger.info("Risposta dal Master alla registrazione: " + String.join(" ", response));
+            if(response[0].equals(Protocol.REGISTERED)){
+                resourcesVersion.set(parseVersion(response));
                 Logger.info("Registrazione al Master completata con successo.");
             } else {
-                Logger.warn("Registrazione al Master fallita: " + response);
+                Logger.warn("Registrazione al Master fallita: " + String.join(" ", response));
             }
         } catch(IOException e){
             Logger.error("Errore durante la registrazione al Master: " + e.getMessage());
         }
     }
 
-     // Aggiorna le risorse del peer già registrato
-    public void update(String peerName, int peerPort, List<String> resources){
-        try(Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+     // Aggiorna le risorse del peer già registrato; ritorna true se il Master ha applicato l'elenco
+    public boolean update(String peerName, int peerPort, List<String> resources){
+        try{
+            List<String> cmdUpdate = command(Protocol.UPDATE, peerName);
+            addResources(cmdUpdate, resources);
 
-            String joinedResources = String.join(" ", resources);
-            String cmdUpdate = Protocol.UPDATE
-                    + " " + peerName
-                    + " " + resources.size()
-                    + " " + joinedResources;
-            out.println(cmdUpdate);
+            String[] response = sendCommand(cmdUpdate);
+            Logger.info("Risposta dal Master all'update: " + String.join(" ", response));
+            if (response[0].equals(Protocol.UPDATED)) {
+                resourcesVersion.set(parseVersion(response));
+                return true;
+            }
+        } catch(IOException e){
+            Logger.error("Errore durante l'update al Master: " + e.getMessage());
+        }
+        // lo stato delle risorse sul Master non è noto: la prossima sincronizzazione invia l'elenco completo
+        resourcesVersion.set(-1);
+        return false;
+    }
 
-            String response = in.readLine();
-            Logger.info("Risposta dal Master all'update: " + response);
+    // Comunica al Master solo le risorse cambiate tra oldResources e newResources con UPDATE_REMOVE e UPDATE_ADD,
+    // invece di reinviare l'elenco completo. Se il Master segnala una variazione fuori sequenza
+    // (o la versione non è nota) ripiega su un UPDATE completo con newResources.
+    // Ritorna true se il Master ha ora newResources: solo allora il chiamante può considerarle annunciate
+    public boolean syncResources(String peerName, int peerPort, Collection<String> oldResources, Collection<String> newResources){
+        Set<String> added = new HashSet<>(newResources);
+        added.removeAll(oldResources);
+        Set<String> removed = new HashSet<>(oldResources);
+        removed.removeAll(newResources);
+        if (added.isEmpty() && removed.isEmpty() && resourcesVersion.get() >= 0) {
+            return true;
+        }
+        try{
+            boolean applied = resourcesVersion.get() >= 0
+                    && sendDelta(Protocol.UPDATE_REMOVE, peerName, removed)
+                    && sendDelta(Protocol.UPDATE_ADD, peerName, added);
+            if (applied) {
+                return true;
+            }
         } catch(IOException e){
+            // la variazione può essere arrivata o no: la versione del Master non è più nota
+            resourcesVersion.set(-1);
             Logger.error("Errore durante l'update al Master: " + e.getMessage());
         }
+        Logger.warn("Variazione delle risorse non applicata dal Master: invio l'elenco completo.");
+        return update(peerName, peerPort, new ArrayList<>(newResources));
+    }
+
+    // Invia UPDATE_ADD / UPDATE_REMOVE con la versione successiva; ritorna false se il Master non l'ha applicata
+    private boolean sendDelta(String command, String peerName, Set<String> resources) throws IOException {
+        if (resources.isEmpty()) {
+            return true;
+        }
+        long next = resourcesVersion.get() + 1;
+        List<String> cmd = command(command, peerName, String.valueOf(next));
+        addResources(cmd, resources);
+        String[] response = sendCommand(cmd);
+        Logger.info("Risposta dal Master a " + command + ": " + String.join(" ", response));
+        if (response[0].equals(Protocol.UPDATED)) {
+            resourcesVersion.set(parseVersion(response));
+            return true;
+        }
+        resourcesVersion.set(-1);
+        return false;
+    }
+
+    // Legge la versione in fondo a "REGISTERED <peerId> <versione>" o "UPDATED <peerId> <versione>"
+    private static long parseVersion(String[] response){
+        if (response.length < 3) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(response[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     // Metodo per ricevere la lista dei peer che possiedono una risorsa specifica
@@ -86,102 +182,169 @@ public class PeerClientToMaster {
     // dove count è il numero di peer che possiedono la risorsa
     // e pid, ip, port sono rispettivamente l'ID del peer, l'indirizzo IP e la porta
     public List<String> getPeersForFile(String resourceName){
-        try(Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out  = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.println(Protocol.GET_PEERS_FOR_RESOURCE + " " + resourceName);
+        try{
             // Legge la risposta dal Master
-            String response = in.readLine();
-            if(response != null && response.startsWith(Protocol.PEER_FOR_RESOURCE)){
-                String[] parts = response.split("\\s+");
-                int count = Integer.parseInt(parts[1]);
-                List<String> peers = new ArrayList<>();
-                for(int i=0;i<count;i++){
-                    int idx = 2 + i*3;
-                    if(parts.length >= idx+3){
-                        String pid = parts[idx];
-                        String ip = parts[idx+1];
-                        String port = parts[idx+2];
-                        peers.add(pid + " " + ip + " " + port);
-                    }
-                    else{
-                        Logger.error("Risposta dal Master non contiene abbastanza informazioni sui peer per la risorsa '" + resourceName + "'. Risposta: " + response);
-                        return List.of(); // Ritorna una lista vuota se la risposta non è valida
-                    }
-                }
-                Logger.info("Trovati " + count + " peer per la risorsa '" + resourceName + "': " + peers);
-                return peers; // Ritorna la lista dei peer che possiedono la risorsa
-                
-            } else if(response != null && response.startsWith(Protocol.RESOURCE_NOT_FOUND)){
-                Logger.warn("Risorsa '" + resourceName + "' non trovata nel Master.");
-                return List.of();
-            
-        } else{
-                Logger.error("Risposta non valida dal Master: " + response);
-                return List.of();
-            }
+            String[] response = sendCommand(command(Protocol.GET_PEERS_FOR_RESOURCE, resourceName));
+            return parsePeers(resourceName, response);
         } catch (IOException e) {
             Logger.error("Errore durante la richiesta dei peer per la risorsa '" + resourceName + "': " + e.getMessage());
-            return List.of(); // Ritorna null in caso di errore
+            return List.of(); // Ritorna una lista vuota in caso di errore
+        }
+    }
+
+    // Come getPeersForFile, ma per più risorse con un unico BATCH (un solo round trip verso il Master).
+    // Ritorna, nell'ordine dato, la lista dei peer di ogni risorsa (vuota se non trovata)
+    public Map<String, List<String>> getPeersForFiles(Collection<String> resourceNames){
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        List<String> names = new ArrayList<>(resourceNames);
+        List<List<String>> commands = new ArrayList<>(names.size());
+        for (String name : names) {
+            commands.add(command(Protocol.GET_PEERS_FOR_RESOURCE, name));
+        }
+        try{
+            List<String[]> responses = sendBatch(commands);
+            for (int i = 0; i < names.size(); i++) {
+                result.put(names.get(i), parsePeers(names.get(i), responses.get(i)));
+            }
+        } catch (IOException e) {
+            Logger.error("Errore durante la richiesta dei peer per " + names.size() + " risorse: " + e.getMessage());
+            for (String name : names) {
+                result.putIfAbsent(name, List.of());
+            }
+        }
+        return result;
+    }
+
+    // Ritorna, nel formato "<pid> <ip> <port>", i peer che possiedono tutte le risorse indicate (all)
+    // oppure almeno una: una sola richiesta, il Master combina gli indici delle risorse
+    public List<String> getPeersHolding(Collection<String> resourceNames, boolean all){
+        List<String> cmd = command(Protocol.GET_PEERS_FOR_RESOURCES,
+                all ? Protocol.MATCH_ALL : Protocol.MATCH_ANY, Integer.toString(resourceNames.size()));
+        cmd.addAll(resourceNames);
+        String description = String.join(all ? " e " : " o ", resourceNames);
+        try{
+            return parsePeers(description, sendCommand(cmd));
+        } catch (IOException e) {
+            Logger.error("Errore durante la richiesta dei peer per " + description + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    // Interpreta la risposta PEER_FOR_RESOURCE <count> <pid1> <ip1> <port1> ... nella lista "<pid> <ip> <port>"
+    private List<String> parsePeers(String resourceName, String[] parts){
+        if(parts[0].equals(Protocol.PEER_FOR_RESOURCE)){
+            int count = Integer.parseInt(parts[1]);
+            List<String> peers = new ArrayList<>();
+            for(int i=0;i<count;i++){
+                int idx = 2 + i*3;
+                if(parts.length >= idx+3){
+                    String pid = parts[idx];
+                    String ip = parts[idx+1];
+                    String port = parts[idx+2];
+                    peers.add(pid + " " + ip + " " + port);
+                }
+                else{
+                    Logger.error("Risposta dal Master non contiene abbastanza informazioni sui peer per la risorsa '" + resourceName + "'. Risposta: " + String.join(" ", parts));
+                    return List.of(); // Ritorna una lista vuota se la risposta non è valida
+                }
+            }
+            Logger.info("Trovati " + count + " peer per la risorsa '" + resourceName + "': " + peers);
+            return peers; // Ritorna la lista dei peer che possiedono la risorsa
+
+        } else if(parts[0].equals(Protocol.RESOURCE_NOT_FOUND)){
+            Logger.warn("Risorsa '" + resourceName + "' non trovata nel Master.");
+            return List.of();
+
+        } else{
+            Logger.error("Risposta non valida dal Master: " + String.join(" ", parts));
+            return List.of();
         }
     }
 
     // Richiede al Master la lista completa delle risorse in rete
     public Map<String, List<String>> listRemoteResources(){
-        Map<String, List<String>> result = new HashMap<>();
-        try(Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out  = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.println(Protocol.LIST_DATA_REMOTE);
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        forEachRemoteResource(null, result::put);
+        return result;
+    }
 
-            String response = in.readLine();
-            if(response != null && response.startsWith(Protocol.LIST_DATA_RESPONSE)){
-                String[] tokens = response.split("\\s+");
+    // Scorre le risorse in rete (filtrate con un prefisso o un glob, oppure tutte se pattern è null)
+    // una pagina alla volta: in memoria c'è al più una pagina, anche con cataloghi molto grandi.
+    // Ritorna false se la lista si è interrotta per un errore
+    public boolean forEachRemoteResource(String pattern, BiConsumer<String, List<String>> action){
+        String cursor = Protocol.NO_CURSOR;
+        try{
+            do {
+                List<String> cmd = command(Protocol.LIST_DATA_REMOTE, cursor, String.valueOf(LIST_PAGE_SIZE));
+                if (pattern != null) {
+                    cmd.add(pattern);
+                }
+                String[] tokens = sendCommand(cmd);
+                if(!tokens[0].equals(Protocol.LIST_DATA_PAGE)){
+                    Logger.error("Risposta non valida dal Master: " + String.join(" ", tokens));
+                    return false;
+                }
                 int idx = 1;
+                cursor = tokens[idx++];
                 int total = Integer.parseInt(tokens[idx++]);
                 for(int i=0;i<total;i++){
                     String res = tokens[idx++];
                     int count = Integer.parseInt(tokens[idx++]);
-                    List<String> peers = new ArrayList<>();
+                    List<String> peers = new ArrayList<>(count);
                     for(int j=0;j<count;j++){
                         peers.add(tokens[idx++]);
                     }
-                    result.put(res, peers);
+                    action.accept(res, peers);
                 }
-            } else {
-                Logger.error("Risposta non valida dal Master: " + response);
-            }
-        } catch(IOException e){
+            } while (!cursor.equals(Protocol.NO_CURSOR));
+            return true;
+        } catch(IOException | RuntimeException e){
             Logger.error("Errore durante la richiesta listdata remote: " + e.getMessage());
+            return false;
         }
-        return result;
     }
 
     // Invia un log di download al Master
     public void logDownload(String resource, String fromPeer, String toPeer, boolean success){
-        try(Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            String cmd = Protocol.DOWNLOAD_LOG + " " + resource + " " + fromPeer + " " + toPeer + " " + success;
-            out.println(cmd);
-            String response = in.readLine();
-            Logger.info("Risposta log dal Master: " + response);
+        try{
+            String[] response = sendCommand(command(Protocol.DOWNLOAD_LOG, resource, fromPeer, toPeer, String.valueOf(success)));
+            Logger.info("Risposta log dal Master: " + String.join(" ", response));
         } catch(IOException e){
             Logger.error("Errore durante l'invio del log download al Master: " + e.getMessage());
         }
     }
 
 
+    // Invia con un unico BATCH i log dei download di una risorsa da più peer (ad esempio dopo un download parallelo).
+    // outcomes associa a ogni peer sorgente l'esito del download da quel peer
+    public void logDownloads(String resource, String toPeer, Map<String, Boolean> outcomes){
+        if (outcomes.isEmpty()) {
+            return;
+        }
+        List<List<String>> commands = new ArrayList<>(outcomes.size());
+        outcomes.forEach((fromPeer, success) ->
+                commands.add(command(Protocol.DOWNLOAD_LOG, resource, fromPeer, toPeer, String.valueOf(success))));
+        try{
+            List<String[]> responses = sendBatch(commands);
+            List<String> lines = new ArrayList<>(responses.size());
+            for (String[] response : responses) {
+                lines.add(String.join(" ", response));
+            }
+            Logger.info("Risposta log dal Master: " + lines);
+        } catch(IOException e){
+            Logger.error("Errore durante l'invio dei log download al Master: " + e.getMessage());
+        }
+    }
+
     // Metodo che notifica un fallimento del download di un file al Master
     public void notifyDownloadFail(String resourceName, String peerName){
-        try (Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true); // per inviare messaggi al Master
-
+        try {
             // Invia il comando di download fallito al Master
-            out.println(Protocol.DOWNLOAD_FAIL + " " + resourceName + " " + peerName);
+            // La risposta (peer alternativo o RESOURCE_NOT_FOUND) va letta per mantenere allineata la connessione
+            String[] response = sendCommand(command(Protocol.DOWNLOAD_FAIL, resourceName, peerName));
             // Warn del Logger del Peer
             Logger.warn("Download fallito per la risorsa '" + resourceName + "' dal peer '" + peerName + "'. Notifica inviata al Master.");
+            Logger.info("Risposta dal Master al fallimento: " + String.join(" ", response));
         } catch (IOException e) {
             Logger.error("Errore durante la notifica del fallimento del download al Master: " + e.getMessage());
         }
@@ -189,15 +352,338 @@ public class PeerClientToMaster {
 
     // Metodo per la notifica di disconnessione del Peer al Master
     public void disconnect(String peerName){
-        try(Socket socket = new Socket(masterAddress, masterPort)){
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true); // per inviare messaggi al Master
+        try {
             // Invia il comando di disconnessione al Master
-            out.println(Protocol.DISCONNECTED + " " + peerName);
+            sendCommand(command(Protocol.DISCONNECTED, peerName));
             Logger.info("Disconnessione del Peer '" + peerName + "' dal Master completata.");
         } catch (IOException e) {
             Logger.error("Errore durante la disconnessione del Peer dal Master: " + e.getMessage());
+        } finally {
+            // Dopo DISCONNECTED il Master chiude la connessione
+            close();
         }
     }
 
+    // Chiude la connessione persistente verso il Master
+    public void close() {
+        connectionLock.lock();
+        try {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+    }
 
+    // Compone un comando: il nome seguito dagli argomenti, uno per campo
+    private static List<String> command(String name, String... args) {
+        List<String> cmd = new ArrayList<>(args.length + 1);
+        cmd.add(name);
+        Collections.addAll(cmd, args);
+        return cmd;
+    }
+
+    // Aggiunge al comando il numero di risorse seguito dai nomi
+    private static void addResources(List<String> cmd, Collection<String> resources) {
+        cmd.add(String.valueOf(resources.size()));
+        cmd.addAll(resources);
+    }
+
+    // Invia un comando e ritorna i campi della risposta del Master
+    private String[] sendCommand(List<String> command) throws IOException {
+        return request(List.of(command)).get(0);
+    }
+
+    // Invia più comandi insieme e ritorna le risposte nello stesso ordine.
+    // I comandi sono divisi in più gruppi se superano BATCH_LIMIT.
+    private List<String[]> sendBatch(List<List<String>> commands) throws IOException {
+        List<String[]> replies = new ArrayList<>(commands.size());
+        for (int from = 0; from < commands.size(); from += BATCH_LIMIT) {
+            replies.addAll(request(commands.subList(from, Math.min(commands.size(), from + BATCH_LIMIT))));
+        }
+        return replies;
+    }
+
+    // Invia i comandi con un ID di richiesta e attende le loro risposte.
+    // Più thread possono avere comandi in corso sulla stessa connessione: le risposte sono smistate per ID.
+    // Se la connessione è caduta (Master riavviato, rete interrotta) la riapre e riprova una volta,
+    // ma solo se i comandi non sono partiti o se ripeterli non cambia lo stato del Master.
+    private List<String[]> request(List<List<String>> commands) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Connection current = null;
+            try {
+                current = connection();
+                return current.call(commands);
+            } catch (IOException e) {
+                failure = e;
+                discard(current);
+                if (current != null && !(e instanceof NotSentException) && !isIdempotent(commands)) {
+                    // il Master potrebbe averli già eseguiti: decide il chiamante come recuperare
+                    break;
+                }
+                if (attempt == 0) {
+                    Logger.warn("Connessione al Master interrotta (" + e.getMessage() + "), nuovo tentativo...");
+                }
+            }
+        }
+        throw failure;
+    }
+
+    private static boolean isIdempotent(List<List<String>> commands) {
+        for (List<String> command : commands) {
+            if (!IDEMPOTENT.contains(command.get(0))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Errore sulla connessione prima che un qualsiasi byte della richiesta fosse scritto
+    private static class NotSentException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(String message) {
+            super(message);
+        }
+    }
+
+    // Ritorna la connessione attiva, aprendola se necessario
+    private Connection connection() throws IOException {
+        connectionLock.lock();
+        try {
+            if (connection == null || connection.isClosed()) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(masterAddress, masterPort), TIMEOUT_MS);
+                    connection = new Connection(socket);
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }
+            return connection;
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    // Chiude la connessione fallita, se nel frattempo non è già stata sostituita
+    private void discard(Connection failed) {
+        if (failed == null) {
+            return;
+        }
+        failed.close();
+        connectionLock.lock();
+        try {
+            if (connection == failed) {
+                connection = null;
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /**
+     * Connessione verso il Master con le richieste in attesa di risposta.
+     * All'apertura propone il protocollo binario (vedi BinaryFrame): ogni comando diventa un frame
+     * con il suo ID e più comandi insieme sono inviati in pipeline, senza BATCH.
+     * Se il Master non lo supporta si resta sul protocollo testuale: ogni comando è inviato come
+     * "#<id> CMD ..." (più comandi insieme in un BATCH) e le risposte arrivano come "#<id> ...".
+     * In entrambi i casi un thread dedicato legge le risposte e completa la richiesta corrispondente,
+     * qualunque sia l'ordine in cui arrivano.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final BufferedInputStream in;
+        private final OutputStream out;
+        // presente solo se il Master ha accettato il protocollo binario
+        private final BinaryFrame.Writer frameWriter;
+        // tiene insieme i byte di un comando quando più thread scrivono
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final AtomicInteger nextId = new AtomicInteger();
+        private final Map<Integer, CompletableFuture<List<String[]>>> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed = false;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream()); // per leggere le risposte dal Master
+            this.out = new BufferedOutputStream(socket.getOutputStream()); // per inviare messaggi al Master
+            // Un Master che non conosce BINARY risponde con un errore e la connessione resta testuale
+            out.write((Protocol.BINARY + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // un Master che non risponde all'handshake non deve bloccare chi apre la connessione
+            socket.setSoTimeout(TIMEOUT_MS);
+            String reply = PeerClientToPeer.readLine(in);
+            if (reply == null) {
+                throw new IOException("Connessione chiusa dal Master");
+            }
+            // da qui il thread di lettura attende le risposte senza limite: il timeout è per richiesta
+            socket.setSoTimeout(0);
+            this.frameWriter = reply.trim().equals(Protocol.BINARY_OK) ? new BinaryFrame.Writer() : null;
+            Thread reader = new Thread(this::readResponses, "master-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        List<String[]> call(List<List<String>> commands) throws IOException {
+            // nel protocollo testuale più comandi viaggiano in un BATCH con un solo ID
+            int requests = frameWriter != null ? commands.size() : 1;
+            int[] ids = new int[requests];
+            List<CompletableFuture<List<String[]>>> responses = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                ids[i] = nextId.incrementAndGet();
+                CompletableFuture<List<String[]>> response = new CompletableFuture<>();
+                pending.put(ids[i], response);
+                responses.add(response);
+            }
+            try {
+                writeLock.lock();
+                try {
+                    if (closed) {
+                        throw new NotSentException("Connessione chiusa dal Master");
+                    }
+                    if (frameWriter != null) {
+                        for (int i = 0; i < requests; i++) {
+                            ByteBuffer frame = frameWriter.encode(ids[i], commands.get(i));
+                            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        }
+                    } else {
+                        writeText(ids[0], commands);
+                    }
+                    out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+                List<String[]> replies = new ArrayList<>(commands.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+                for (CompletableFuture<List<String[]>> response : responses) {
+                    replies.addAll(response.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+                }
+                if (replies.size() != commands.size()) {
+                    throw new IOException("Numero di risposte non valido dal Master: " + replies.size());
+                }
+                return replies;
+            } catch (IOException e) {
+                forget(ids);
+                throw e;
+            } catch (TimeoutException e) {
+                // risposta persa o Master bloccato: la connessione non è più affidabile, la si chiude
+                // (facendo fallire anche le altre richieste in attesa) così request può riaprirla
+                close();
+                throw new IOException("Nessuna risposta dal Master entro " + TIMEOUT_MS + " ms");
+            } catch (ExecutionException e) {
+                forget(ids);
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                forget(ids);
+                Thread.currentThread().interrupt();
+                throw new IOException("Attesa della risposta interrotta");
+            }
+        }
+
+        private void forget(int[] ids) {
+            for (int id : ids) {
+                pending.remove(id);
+            }
+        }
+
+        // Scrive i comandi come righe di testo: uno solo direttamente, più di uno in un BATCH
+        private void writeText(int id, List<List<String>> commands) throws IOException {
+            StringBuilder text = new StringBuilder(Protocol.REQUEST_ID_PREFIX).append(id).append(' ');
+            if (commands.size() == 1) {
+                text.append(String.join(" ", commands.get(0))).append('\n');
+            } else {
+                text.append(Protocol.BATCH).append(' ').append(commands.size()).append('\n');
+                for (List<String> command : commands) {
+                    text.append(String.join(" ", command)).append('\n');
+                }
+            }
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Legge le risposte e le consegna alle richieste in attesa
+        private void readResponses() {
+            try {
+                if (frameWriter != null) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } catch (IOException | RuntimeException e) {
+                // la connessione è caduta o il Master ha risposto in modo non valido
+            } finally {
+                close();
+            }
+        }
+
+        private void readFrames() throws IOException {
+            BinaryFrame.Reader reader = new BinaryFrame.Reader(in);
+            BinaryFrame frame;
+            while ((frame = reader.next()) != null) {
+                complete(frame.getRequestId(), List.<String[]>of(frame.getFields()));
+            }
+        }
+
+        private void readLines() throws IOException {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = lines.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2 || !parts[0].startsWith(Protocol.REQUEST_ID_PREFIX)) {
+                    Logger.warn("Risposta senza ID dal Master ignorata: " + line);
+                    continue;
+                }
+                List<String[]> response = new ArrayList<>();
+                String[] first = parts[1].trim().split("\\s+");
+                // La risposta a un BATCH prosegue con una riga per ogni comando
+                if (first[0].equals(Protocol.BATCH_RESPONSE)) {
+                    int n = Integer.parseInt(first[1]);
+                    for (int i = 0; i < n; i++) {
+                        String next = lines.readLine();
+                        if (next == null) {
+                            throw new IOException("BATCH_RESPONSE interrotta");
+                        }
+                        response.add(next.trim().split("\\s+"));
+                    }
+                } else {
+                    response.add(first);
+                }
+                try {
+                    complete(Integer.parseInt(parts[0].substring(Protocol.REQUEST_ID_PREFIX.length())), response);
+                } catch (NumberFormatException e) {
+                    Logger.warn("Risposta con ID non valido dal Master ignorata: " + line);
+                }
+            }
+        }
+
+        private void complete(int id, List<String[]> response) {
+            CompletableFuture<List<String[]>> request = pending.remove(id);
+            if (request != null) {
+                request.complete(response);
+            }
+        }
+
+        // Chiude la connessione e fa fallire le richieste ancora in attesa
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) { }
+            IOException failure = new IOException("Connessione chiusa dal Master");
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<List<String[]>> request = pending.remove(id);
+                if (request != null) {
+                    request.completeExceptionally(failure);
+                }
+            }
+        }
+    }
 }
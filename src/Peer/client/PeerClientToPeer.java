@@ -1,83 +1,197 @@
 package Peer.client;
 
 import Common.Protocol;
+import Peer.utils.FileManager;
 import Peer.utils.Logger;
+import Peer.utils.PartialDownload;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 // Questa classe è un client che si connette ad altri peer per scaricare risorse
 // Implementa i metodi per connettersi a un peer, inviare richieste di download e ricevere file
 // La logica di connessione e comunicazione con i peer sarà implementata qui
 public class PeerClientToPeer {
 
-     // Legge una linea di testo dal BufferedInputStream.
+    // Dimensione del buffer diretto usato per ricevere un file: è la memoria massima
+    // occupata da un download, indipendentemente dalla dimensione del file
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Legge una linea di testo UTF-8 dal BufferedInputStream, senza leggere oltre il "\n".
+    // Serve solo per la riga di negoziazione con il Master, dopo la quale lo stream passa ad altri lettori;
+    // le risposte dei peer si leggono con HeaderDecoder.
     // Ritorna null se il flusso termina senza dati.
-    private String readLine(BufferedInputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
+    static String readLine(BufferedInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
         int c;
         while ((c = in.read()) != -1) {
             if (c == '\n') {
                 break;
             }
-            sb.append((char) c);
+            line.write(c);
         }
-        if (c == -1 && sb.length() == 0) {
+        if (c == -1 && line.size() == 0) {
             return null;
         }
-        return sb.toString();
+        return line.toString(StandardCharsets.UTF_8);
     }
 
     // metodo per scaricare un file da un peer
-    public byte[] requestFile(String peerAddress, int peerPort, String fileName) {
-        try (Socket socket = new Socket(peerAddress, peerPort);
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedInputStream in = new BufferedInputStream(socket.getInputStream())){
+    // Il contenuto viene scritto in streaming nel file .part della repo, che viene rinominato
+    // nel nome definitivo solo a download completato e verificato.
+    // Se c'è un download interrotto della stessa risorsa (anche iniziato da un altro peer
+    // o prima di un riavvio) riprende dall'ultimo blocco completo con DOWNLOAD_RANGE.
+    // Ritorna true se il file è stato scaricato e salvato correttamente.
+    // Lancia PeerBusyException se il peer è saturo: ha la risorsa, ma va riprovato più tardi o sostituito
+    public boolean downloadFile(String peerAddress, int peerPort, String fileName) throws PeerBusyException {
+        PartialDownload part = null;
+        try {
+            part = PartialDownload.resume(fileName);
+            if (part != null && part.getVerifiedOffset() > 0) {
+                Boolean resumed = resumeDownload(peerAddress, peerPort, fileName, part);
+                if (resumed != null) {
+                    part = null;
+                    return resumed;
+                }
+                // il peer ha una versione diversa del file: il parziale non serve più
+                part.discard();
+            } else if (part != null) {
+                part.close();
+            }
+            part = null;
+        } catch (PeerBusyException e) {
+            throw e;
+        } catch (IOException e) {
+            Logger.error("Errore nel download da " + peerAddress + ":" + peerPort + ": " + e.getMessage());
+            return false;
+        } finally {
+            closeQuietly(part);
+        }
 
-            // 1. Invia la richiesta di download
-            out.println(Protocol.DOWNLOAD_REQUEST + " " + fileName);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(peerAddress, peerPort))) {
+            // Il buffer del decoder riceve header e contenuto: una sola lettura porta di solito
+            // entrambe le righe dell'header e i primi byte del file
+            HeaderDecoder in = new HeaderDecoder(channel, BUFFER_SIZE);
 
+            // 1. Invia la richiesta di download
+            ByteBuffer request = ByteBuffer.wrap((Protocol.DOWNLOAD_REQUEST + " " + fileName + "\n").getBytes(StandardCharsets.UTF_8));
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
 
             // 2. Attende risposta
-            String response = readLine(in);
+            String response = in.readLine();
+            PeerBusyException busy = response == null ? null
+                    : PeerBusyException.parse(peerAddress + ":" + peerPort, response.split(" "));
+            if (busy != null) {
+                throw busy;
+            }
             if (response != null && response.startsWith(Protocol.DOWNLOAD_DATA)) {
-                String[] headerParts = response.split(" ",2);
+                // Header: DOWNLOAD_DATA <file> <sha256>
+                String[] headerParts = response.split(" ");
                 String headerFile = headerParts.length > 1 ? headerParts[1] : fileName;
+                String expectedSha256 = headerParts.length > 2 ? headerParts[2] : null;
+                if (expectedSha256 == null) {
+                    throw new IOException("Hash del file mancante nell'header");
+                }
                 Logger.info("Download del file '" + headerFile + "' avviato da " + peerAddress + ":" + peerPort);
 
-                // 3. Legge la dimensione del file (riga successiva)
-                String sizeStr = readLine(in);
-                int fileSize = Integer.parseInt(sizeStr);
-
-                byte[] fileData = new byte[fileSize];
-                int bytesRead = 0;
-                while (bytesRead < fileSize) {
-                    int read = in.read(fileData, bytesRead, fileSize - bytesRead);
-                    if (read == -1) {
-                        throw new IOException("Fine del flusso prima del previsto");
-                    }
-                    bytesRead += read;
+                // 3. Legge la dimensione del file (riga successiva, già nel buffer del decoder)
+                String sizeStr = in.readLine();
+                if (sizeStr == null) {
+                    throw new IOException("Dimensione del file mancante");
                 }
+                long fileSize = Long.parseLong(sizeStr.trim());
+
+                // 4. Riceve il contenuto direttamente su disco, calcolando l'hash durante la scrittura
+                part = PartialDownload.open(fileName, fileSize, expectedSha256);
+                MessageDigest digest = FileManager.newDigest();
+                part.receive(channel, in.getBuffer(), 0, fileSize, digest);
+
+                // 5. Confronta l'hash calcolato con quello dichiarato dal peer, senza rileggere il file
+                finish(part, digest);
+                part = null;
 
                 Logger.info("Download completato. Ricevuti " + fileSize + " byte.");
-                return fileData;
+                return true;
 
             } else if (response != null && response.startsWith(Protocol.DOWNLOAD_DENIED)) {
                 String[] headerParts = response.split(" ",2);
                 String deniedFile = headerParts.length > 1 ? headerParts[1] : fileName;
                 Logger.warn("Download del file '" + deniedFile + "' rifiutato da " + peerAddress + ":" + peerPort);
-                return null;
+                return false;
 
             } else {
                 Logger.error("Risposta non riconosciuta dal peer: " + response);
+                return false;
+            }
+
+        } catch (PeerBusyException e) {
+            throw e;
+        } catch (Exception e) {
+            Logger.error("Errore nel download da " + peerAddress + ":" + peerPort + ": " + e.getMessage());
+            return false;
+        } finally {
+            // Un download interrotto resta nella repo come .part, per essere ripreso
+            closeQuietly(part);
+        }
+    }
+
+    // Riprende un download interrotto chiedendo al peer solo i byte dopo l'ultimo blocco completo.
+    // Ritorna null se il peer possiede una versione diversa del file, altrimenti l'esito del download
+    private Boolean resumeDownload(String peerAddress, int peerPort, String fileName, PartialDownload part) throws PeerBusyException {
+        try (RangeConnection connection = new RangeConnection(peerAddress, peerPort)) {
+            // intervallo vuoto: solo dimensione e hash della versione del file posseduta dal peer
+            connection.fetch(fileName, 0, 0, null, null);
+            if (connection.getTotalSize() != part.getSize() || !part.getSha256().equalsIgnoreCase(connection.getSha256())) {
                 return null;
             }
+            long offset = part.getVerifiedOffset();
+            Logger.info("Ripresa del download di '" + fileName + "' da " + peerAddress + ":" + peerPort
+                    + " a partire dal byte " + offset + " di " + part.getSize() + ".");
 
+            // L'hash incrementale riparte dai byte già su disco, poi prosegue con quelli ricevuti
+            MessageDigest digest = FileManager.newDigest();
+            part.digestRange(digest, 0, offset);
+            connection.fetch(fileName, offset, part.getSize() - offset, part, digest);
+            finish(part, digest);
+
+            Logger.info("Download completato. Ricevuti " + (part.getSize() - offset) + " byte.");
+            return true;
+        } catch (PeerBusyException e) {
+            // il parziale resta aperto: lo chiude downloadFile
+            throw e;
         } catch (Exception e) {
             Logger.error("Errore nel download da " + peerAddress + ":" + peerPort + ": " + e.getMessage());
-            return null;
+            closeQuietly(part);
+            return false;
+        }
+    }
+
+    // Verifica l'hash calcolato durante la ricezione e rende visibile il file.
+    // Se l'hash non corrisponde il parziale è inutilizzabile e viene eliminato
+    private void finish(PartialDownload part, MessageDigest digest) throws IOException {
+        String actualSha256 = FileManager.toHex(digest.digest());
+        if (!actualSha256.equalsIgnoreCase(part.getSha256())) {
+            part.discard();
+            throw new IOException("Hash del file non corrispondente: atteso " + part.getSha256() + ", ricevuto " + actualSha256);
+        }
+        part.commit();
+    }
+
+    private static void closeQuietly(PartialDownload part) {
+        if (part != null) {
+            try {
+                part.close();
+            } catch (IOException e) {
+                Logger.error("Errore chiusura del download parziale: " + e.getMessage());
+            }
         }
     }
 }
@@ -0,0 +1,154 @@
+package Peer.client;
+
+import Common.BinaryFrame;
+import Common.Protocol;
+import Peer.utils.PartialDownload;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Connessione verso un peer su cui richiedere uno o più intervalli di un file (DOWNLOAD_RANGE).
+ * La connessione resta aperta tra una richiesta e l'altra, così un download a blocchi
+ * non apre una nuova connessione TCP per ogni blocco.
+ * Dopo ogni richiesta espone dimensione totale e hash del file dichiarati dal peer.
+ * All'apertura prova a passare al protocollo binario (vedi BinaryFrame); un peer che non lo
+ * conosce chiude la connessione, che viene allora riaperta con il protocollo testuale.
+ */
+class RangeConnection implements Closeable {
+
+    // Dimensione del buffer diretto usato per ricevere header e blocchi
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String peer;
+    private SocketChannel channel;
+    // legge gli header; i byte del blocco letti insieme restano nel suo buffer
+    private HeaderDecoder in;
+    // presente solo se il peer ha accettato il protocollo binario
+    private BinaryFrame.Writer frameWriter;
+    private int nextRequestId = 1;
+    private long totalSize = -1;
+    private String sha256;
+
+    /**
+     * Apre la connessione e negozia il protocollo.
+     * Lancia PeerBusyException se il peer è saturo e rifiuta la connessione con BUSY.
+     */
+    RangeConnection(String peerAddress, int peerPort) throws IOException {
+        this.peer = peerAddress + ":" + peerPort;
+        open(peerAddress, peerPort);
+        sendLine(Protocol.BINARY);
+        String reply = in.readLine();
+        PeerBusyException busy = reply == null ? null : PeerBusyException.parse(peer, reply.split(" "));
+        if (busy != null) {
+            channel.close();
+            throw busy;
+        }
+        if (Protocol.BINARY_OK.equals(reply)) {
+            frameWriter = new BinaryFrame.Writer();
+        } else {
+            // peer di una versione precedente: ha risposto ERROR e chiuso la connessione
+            channel.close();
+            open(peerAddress, peerPort);
+        }
+    }
+
+    private void open(String peerAddress, int peerPort) throws IOException {
+        // SocketChannel bloccante: i byte arrivano direttamente nel buffer diretto, senza array intermedi
+        this.channel = SocketChannel.open(new InetSocketAddress(peerAddress, peerPort));
+        this.in = new HeaderDecoder(channel, BUFFER_SIZE);
+    }
+
+    private void sendLine(String line) throws IOException {
+        send(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void send(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Richiede l'intervallo [offset, offset + length) del file e lo scrive nel download parziale alla stessa posizione.
+     * Con length = 0 (e part null) serve solo a conoscere dimensione e hash del file.
+     * Se digest non è null viene aggiornato con i byte ricevuti.
+     * Ritorna il numero di byte ricevuti, che è minore di length se l'intervallo supera la fine del file.
+     * Lancia IOException se il peer rifiuta la richiesta, possiede una versione diversa del file
+     * o la connessione si interrompe.
+     */
+    long fetch(String fileName, long offset, long length, PartialDownload part, MessageDigest digest) throws IOException {
+        String[] parts = request(fileName, offset, length);
+        String header = String.join(" ", parts);
+        PeerBusyException busy = PeerBusyException.parse(peer, parts);
+        if (busy != null) {
+            throw busy;
+        }
+        if (parts[0].equals(Protocol.DOWNLOAD_DENIED)) {
+            throw new IOException("Richiesta rifiutata dal peer: " + header);
+        }
+        // Header: RANGE_DATA <file> <offset> <len> <totalSize> <sha256>
+        if (!parts[0].equals(Protocol.RANGE_DATA) || parts.length != 6) {
+            throw new IOException("Risposta non riconosciuta dal peer: " + header);
+        }
+        long start = Long.parseLong(parts[2]);
+        long count = Long.parseLong(parts[3]);
+        totalSize = Long.parseLong(parts[4]);
+        sha256 = parts[5];
+        if (start != offset || count > length) {
+            throw new IOException("Intervallo ricevuto diverso da quello richiesto: " + header);
+        }
+        if (count > 0) {
+            // I byte vanno scritti solo se il peer ha la stessa versione del file del download in corso
+            if (part.getSize() != totalSize || !part.getSha256().equalsIgnoreCase(sha256)) {
+                throw new IOException("il peer possiede una versione diversa del file");
+            }
+            part.receive(in.getChannel(), in.getBuffer(), start, count, digest);
+        }
+        return count;
+    }
+
+    // Invia DOWNLOAD_RANGE e ritorna i campi dell'header di risposta, nel protocollo negoziato
+    private String[] request(String fileName, long offset, long length) throws IOException {
+        if (frameWriter != null) {
+            int id = nextRequestId++;
+            send(frameWriter.encode(id, List.of(Protocol.DOWNLOAD_RANGE, fileName,
+                    Long.toString(offset), Long.toString(length))));
+            BinaryFrame reply = in.readFrame();
+            if (reply == null) {
+                throw new IOException("Connessione chiusa dal peer");
+            }
+            if (reply.getRequestId() != id) {
+                throw new IOException("Risposta a una richiesta diversa: " + reply.getRequestId());
+            }
+            return reply.getFields();
+        }
+        sendLine(Protocol.DOWNLOAD_RANGE + " " + fileName + " " + offset + " " + length);
+        String header = in.readLine();
+        if (header == null) {
+            throw new IOException("Connessione chiusa dal peer");
+        }
+        return header.split(" ");
+    }
+
+    /** ritorna la dimensione totale del file dichiarata nell'ultima risposta, -1 se non nota */
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    /** ritorna l'hash SHA-256 del file dichiarato nell'ultima risposta */
+    String getSha256() {
+        return sha256;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,280 @@
+package Peer.client;
+
+import Peer.utils.Logger;
+import Peer.utils.PartialDownload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download parallelo di una risorsa da tutti i peer che la possiedono (swarming).
+ * Il file viene diviso in blocchi di dimensione fissa: per ogni peer sorgente un worker
+ * preleva il prossimo blocco libero, lo richiede con DOWNLOAD_RANGE e lo scrive nella sua
+ * posizione nel file .part preallocato. Un peer lento serve meno blocchi senza
+ * rallentare gli altri; un peer che fallisce rimette il suo blocco in coda.
+ * I blocchi già presenti da un download interrotto non vengono richiesti di nuovo.
+ */
+public class SwarmDownloader {
+
+    // Numero massimo di peer da cui scaricare contemporaneamente
+    private static final int MAX_SOURCES = 8;
+
+    /**
+     * Scarica il file dai peer indicati, nel formato "<pid> <ip> <porta>" restituito da getPeersForFile.
+     * A download completato il file viene verificato con l'hash dichiarato dai peer e rinominato
+     * nel nome definitivo; se il download non si completa il file .part resta nella repo
+     * e un tentativo successivo riparte dai blocchi mancanti.
+     */
+    public Result download(String fileName, List<String> peers) {
+        Set<String> servingPeers = ConcurrentHashMap.newKeySet();
+        Set<String> failedPeers = ConcurrentHashMap.newKeySet();
+        // peer saturi (BUSY): esclusi da questo download ma non segnalati come falliti
+        Set<String> busyPeers = ConcurrentHashMap.newKeySet();
+        List<String> sources = peers.subList(0, Math.min(peers.size(), MAX_SOURCES));
+
+        // 1. Chiede dimensione e hash al primo peer disponibile con un intervallo vuoto;
+        //    la connessione viene poi riusata dal worker di quel peer
+        RangeConnection probe = null;
+        String probePeer = null;
+        for (String info : sources) {
+            String[] t = info.split(" ");
+            try {
+                probe = openProbe(fileName, t[1], Integer.parseInt(t[2]));
+                probePeer = info;
+                break;
+            } catch (PeerBusyException e) {
+                Logger.warn("Peer " + t[0] + " saturo, provo il successivo: " + e.getMessage());
+                busyPeers.add(t[0]);
+            } catch (IOException | RuntimeException e) {
+                Logger.warn("Peer " + t[0] + " non disponibile per '" + fileName + "': " + e.getMessage());
+                failedPeers.add(t[0]);
+            }
+        }
+        if (probe == null) {
+            return new Result(false, servingPeers, failedPeers, busyPeers);
+        }
+
+        long totalSize = probe.getTotalSize();
+        String sha256 = probe.getSha256();
+
+        PartialDownload part = null;
+        ExecutorService pool = Executors.newFixedThreadPool(sources.size());
+        try {
+            // Preallocazione del .part (o ripresa di un download interrotto della stessa versione)
+            part = PartialDownload.open(fileName, totalSize, sha256);
+            int chunkCount = part.getChunkCount();
+
+            // 2. Coda dei blocchi ancora da scaricare, condivisa tra i worker
+            LinkedBlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+            for (int i = 0; i < chunkCount; i++) {
+                if (!part.isChunkDone(i)) {
+                    pending.add(i);
+                }
+            }
+            AtomicInteger completed = new AtomicInteger(chunkCount - pending.size());
+            Logger.info("Download parallelo di '" + fileName + "' (" + totalSize + " byte, " + pending.size()
+                    + "/" + chunkCount + " blocchi da scaricare) da " + sources.size() + " peer.");
+
+            // 3. Un worker per peer sorgente
+            for (String info : sources) {
+                String[] t = info.split(" ");
+                if (failedPeers.contains(t[0]) || busyPeers.contains(t[0])) {
+                    continue;
+                }
+                RangeConnection initial = info.equals(probePeer) ? probe : null;
+                SourceWorker worker = new SourceWorker(t[0], t[1], Integer.parseInt(t[2]), initial, fileName,
+                        totalSize, chunkCount, part, pending, completed, servingPeers, failedPeers, busyPeers);
+                pool.execute(worker);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            if (completed.get() < chunkCount) {
+                Logger.error("Download parallelo di '" + fileName + "' incompleto: " + completed.get()
+                        + "/" + chunkCount + " blocchi ricevuti.");
+                return new Result(false, servingPeers, failedPeers, busyPeers);
+            }
+
+            // 4. I blocchi arrivano in ordine sparso: l'hash si calcola con una lettura sequenziale finale
+            String actualSha256 = part.computeDigest();
+            if (!actualSha256.equalsIgnoreCase(sha256)) {
+                Logger.error("Hash di '" + fileName + "' non corrispondente: atteso " + sha256 + ", ricevuto " + actualSha256);
+                part.discard();
+                part = null;
+                return new Result(false, servingPeers, failedPeers, busyPeers);
+            }
+            part.commit();
+            part = null;
+            Logger.info("Download parallelo completato. Ricevuti " + totalSize + " byte da " + servingPeers.size() + " peer.");
+            return new Result(true, servingPeers, failedPeers, busyPeers);
+
+        } catch (IOException e) {
+            Logger.error("Errore nel download parallelo di '" + fileName + "': " + e.getMessage());
+            return new Result(false, servingPeers, failedPeers, busyPeers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(false, servingPeers, failedPeers, busyPeers);
+        } finally {
+            pool.shutdownNow();
+            closeQuietly(probe);
+            // Il download non concluso resta su disco per essere ripreso
+            if (part != null) {
+                try {
+                    part.close();
+                } catch (IOException e) {
+                    Logger.error("Errore chiusura del download parziale di '" + fileName + "': " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Apre una connessione e chiede solo dimensione e hash del file
+    private RangeConnection openProbe(String fileName, String ip, int port) throws IOException {
+        RangeConnection connection = new RangeConnection(ip, port);
+        try {
+            connection.fetch(fileName, 0, 0, null, null);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(connection);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(RangeConnection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Worker associato a un peer sorgente: preleva blocchi dalla coda finché il file non è completo.
+     * Al primo errore rimette in coda il blocco corrente e smette di usare quel peer.
+     */
+    private static class SourceWorker implements Runnable {
+        private final String peerId;
+        private final String ip;
+        private final int port;
+        private RangeConnection connection;
+        private final String fileName;
+        private final long totalSize;
+        private final int chunkCount;
+        private final PartialDownload part;
+        private final LinkedBlockingQueue<Integer> pending;
+        private final AtomicInteger completed;
+        private final Set<String> servingPeers;
+        private final Set<String> failedPeers;
+        private final Set<String> busyPeers;
+
+        SourceWorker(String peerId, String ip, int port, RangeConnection connection, String fileName,
+                     long totalSize, int chunkCount, PartialDownload part,
+                     LinkedBlockingQueue<Integer> pending, AtomicInteger completed,
+                     Set<String> servingPeers, Set<String> failedPeers, Set<String> busyPeers) {
+            this.peerId = peerId;
+            this.ip = ip;
+            this.port = port;
+            this.connection = connection;
+            this.fileName = fileName;
+            this.totalSize = totalSize;
+            this.chunkCount = chunkCount;
+            this.part = part;
+            this.pending = pending;
+            this.completed = completed;
+            this.servingPeers = servingPeers;
+            this.failedPeers = failedPeers;
+            this.busyPeers = busyPeers;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Finché mancano blocchi resta in attesa: un blocco può tornare in coda se un altro peer fallisce
+                while (completed.get() < chunkCount) {
+                    Integer chunk = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        continue;
+                    }
+                    long offset = (long) chunk * PartialDownload.CHUNK_SIZE;
+                    long length = Math.min(PartialDownload.CHUNK_SIZE, totalSize - offset);
+                    try {
+                        if (connection == null) {
+                            connection = new RangeConnection(ip, port);
+                        }
+                        // fetch verifica che il peer abbia la stessa versione del file e registra il blocco nel sidecar
+                        long received = connection.fetch(fileName, offset, length, part, null);
+                        if (received != length) {
+                            throw new IOException("blocco incompleto");
+                        }
+                        servingPeers.add(peerId);
+                        completed.incrementAndGet();
+                    } catch (PeerBusyException e) {
+                        // il peer è saturo: gli altri worker proseguono con i suoi blocchi
+                        pending.add(chunk);
+                        busyPeers.add(peerId);
+                        Logger.warn("Peer " + peerId + " saturo, escluso dal download di '" + fileName + "': " + e.getMessage());
+                        return;
+                    } catch (IOException | RuntimeException e) {
+                        pending.add(chunk);
+                        failedPeers.add(peerId);
+                        Logger.warn("Peer " + peerId + " escluso dal download di '" + fileName + "': " + e.getMessage());
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    /**
+     * Esito di un download parallelo: se il file è stato completato, quali peer hanno
+     * inviato blocchi, quali sono stati esclusi per errore e quali perché saturi.
+     */
+    public static class Result {
+        private final boolean completed;
+        private final Set<String> servingPeers;
+        private final Set<String> failedPeers;
+        private final Set<String> busyPeers;
+
+        Result(boolean completed, Set<String> servingPeers, Set<String> failedPeers, Set<String> busyPeers) {
+            this.completed = completed;
+            this.servingPeers = Collections.unmodifiableSet(servingPeers);
+            this.failedPeers = Collections.unmodifiableSet(failedPeers);
+            this.busyPeers = Collections.unmodifiableSet(busyPeers);
+        }
+
+        /** ritorna true se il file è stato scaricato, verificato e salvato */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /** ritorna gli ID dei peer che hanno inviato blocchi senza errori */
+        public List<String> getSuccessfulPeers() {
+            List<String> ok = new ArrayList<>(servingPeers);
+            ok.removeAll(failedPeers);
+            return ok;
+        }
+
+        /** ritorna gli ID dei peer esclusi dal download per errore */
+        public Set<String> getFailedPeers() {
+            return failedPeers;
+        }
+
+        /** ritorna gli ID dei peer che hanno risposto BUSY: hanno la risorsa, ma erano saturi */
+        public Set<String> getBusyPeers() {
+            return busyPeers;
+        }
+    }
+}
@@ -1,88 +1,288 @@
 package Peer.server;
 
+import Common.BinaryFrame;
 import Common.Protocol;
 import Peer.utils.FileManager;
 import Peer.utils.Logger;
+import Peer.utils.SharedFile;
 import java.io.*;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
-public class PeerRequestHandler implements Runnable {
+/**
+ * Stato di una connessione di un altro peer e gestione delle sue richieste.
+ * Il PeerServer chiama serve() da un thread del pool quando sulla connessione ci sono dati;
+ * tra una richiesta e l'altra la connessione torna al selector del PeerServer, così una
+ * connessione inattiva (ad esempio tra due blocchi di un download parallelo) non occupa un thread.
+ */
+public class PeerRequestHandler {
+
+    // Attesa massima del resto di una richiesta già iniziata: un peer che si ferma a metà
+    // riga o frame non tiene occupato per sempre un thread del pool
+    private static final int READ_TIMEOUT_MS = 10_000;
 
     private final Socket clientSocket;
-    // Mappa dei semafori per file: consente download concorrenti di file diversi
-    private static final ConcurrentHashMap<String, Semaphore> fileSemaphores = new ConcurrentHashMap<>();
-    public PeerRequestHandler(Socket clientSocket) {
+    private final UploadShaper shaper;
+    // limite di banda di questa connessione, condiviso dalle sue richieste; null senza limite
+    private final TokenBucket connectionBucket;
+    // stream creati alla prima richiesta e mantenuti finché la connessione resta aperta
+    private BufferedReader in;
+    private OutputStream out;
+    // presenti dopo la negoziazione del protocollo binario
+    private BufferedInputStream binaryIn;
+    private BinaryFrame.Reader frameReader;
+    // in modalità binaria compone gli header come frame; null nel protocollo testuale
+    private BinaryFrame.Writer frameWriter;
+    // ID della richiesta binaria in corso, ripetuto nel frame di risposta
+    private int requestId;
+    // istante (System.nanoTime) oltre il quale il PeerServer chiude la connessione inattiva
+    private long idleDeadline;
+
+    public PeerRequestHandler(Socket clientSocket, UploadShaper shaper) {
         this.clientSocket = clientSocket;
+        this.shaper = shaper;
+        this.connectionBucket = shaper.newConnectionBucket();
+    }
+
+    /** ritorna il canale della connessione, da registrare nel selector quando è inattiva */
+    SocketChannel getChannel() {
+        return clientSocket.getChannel();
     }
 
+    /** ritorna l'istante, in System.nanoTime, in cui la connessione inattiva scade */
+    long getIdleDeadline() {
+        return idleDeadline;
+    }
+
+    void setIdleDeadline(long idleDeadline) {
+        this.idleDeadline = idleDeadline;
+    }
 
     /**
      * Metodo che gestisce le richieste dei peer.
     * Legge la richiesta dal client e, se valida, invia il file richiesto.
-     * I download vengono serializzati solo sullo stesso file utilizzando
-     * un semaforo dedicato per ciascun nome di file.
+     * Più peer possono scaricare lo stesso file contemporaneamente: ogni invio legge
+     * la versione del file aperta all'inizio, anche se nel frattempo viene sostituita
+     * (vedi FileManager.openSharedFile).
+     * Il file non viene caricato in memoria: dopo l'header viene inviato in streaming
+     * con FileChannel.transferTo.
+     * La connessione resta aperta per richieste successive (ad esempio i blocchi
+     * di un download parallelo) finché il peer non la chiude.
+     * Con la riga BINARY il peer passa al protocollo binario (vedi BinaryFrame): le richieste
+     * e gli header delle risposte diventano frame, i byte del file seguono l'header come prima.
+     *
+     * Serve le richieste già arrivate e ritorna true se la connessione resta aperta in attesa
+     * di altre, false se va chiusa (il peer ha chiuso o ha inviato una richiesta non valida).
+     * Il canale deve essere in modalità bloccante; una lettura ferma oltre READ_TIMEOUT_MS chiude la connessione.
      */
-    @Override
-    public void run() {
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            OutputStream out = clientSocket.getOutputStream();
-        ) {
-            String request = in.readLine();
-            Logger.info("[REQUEST HANDLER] Ricevuta richiesta: " + request);
-
-            if (request != null && request.startsWith(Protocol.DOWNLOAD_REQUEST)) {
-                String[] parts = request.split(" ");
-                if (parts.length == 2) {
-                    String fileName = parts[1];
-                    
-                    Semaphore fileSemaphore = fileSemaphores.computeIfAbsent(fileName, f -> new Semaphore(1, true));
-                    try {
-                        fileSemaphore.acquire();
-
-                        if (FileManager.hasFile(fileName)) {
-                            byte[] content = FileManager.readFile(fileName);
-                            String header = Protocol.DOWNLOAD_DATA + " " + fileName + "\n";
-                            out.write(header.getBytes());
-                            out.write((content.length + "\n").getBytes());
-                            out.write(content);
-                            out.flush();
-                            Logger.info("File '" + fileName + "' inviato con " + content.length + " byte.");
-                        } else {
-                            String response = Protocol.DOWNLOAD_DENIED + " " + fileName + "\n";
-                            out.write(response.getBytes());
-                            out.flush();
-                            Logger.info("File '" + fileName + "' non trovato.");
-                        }
-                    } finally {
-                        fileSemaphore.release();
-                    }
-                } else {
-                    String response = Protocol.DOWNLOAD_DENIED + " INVALID_FORMAT\n";
-                    out.write(response.getBytes());
-                    out.flush();
-                    Logger.warn("Formato richiesta non valido.");
+    boolean serve() {
+        try {
+            if (out == null) {
+                clientSocket.setSoTimeout(READ_TIMEOUT_MS);
+                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+                out = clientSocket.getOutputStream();
+            }
+            do {
+                boolean keepOpen = frameReader != null ? serveFrame() : serveLine();
+                if (!keepOpen) {
+                    return false;
                 }
-            } else {
-                String response = "ERROR Unsupported or malformed request\n";
-                out.write(response.getBytes());
-                out.flush();
+                // richieste già lette negli stream bufferizzati non farebbero scattare il selector
+            } while (frameReader != null ? binaryIn.available() > 0 : in.ready());
+            return true;
+        } catch (SocketTimeoutException e) {
+            Logger.warn("Richiesta incompleta dopo " + READ_TIMEOUT_MS + " ms: connessione chiusa.");
+            return false;
+        } catch (IOException e) {
+            Logger.error("Errore I/O: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Serve una richiesta del protocollo testuale; ritorna false se la connessione va chiusa
+    private boolean serveLine() throws IOException {
+        String request = in.readLine();
+        if (request == null) {
+            return false;
+        }
+        Logger.info("[REQUEST HANDLER] Ricevuta richiesta: " + request);
+
+        if (request.startsWith(Protocol.DOWNLOAD_REQUEST)) {
+            handleDownload(request.split(" "), out);
+        } else if (request.startsWith(Protocol.DOWNLOAD_RANGE)) {
+            handleRange(request.split(" "), out);
+        } else if (request.equals(Protocol.BINARY)) {
+            // il peer attende BINARY_OK prima di inviare frame, quindi nel reader non è rimasto nulla
+            out.write((Protocol.BINARY_OK + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            frameWriter = new BinaryFrame.Writer();
+            binaryIn = new BufferedInputStream(clientSocket.getInputStream());
+            frameReader = new BinaryFrame.Reader(binaryIn);
+        } else {
+            String response = "ERROR Unsupported or malformed request\n";
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Logger.error("Comando sconosciuto.");
+            return false;
+        }
+        return true;
+    }
+
+    // Serve una richiesta in frame binario; ritorna false se la connessione va chiusa
+    private boolean serveFrame() throws IOException {
+        BinaryFrame frame = frameReader.next();
+        if (frame == null) {
+            return false;
+        }
+        requestId = frame.getRequestId();
+        String[] fields = frame.getFields();
+        Logger.info("[REQUEST HANDLER] Ricevuta richiesta binaria: " + fields[0]);
+        switch (fields[0]) {
+            case Protocol.DOWNLOAD_REQUEST -> handleDownload(fields, out);
+            case Protocol.DOWNLOAD_RANGE -> handleRange(fields, out);
+            default -> {
+                sendHeader(List.of(Protocol.ERROR, "Unsupported or malformed request"), out);
                 Logger.error("Comando sconosciuto.");
+                return false;
             }
-            } catch (InterruptedException e) {
-            Logger.error("Interrotto durante attesa semaforo: " + e.getMessage());
-            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
 
+    /** chiude la connessione */
+    void close() {
+        try {
+            clientSocket.close();
         } catch (IOException e) {
-            Logger.error("Errore I/O: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                Logger.error("Errore chiusura socket: " + e.getMessage());
+            Logger.error("Errore chiusura socket: " + e.getMessage());
+        }
+    }
+
+    // Invia l'header di una risposta come riga di testo o come frame, secondo il protocollo in uso
+    private void sendHeader(List<String> fields, OutputStream out) throws IOException {
+        if (frameWriter != null) {
+            ByteBuffer frame = frameWriter.encode(requestId, fields);
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            out.write((String.join(" ", fields) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    /**
+     * Gestisce DOWNLOAD_REQUEST <file>: invia l'intero file.
+     * Risposta: DOWNLOAD_DATA <file> <sha256>, la dimensione e poi i byte del file
+     * (nel protocollo binario la dimensione è un campo del frame DOWNLOAD_DATA).
+     */
+    private void handleDownload(String[] parts, OutputStream out) throws IOException {
+        if (parts.length == 2) {
+            String fileName = parts[1];
+
+            if (FileManager.hasFile(fileName)) {
+                try (SharedFile file = FileManager.openSharedFile(fileName)) {
+                    long size = file.getSize();
+                    // l'hash permette al ricevente di verificare il file mentre lo scrive
+                    if (frameWriter != null) {
+                        sendHeader(List.of(Protocol.DOWNLOAD_DATA, fileName, file.getSha256(), Long.toString(size)), out);
+                    } else {
+                        String header = Protocol.DOWNLOAD_DATA + " " + fileName + " " + file.getSha256() + "\n";
+                        out.write(header.getBytes(StandardCharsets.UTF_8));
+                        out.write((size + "\n").getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    }
+                    transferFile(fileName, file.getChannel(), 0, size, out);
+                    Logger.info("File '" + fileName + "' inviato con " + size + " byte.");
+                }
+            } else {
+                sendDenied(fileName, out);
+            }
+        } else {
+            sendDenied("INVALID_FORMAT", out);
+            Logger.warn("Formato richiesta non valido.");
+        }
+    }
+
+    /**
+     * Gestisce DOWNLOAD_RANGE <file> <offset> <len>: invia solo un intervallo del file.
+     * Risposta: RANGE_DATA <file> <offset> <len> <totalSize> <sha256> seguita da len byte.
+     * len viene ridotto se l'intervallo supera la fine del file; con len = 0 il peer
+     * ottiene solo dimensione e hash del file.
+     */
+    private void handleRange(String[] parts, OutputStream out) throws IOException {
+        if (parts.length != 4) {
+            sendDenied("INVALID_FORMAT", out);
+            Logger.warn("Formato richiesta non valido.");
+            return;
+        }
+        String fileName = parts[1];
+        long offset;
+        long length;
+        try {
+            offset = Long.parseLong(parts[2]);
+            length = Long.parseLong(parts[3]);
+        } catch (NumberFormatException e) {
+            sendDenied("INVALID_FORMAT", out);
+            Logger.warn("Intervallo richiesto non valido.");
+            return;
+        }
+        if (offset < 0 || length < 0) {
+            sendDenied("INVALID_FORMAT", out);
+            Logger.warn("Intervallo richiesto non valido.");
+            return;
+        }
+
+        if (FileManager.hasFile(fileName)) {
+            try (SharedFile file = FileManager.openSharedFile(fileName)) {
+                long size = file.getSize();
+                long start = Math.min(offset, size);
+                long count = Math.min(length, size - start);
+                sendHeader(List.of(Protocol.RANGE_DATA, fileName, Long.toString(start), Long.toString(count),
+                        Long.toString(size), file.getSha256()), out);
+                transferFile(fileName, file.getChannel(), start, count, out);
+                Logger.info("Blocco di '" + fileName + "' inviato: " + count + " byte dalla posizione " + start + ".");
+            }
+        } else {
+            sendDenied(fileName, out);
+        }
+    }
+
+    // Risponde DOWNLOAD_DENIED <motivo> quando il file non c'è o la richiesta non è valida
+    private void sendDenied(String reason, OutputStream out) throws IOException {
+        sendHeader(List.of(Protocol.DOWNLOAD_DENIED, reason), out);
+        Logger.info("Richiesta rifiutata: " + reason);
+    }
+
+    /**
+     * Invia count byte del file a partire da position sul socket tramite FileChannel.transferTo.
+     * Se il socket è stato accettato da un ServerSocketChannel la copia avviene nel kernel
+     * (sendfile) senza passare dall'heap; altrimenti si ripiega su un canale sopra lo stream,
+     * che usa comunque un buffer di dimensione fissa.
+     * L'invio procede a blocchi concessi dall'UploadShaper, che applica i limiti di banda.
+     */
+    private void transferFile(String fileName, FileChannel file, long position, long count, OutputStream out) throws IOException {
+        WritableByteChannel target = clientSocket.getChannel() != null
+                ? clientSocket.getChannel()
+                : Channels.newChannel(out);
+        long end = position + count;
+        try (UploadShaper.Upload upload = shaper.start(String.valueOf(clientSocket.getRemoteSocketAddress()),
+                fileName, count, connectionBucket)) {
+            while (position < end) {
+                long granted = upload.acquire(end - position);
+                long sent = file.transferTo(position, granted, target);
+                upload.sent(Math.max(sent, 0), granted);
+                if (sent <= 0) {
+                    // il file si è accorciato durante l'invio
+                    throw new IOException("File troncato durante l'invio");
+                }
+                position += sent;
             }
         }
     }
-}
\ No newline at end of file
+}
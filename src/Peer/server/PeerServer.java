@@ -5,27 +5,112 @@ package Peer.server;
  * Questa classe rappresenta il server TCP del peer, responsabile di aprire una porta
  * e rimanere in ascolto di connessioni in ingresso da altri peer.
  * 
- * Per ogni connessione accettata, crea un nuovo thread che esegue PeerRequestHandler,
- * delegando così la gestione della comunicazione a un gestore dedicato per la concorrenza.
+ * Le connessioni vengono accettate da un Selector. Le richieste di ogni
+ * connessione sono servite da un PeerRequestHandler eseguito in un pool di dimensione fissa
+ * (maxUploads thread) con una coda limitata; tra una richiesta e l'altra la connessione torna
+ * al selector e non occupa un thread. Una connessione inattiva per più di IDLE_TIMEOUT_MS
+ * viene chiusa e libera il suo posto.
+ * Quando pool e coda sono pieni la connessione riceve subito "BUSY <retryAfterMs>" e viene chiusa:
+ * il peer che scarica passa a un altro possessore invece di attendere. Anche il rifiuto è gestito
+ * dal selector, senza thread che attendono la chiusura da parte del peer.
+ * Opzionalmente i gestori possono girare su virtual thread (Java 21+); in quel caso non c'è
+ * una coda e il limite vale per il totale delle connessioni servite.
+ * La banda in upload può essere limitata, in totale e per connessione, con un UploadShaper.
  * 
  * Supporta l’avvio e lo stop pulito del server, permettendo di chiudere la porta in modo sicuro.
  */
 
+import Common.VirtualThreads;
 import Peer.utils.Logger;
+import Common.Protocol;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 public class PeerServer implements Runnable {
 
+    // Upload serviti contemporaneamente e connessioni in coda, se non indicati
+    public static final int DEFAULT_MAX_UPLOADS = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 32;
+    // Attesa suggerita nella risposta BUSY prima di riprovare lo stesso peer
+    private static final long RETRY_AFTER_MS = 1000;
+    // Attesa massima della chiusura da parte del peer dopo BUSY
+    private static final long BUSY_DRAIN_MS = 500;
+    // Connessioni rifiutate in attesa della chiusura del peer; oltre il limite si chiudono subito
+    private static final int MAX_PENDING_REJECTS = 64;
+    private static final byte[] BUSY_LINE = (Protocol.BUSY + " " + RETRY_AFTER_MS + "\n").getBytes(StandardCharsets.UTF_8);
+    // Le connessioni inattive occupano un posto di admission: oltre questo tempo vengono chiuse
+    private static final long IDLE_TIMEOUT_MS = 30_000;
+    // Ogni quanto il selector cerca le connessioni inattive o rifiutate scadute, se ce ne sono
+    private static final long SWEEP_INTERVAL_MS = BUSY_DRAIN_MS;
+
     private final int port;
     private volatile boolean running = false;
-    private ServerSocket serverSocket;
+    // attende nuove connessioni e richieste sulle connessioni inattive
+    private final Selector selector;
+    // connessioni tornate inattive dal pool, da registrare nel selector
+    private final Queue<PeerRequestHandler> idle = new ConcurrentLinkedQueue<>();
+    // Esegue un PeerRequestHandler per ogni connessione ammessa
+    private final ExecutorService handlers;
+    // Connessioni ammesse (servite, in coda o inattive sul selector): oltre il limite si risponde BUSY
+    private final Semaphore admission;
+    // Limiti di banda in upload, comuni a tutte le connessioni
+    private final UploadShaper shaper;
+    // Connessioni rifiutate ancora nel selector, usato solo dal thread del selector
+    private int pendingRejects;
+    // Riceve e scarta le richieste delle connessioni rifiutate
+    private final ByteBuffer discard = ByteBuffer.allocate(1024);
 
     public PeerServer(int port) {
+        this(port, false);
+    }
+
+    public PeerServer(int port, boolean virtualThreads) {
+        this(port, virtualThreads, DEFAULT_MAX_UPLOADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    public PeerServer(int port, boolean virtualThreads, int maxUploads, int queueSize) {
+        this(port, virtualThreads, maxUploads, queueSize, new UploadShaper(0, 0));
+    }
+
+    public PeerServer(int port, boolean virtualThreads, int maxUploads, int queueSize, UploadShaper shaper) {
         this.port = port;
+        this.shaper = shaper;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile creare il selector", e);
+        }
         this.running = true; // Imposta il server come in esecuzione all'inizio
+        if (virtualThreads) {
+            if (!VirtualThreads.isAvailable()) {
+                Logger.warn("Virtual thread non disponibili in questa JVM: uso thread di piattaforma.");
+            }
+            // un virtual thread per connessione: nessuna coda, tutte quelle ammesse sono servite
+            this.handlers = VirtualThreads.newPerTaskExecutor();
+            this.admission = new Semaphore(maxUploads);
+        } else {
+            // la coda del pool è limitata dal semaforo, non dalla sua capacità
+            this.handlers = Executors.newFixedThreadPool(maxUploads);
+            this.admission = new Semaphore(maxUploads + queueSize);
+        }
     }
 
      /**
@@ -38,51 +123,266 @@ public class PeerServer implements Runnable {
 
     /*
     * Metodo principale del server peer che rimane in ascolto sulla porta specificata.
-    * Per ogni nuova connessione accettata, crea un nuovo thread eseguendo PeerRequestHandler,
-    * consentendo così di gestire più connessioni contemporaneamente.
-    * In questo modo abilita la concorrenza creando thread separati per ogni client,
-    * mentre il server principale continua ad accettare nuove connessioni senza bloccare.
+    * Un solo thread attende con un Selector sia le nuove connessioni sia le richieste sulle
+    * connessioni inattive; le richieste vengono servite dal pool con PeerRequestHandler,
+    * che a fine richiesta riconsegna la connessione al selector invece di attendere la successiva.
+    * Così i thread del pool sono occupati solo dai trasferimenti in corso.
+    * Se il peer è saturo la nuova connessione viene rifiutata con BUSY.
+    * stop() sveglia il selector: il server si ferma subito, senza attendere un timeout.
     */
     @Override
     public void run() {
-        try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(1000); // timeout di 1 secondo per accept()
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            // Il ServerSocketChannel fa sì che i socket accettati abbiano un SocketChannel:
+            // PeerRequestHandler può inviare i file con transferTo (sendfile)
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
 
             System.out.println("Avviato sulla porta " + port);
 
+            List<PeerRequestHandler> ready = new ArrayList<>();
+            long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
             while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    Logger.info("Connessione ricevuta da " + clientSocket.getInetAddress());
-
-                    // Avvia un nuovo thread per gestire la connessione
-                    new Thread(new PeerRequestHandler(clientSocket)).start();
-
-                } catch (SocketTimeoutException e) {
-                    // Timeout: nessuna connessione arrivata in questo intervallo,
-                    // controllo variabile running e continuo il ciclo
+                // con la sola chiave di accept non c'è nulla da far scadere e l'attesa non ha limite
+                selector.select(selector.keys().size() > 1 ? SWEEP_INTERVAL_MS : 0);
+                registerIdle();
+                collectSelected(server, ready);
+                while (!ready.isEmpty()) {
+                    // le chiavi cancellate vengono tolte dal selector solo alla selezione successiva:
+                    // fino ad allora il canale non può tornare in modalità bloccante
+                    selector.selectNow();
+                    for (PeerRequestHandler handler : ready) {
+                        dispatch(handler);
+                    }
+                    ready.clear();
+                    collectSelected(server, ready);
+                }
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    closeExpired(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS);
                 }
             }
-        } catch (IOException e) {
-            Logger.warn("Errore nella creazione del ServerSocket: " + e.getMessage());
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                Logger.warn("Errore nel ServerSocket: " + e.getMessage());
+            }
             running = false;
         } finally {
-            closeServerSocket();
+            closeConnections();
         }
 
        Logger.warn("Server terminato.");
     }
 
+    // Accetta le nuove connessioni e raccoglie le connessioni inattive su cui sono arrivati dati
+    private void collectSelected(ServerSocketChannel server, List<PeerRequestHandler> ready) throws IOException {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    accept(channel);
+                }
+            } else if (key.attachment() instanceof Rejected) {
+                drainRejected(key);
+            } else if (key.isReadable()) {
+                key.cancel();
+                ready.add((PeerRequestHandler) key.attachment());
+            }
+        }
+    }
+
+    private void accept(SocketChannel channel) {
+        Logger.info("Connessione ricevuta da " + channel.socket().getInetAddress());
+        if (!admission.tryAcquire()) {
+            rejectBusy(channel);
+            return;
+        }
+        // il canale accettato è già in modalità bloccante
+        submit(new PeerRequestHandler(channel.socket(), shaper));
+    }
+
+    // Riporta in modalità bloccante una connessione uscita dal selector e la affida al pool
+    private void dispatch(PeerRequestHandler handler) {
+        try {
+            handler.getChannel().configureBlocking(true);
+        } catch (IOException e) {
+            Logger.error("Errore nella ripresa della connessione: " + e.getMessage());
+            handler.close();
+            admission.release();
+            return;
+        }
+        submit(handler);
+    }
+
+    private void submit(PeerRequestHandler handler) {
+        try {
+            handlers.execute(() -> {
+                if (handler.serve() && running) {
+                    park(handler);
+                } else {
+                    handler.close();
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // pool chiuso da stop()
+            handler.close();
+            admission.release();
+        }
+    }
+
+    // Eseguito dal pool: la connessione resta aperta ma inattiva e torna al selector
+    private void park(PeerRequestHandler handler) {
+        idle.add(handler);
+        selector.wakeup();
+    }
+
+    // Eseguito dal thread del selector: registra le connessioni tornate inattive
+    private void registerIdle() {
+        PeerRequestHandler handler;
+        while ((handler = idle.poll()) != null) {
+            try {
+                SocketChannel channel = handler.getChannel();
+                channel.configureBlocking(false);
+                handler.setIdleDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS));
+                channel.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                handler.close();
+                admission.release();
+            }
+        }
+    }
+
+    // Eseguito dal thread del selector: chiude le connessioni inattive oltre IDLE_TIMEOUT_MS
+    // e quelle rifiutate che il peer non ha chiuso entro BUSY_DRAIN_MS.
+    // Le chiavi delle connessioni in uso sono già state cancellate e tolte dal selector
+    private void closeExpired(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.attachment() instanceof PeerRequestHandler handler && now - handler.getIdleDeadline() >= 0) {
+                key.cancel();
+                handler.close();
+                admission.release();
+            } else if (key.attachment() instanceof Rejected rejected && now - rejected.deadline >= 0) {
+                closeRejected(key);
+            }
+        }
+    }
+
+    // Alla chiusura del server chiude anche le connessioni inattive; quelle in uso terminano da sole
+    private void closeConnections() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof PeerRequestHandler handler) {
+                    handler.close();
+                } else if (key.attachment() instanceof Rejected rejected) {
+                    closeQuietly(rejected.channel);
+                }
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            Logger.error("Errore chiusura del selector: " + e.getMessage());
+        }
+        PeerRequestHandler handler;
+        while ((handler = idle.poll()) != null) {
+            handler.close();
+        }
+        Logger.warn("ServerSocket chiuso.");
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) { }
+    }
+
     /*
-    * Ferma il server chiudendo il ServerSocket e interrompendo il ciclo di ascolto
+    * Risponde BUSY a una connessione oltre il limite, dal thread del selector e senza attese.
+    * La riga è scritta e l'output chiuso subito; il canale resta poi nel selector finché il peer
+    * non chiude a sua volta (o per BUSY_DRAIN_MS): chiudendo con la sua richiesta ancora da leggere
+    * il sistema invierebbe un reset e la riga BUSY andrebbe persa.
+    * Oltre MAX_PENDING_REJECTS rifiuti in attesa la connessione viene chiusa subito.
     */
-    public synchronized void stop() {
+    private void rejectBusy(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            // la riga è molto più piccola del buffer di invio di un socket appena aperto
+            channel.write(ByteBuffer.wrap(BUSY_LINE));
+            channel.shutdownOutput();
+            Logger.warn("Peer saturo: connessione da " + channel.socket().getInetAddress() + " rifiutata con BUSY.");
+            if (pendingRejects >= MAX_PENDING_REJECTS) {
+                closeQuietly(channel);
+                return;
+            }
+            channel.register(selector, SelectionKey.OP_READ,
+                    new Rejected(channel, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BUSY_DRAIN_MS)));
+            pendingRejects++;
+        } catch (IOException e) {
+            Logger.error("Errore nell'invio di BUSY: " + e.getMessage());
+            closeQuietly(channel);
+        }
+    }
+
+    // Scarta la richiesta di una connessione rifiutata; la chiude quando il peer ha chiuso
+    private void drainRejected(SelectionKey key) {
+        Rejected rejected = (Rejected) key.attachment();
+        try {
+            int read;
+            do {
+                discard.clear();
+                read = rejected.channel.read(discard);
+            } while (read > 0);
+            if (read < 0) {
+                closeRejected(key);
+            }
+        } catch (IOException e) {
+            closeRejected(key);
+        }
+    }
+
+    private void closeRejected(SelectionKey key) {
+        key.cancel();
+        closeQuietly(((Rejected) key.attachment()).channel);
+        pendingRejects--;
+    }
+
+    // Connessione rifiutata con BUSY, da chiudere entro deadline (System.nanoTime)
+    private static class Rejected {
+        private final SocketChannel channel;
+        private final long deadline;
+
+        Rejected(SocketChannel channel, long deadline) {
+            this.channel = channel;
+            this.deadline = deadline;
+        }
+    }
+
+    /*
+    * Ferma il server: sveglia il selector, che chiude il ServerSocket e le connessioni inattive
+    */
+    public void stop() {
         running = false;
-        closeServerSocket();
+        selector.wakeup();
+        // gli upload in corso terminano da soli, ma non ne vengono avviati altri
+        handlers.shutdown();
         Logger.warn("Stop richiesto");
     }
 
+    /** ritorna velocità e limiti degli upload in corso (vedi UploadShaper.describe) */
+    public List<String> getUploadStatus() {
+        return shaper.describe();
+    }
+
     /*
     * Metodo che restituisce lo stato di esecuzione del server.
     * @return true se il server è in esecuzione, false altrimenti.
@@ -90,19 +390,4 @@ public class PeerServer implements Runnable {
     public boolean isRunning() {
         return running;
     }
-
-    /*
-    * Metodo privato per chiudere il ServerSocket in modo sicuro
-    */
-    private void closeServerSocket() {
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-                Logger.warn("ServerSocket chiuso.");
-            } catch (IOException e) {
-                Logger.error("Errore chiusura ServerSocket: " + e.getMessage());
-            }
-        }
-    }
-
 }
@@ -0,0 +1,88 @@
+package Peer.server;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limitatore di banda a token bucket: si accumulano rate token (byte) al secondo, fino a burst.
+ * Chi vuole inviare prenota i byte e attende che i token prenotati siano maturati: i token
+ * possono andare in negativo, così le prenotazioni vengono soddisfatte nell'ordine di arrivo
+ * e l'attesa avviene fuori dal lock. Ogni prenotazione è limitata a un quanto, quindi più
+ * upload che condividono lo stesso bucket si alternano a turno invece di servirsi a vicenda
+ * un file intero.
+ * Thread-safe: lo stesso bucket è usato da tutti i thread che servono gli upload.
+ */
+class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long rate;
+    private final long burst;
+    private final long quantum;
+    private long tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate byte al secondo
+     * @param quantum byte massimi concessi a ogni prenotazione
+     */
+    TokenBucket(long rate, long quantum) {
+        this.rate = rate;
+        this.quantum = Math.min(quantum, rate);
+        // un secondo di traffico accumulato, ma almeno un quanto
+        this.burst = Math.max(rate, this.quantum);
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /** ritorna il limite in byte al secondo */
+    long getRate() {
+        return rate;
+    }
+
+    /**
+     * Prenota fino a wanted byte (al più un quanto) e attende finché possono essere inviati.
+     * Ritorna i byte concessi; se ne verranno inviati meno, la differenza va resa con refund().
+     */
+    long acquire(long wanted) throws InterruptedIOException {
+        long granted = Math.min(wanted, quantum);
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= granted;
+            waitNanos = tokens >= 0 ? 0 : -tokens * NANOS_PER_SECOND / rate;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                refund(granted);
+                throw new InterruptedIOException("Attesa della banda interrotta");
+            }
+        }
+        return granted;
+    }
+
+    /** restituisce token prenotati e non usati */
+    synchronized void refund(long unused) {
+        tokens = Math.min(burst, tokens + unused);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRefill;
+        if (elapsed >= (burst - tokens) * NANOS_PER_SECOND / rate + 1) {
+            // bucket di nuovo pieno (evita anche l'overflow di elapsed * rate dopo lunghe pause)
+            tokens = burst;
+            lastRefill = now;
+            return;
+        }
+        long added = elapsed * rate / NANOS_PER_SECOND;
+        if (added > 0) {
+            tokens = Math.min(burst, tokens + added);
+            // avanza solo del tempo corrispondente ai token aggiunti, senza perdere i resti
+            lastRefill += added * NANOS_PER_SECOND / rate;
+        }
+    }
+}
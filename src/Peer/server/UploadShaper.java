@@ -0,0 +1,185 @@
+package Peer.server;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limita e misura la banda in upload del peer.
+ * Un bucket globale è condiviso da tutti gli upload; ogni connessione ha inoltre il proprio
+ * bucket (vedi newConnectionBucket), così un singolo peer non può prendersi tutta la banda
+ * concessa. Un limite a 0 significa nessun limite.
+ * Gli upload in corso sono registrati con la loro velocità attuale, per il comando "uploads".
+ */
+public class UploadShaper {
+
+    // byte concessi a ogni turno: abbastanza per sendfile, abbastanza pochi per alternare gli upload
+    private static final long QUANTUM = 64 * 1024;
+    // senza limiti si invia comunque a blocchi, per aggiornare la misura della velocità
+    private static final long UNLIMITED_CHUNK = 1024 * 1024;
+
+    private final TokenBucket global;
+    private final long perConnectionRate;
+    private final RateMeter globalMeter = new RateMeter();
+    private final Set<Upload> active = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param globalRate byte al secondo per tutti gli upload insieme, 0 senza limite
+     * @param perConnectionRate byte al secondo per ogni connessione, 0 senza limite
+     */
+    public UploadShaper(long globalRate, long perConnectionRate) {
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, QUANTUM) : null;
+        this.perConnectionRate = perConnectionRate;
+    }
+
+    /** ritorna un nuovo bucket per una connessione, oppure null se le connessioni non hanno limite */
+    TokenBucket newConnectionBucket() {
+        return perConnectionRate > 0 ? new TokenBucket(perConnectionRate, QUANTUM) : null;
+    }
+
+    /** registra l'inizio di un upload di size byte verso peer; va chiuso al termine */
+    Upload start(String peer, String fileName, long size, TokenBucket connection) {
+        Upload upload = new Upload(peer, fileName, size, connection);
+        active.add(upload);
+        return upload;
+    }
+
+    /**
+     * Ritorna lo stato degli upload: la prima riga riporta velocità totale e limiti,
+     * le successive un upload in corso ciascuna.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Upload: " + formatRate(globalMeter.bytesPerSecond())
+                + " (limite " + formatLimit(global == null ? 0 : global.getRate())
+                + ", per connessione " + formatLimit(perConnectionRate) + ")");
+        for (Upload upload : active) {
+            lines.add("  " + upload.peer + " " + upload.fileName + " " + formatBytes(upload.sent)
+                    + "/" + formatBytes(upload.size) + " " + formatRate(upload.meter.bytesPerSecond()));
+        }
+        return lines;
+    }
+
+    private static String formatLimit(long rate) {
+        return rate > 0 ? formatRate(rate) : "nessuno";
+    }
+
+    private static String formatRate(long bytesPerSecond) {
+        return formatBytes(bytesPerSecond) + "/s";
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * Un upload in corso. Prima di ogni invio si chiede il permesso con acquire(),
+     * poi si comunica quanto è stato effettivamente inviato con sent().
+     * Usato da un solo thread alla volta.
+     */
+    class Upload implements AutoCloseable {
+        private final String peer;
+        private final String fileName;
+        private final long size;
+        private final TokenBucket connection;
+        private final RateMeter meter = new RateMeter();
+        private volatile long sent;
+
+        private Upload(String peer, String fileName, long size, TokenBucket connection) {
+            this.peer = peer;
+            this.fileName = fileName;
+            this.size = size;
+            this.connection = connection;
+        }
+
+        /**
+         * Attende il turno e ritorna quanti byte (al più remaining) possono essere inviati ora.
+         * Prima il bucket della connessione, poi quello globale: in attesa del secondo
+         * la connessione non trattiene banda globale che altri potrebbero usare.
+         */
+        long acquire(long remaining) throws InterruptedIOException {
+            long granted = Math.min(remaining, UNLIMITED_CHUNK);
+            if (connection != null) {
+                granted = connection.acquire(granted);
+            }
+            if (global != null) {
+                long globalGranted = global.acquire(granted);
+                if (connection != null && globalGranted < granted) {
+                    connection.refund(granted - globalGranted);
+                }
+                granted = globalGranted;
+            }
+            return granted;
+        }
+
+        /** registra l'invio di bytes byte, restituendo ai bucket i token concessi e non usati */
+        void sent(long bytes, long granted) {
+            if (bytes < granted) {
+                if (connection != null) {
+                    connection.refund(granted - bytes);
+                }
+                if (global != null) {
+                    global.refund(granted - bytes);
+                }
+            }
+            sent += bytes;
+            meter.record(bytes);
+            globalMeter.record(bytes);
+        }
+
+        @Override
+        public void close() {
+            active.remove(this);
+        }
+    }
+
+    /**
+     * Misura la velocità sugli ultimi secondi completi, contando i byte in una finestra circolare
+     * di un contatore per secondo.
+     */
+    private static class RateMeter {
+        private static final int SECONDS = 5;
+        private final long[] counts = new long[SECONDS];
+        private final long[] seconds = new long[SECONDS];
+
+        RateMeter() {
+            Arrays.fill(seconds, Long.MIN_VALUE);
+        }
+
+        synchronized void record(long bytes) {
+            long now = currentSecond();
+            int slot = Math.floorMod(now, SECONDS);
+            if (seconds[slot] != now) {
+                seconds[slot] = now;
+                counts[slot] = 0;
+            }
+            counts[slot] += bytes;
+        }
+
+        // media dei secondi completi della finestra (il secondo corrente è ancora parziale)
+        synchronized long bytesPerSecond() {
+            long now = currentSecond();
+            long total = 0;
+            for (int i = 0; i < SECONDS; i++) {
+                if (seconds[i] < now && seconds[i] >= now - (SECONDS - 1)) {
+                    total += counts[i];
+                }
+            }
+            return total / (SECONDS - 1);
+        }
+
+        private static long currentSecond() {
+            return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        }
+    }
+}
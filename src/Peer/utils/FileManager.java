@@ -2,12 +2,43 @@ package Peer.utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class FileManager {
+    // Algoritmo dell'hash che accompagna ogni file inviato (header DOWNLOAD_DATA)
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // Suffisso dei file temporanei usati per sostituire atomicamente un file condiviso
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Numero di lock in cui sono ripartiti i nomi dei file
+    private static final int LOCK_STRIPES = 64;
+
+    // Hash già calcolati dei file condivisi, validi finché il file non cambia data di modifica o dimensione
+    private static final ConcurrentHashMap<String, CachedDigest> digestCache = new ConcurrentHashMap<>();
+    // Lock a strisce sui nomi dei file: un numero fisso di lock, quindi nessuna struttura che cresce
+    // con i file serviti. Il lock di lettura si tiene solo mentre si apre un file, quello di scrittura
+    // solo mentre lo si sostituisce: l'invio vero e proprio avviene senza lock
+    private static final ReentrantReadWriteLock[] fileLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            fileLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
     private static String sharedFolderPath;
     private static String downloadsFolderPath;
 
@@ -30,7 +61,8 @@ public class FileManager {
         File folder = new File(sharedFolderPath);
         if (folder.exists() && folder.isDirectory()) {
             for(File file : folder.listFiles()) {
-                if (file.isFile()) {
+                // i download non ancora completati non sono risorse condivisibili
+                if (file.isFile() && !isTransient(file.getName())) {
                     fileList.add(file.getName());
                 }
             }
@@ -38,13 +70,38 @@ public class FileManager {
         return fileList;
     }
 
-    // Legge un file da shared/files/ e restituisce il contenuto come byte[]
-    // Serve al PeerRequestHandler per inviare un file ad altri peer
-    // Ritorna null se il file non esiste o dà errore
-    public static byte[] readFile(String filename) throws IOException {
+    // Apre un file di shared/files/ in sola lettura e ne restituisce dimensione e hash SHA-256
+    // Serve al PeerRequestHandler per inviare un file ad altri peer in streaming,
+    // senza caricarne il contenuto in memoria (funziona anche oltre i 2 GB)
+    // Il canale aperto resta legato alla versione del file letta qui anche se nel frattempo il file
+    // viene sostituito (i file si sostituiscono solo con una rinomina), quindi più peer possono
+    // leggere lo stesso file in parallelo senza bloccarsi a vicenda
+    // Il chiamante deve chiudere lo SharedFile
+    public static SharedFile openSharedFile(String filename) throws IOException {
         Path filePath = Path.of(sharedFolderPath, filename);
-        return Files.readAllBytes(filePath);
-
+        FileChannel channel;
+        BasicFileAttributes attrs;
+        ReentrantReadWriteLock.ReadLock lock = lockFor(filename).readLock();
+        lock.lock();
+        try {
+            // apertura e attributi sotto lo stesso lock: descrivono sicuramente la stessa versione del file
+            channel = FileChannel.open(filePath, StandardOpenOption.READ);
+            try {
+                attrs = Files.readAttributes(filePath, BasicFileAttributes.class);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            String sha256 = getDigest(filename, channel, attrs);
+            return new SharedFile(channel, attrs.size(), sha256);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
     }
 
     // Controlla se un file esiste in shared/files/
@@ -52,37 +109,153 @@ public class FileManager {
     // Ritorna false se il file non esiste o è una cartella
     // Serve al PeerRequestHandler per verificare se un file può essere inviato
     // Utilizza il percorso condiviso impostato da setSharedFolderPath()
+    // I file di lavoro (download a metà, sidecar, temporanei) non sono mai inviabili
     public static boolean hasFile(String fileName){
+        if (isTransient(fileName)) {
+            return false;
+        }
         File file = new File(sharedFolderPath, fileName);
         return file.exists() && file.isFile();
     }
 
     // Crea un nuovo file nella cartella condivisa con il contenuto fornito
     // Crea la cartella se non esiste
+    // Il contenuto viene scritto in un file temporaneo che poi sostituisce atomicamente quello vecchio,
+    // così i peer che stanno scaricando la versione precedente non vedono mai un file a metà
     public static void createLocalFile(String filename, String content) throws IOException {
         File folder = new File(sharedFolderPath);
         if (!folder.exists()) {
             folder.mkdirs();
         }
-        Path filePath = Path.of(sharedFolderPath, filename);
-        Files.writeString(filePath, content);
+        Path tempFile = Files.createTempFile(folder.toPath(), "." + filename + "-", TEMP_SUFFIX);
+        try {
+            Files.writeString(tempFile, content);
+            replaceFile(tempFile, Path.of(sharedFolderPath, filename), filename);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // Restituisce l'hash SHA-256 (in esadecimale) del file condiviso, letto dal canale già aperto
+    // L'hash viene ricalcolato solo se il file è cambiato (data di modifica o dimensione diverse),
+    // così richieste successive dello stesso file non rileggono il contenuto
+    private static String getDigest(String filename, FileChannel file, BasicFileAttributes attrs) throws IOException {
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        long size = attrs.size();
+        CachedDigest cached = digestCache.get(filename);
+        if (cached != null && cached.lastModified == lastModified && cached.size == size) {
+            return cached.sha256;
+        }
+        String sha256 = computeDigest(file, size);
+        digestCache.put(filename, new CachedDigest(lastModified, size, sha256));
+        return sha256;
+    }
+
+    // Crea un nuovo MessageDigest per l'algoritmo usato dal protocollo
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 è sempre disponibile nella JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Converte un hash in stringa esadecimale
+    public static String toHex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    // Calcola l'hash dei primi size byte del canale con letture posizionali
+    // (non sposta la posizione del canale, che resta pronto per l'invio)
+    public static String computeDigest(FileChannel file, long size) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = file.read(buffer, position);
+            if (read == -1) {
+                break;
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+        return toHex(digest.digest());
     }
 
-    // metodo che salva il contenuto ricevuto in downloads/ come un nuovo file
-    // creare downloads/ se non esiste
-    // Sovrascrive il file se già esiste
-    // Gestisce le eccezioni con log o stampa
-    public static void saveFile(String filename, byte[] data) throws IOException{
+    // Ritorna il percorso di un file nella cartella di download
+    public static Path resolveDownload(String filename) {
+        return Path.of(downloadsFolderPath, filename);
+    }
+
+    // Crea la cartella di download se non esiste
+    public static void ensureDownloadsFolder() {
         File folder = new File(downloadsFolderPath);
         if (!folder.exists()) {
-            folder.mkdirs(); // Crea la cartella se non esiste
+            folder.mkdirs();
         }
-        Path filePath = Path.of(downloadsFolderPath, filename);
-        Files.write(filePath, data); // Sovrascrive il file se esiste già
+    }
+
+    // true per i file di lavoro creati dal peer: .<nome>.part e .<nome>.part.meta di un download in corso
+    // (con il .part.meta.tmp usato per riscrivere il sidecar) e .<nome>-*.tmp di createLocalFile.
+    // Un file dell'utente come "backup.tmp" o "video.part" non inizia con '.' e resta condiviso
+    private static boolean isTransient(String name) {
+        if (name.length() < 2 || name.charAt(0) != '.') {
+            return false;
+        }
+        return endsWithName(name, PartialDownload.PART_SUFFIX)
+                || endsWithName(name, PartialDownload.META_SUFFIX)
+                || endsWithName(name, PartialDownload.META_SUFFIX + TEMP_SUFFIX)
+                || (name.endsWith(TEMP_SUFFIX) && name.indexOf('-', 2) > 0);
+    }
+
+    // true se name è "." seguito da un nome non vuoto e da suffix
+    private static boolean endsWithName(String name, String suffix) {
+        return name.length() > suffix.length() + 1 && name.endsWith(suffix);
+    }
+
+    // Rende visibile un download completato rinominando il file temporaneo nel nome definitivo
+    // La rinomina è atomica: gli altri peer vedono il vecchio file oppure quello nuovo, mai uno parziale
+    public static void commitDownload(Path tempFile, String filename) throws IOException {
+        replaceFile(tempFile, Path.of(downloadsFolderPath, filename), filename);
+    }
+
+    // Sostituisce target con source tramite rinomina, sotto il lock di scrittura del nome del file
+    // Il lock blocca solo le aperture dello stesso file (o di nomi nella stessa striscia) per la durata
+    // della rinomina; chi sta già inviando la versione precedente continua a leggerla
+    private static void replaceFile(Path source, Path target, String filename) throws IOException {
+        ReentrantReadWriteLock.WriteLock lock = lockFor(filename).writeLock();
+        lock.lock();
+        try {
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                // File system senza rinomina atomica: sostituisce comunque il file
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // l'hash della versione precedente non serve più
+            digestCache.remove(filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ReentrantReadWriteLock lockFor(String filename) {
+        return fileLocks[Math.floorMod(filename.hashCode(), LOCK_STRIPES)];
+    }
+
+    // Hash di un file associato alla versione del file (data di modifica e dimensione) su cui è stato calcolato
+    private static class CachedDigest {
+        private final long lastModified;
+        private final long size;
+        private final String sha256;
 
-        byte[] written = Files.readAllBytes(filePath);
-        if (!java.util.Arrays.equals(data, written)) {
-            throw new IOException("Il file salvato non corrisponde ai dati ricevuti");
+        CachedDigest(long lastModified, long size, String sha256) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.sha256 = sha256;
         }
     }
 }
@@ -0,0 +1,376 @@
+package Peer.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Download in corso di una risorsa, salvato nella repo come file .part più un file sidecar .part.meta.
+ * Il file .part ha già la dimensione finale e viene riempito a blocchi di CHUNK_SIZE byte;
+ * il sidecar contiene dimensione, hash atteso e la bitmap dei blocchi già scritti su disco.
+ * La bitmap viene salvata ogni SAVE_EVERY_CHUNKS blocchi o SAVE_INTERVAL_NANOS e alla chiusura:
+ * un sidecar un po' indietro fa solo riscaricare gli ultimi blocchi quando si riprende.
+ * Se il download si interrompe (peer caduto, DOWNLOAD_FAIL, riavvio del processo) un nuovo
+ * tentativo, anche verso un altro peer, riparte dai blocchi mancanti invece che dal byte 0.
+ */
+public class PartialDownload implements Closeable {
+
+    // Suffissi dei file di un download in corso; entrambi i file sono nascosti (iniziano con '.')
+    public static final String PART_SUFFIX = ".part";
+    public static final String META_SUFFIX = ".part.meta";
+    // Dimensione di un blocco: è l'unità con cui si registra il progresso del download
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    // Cadenza con cui la bitmap viene resa persistente: ogni tot blocchi completati o ogni tot tempo
+    static final int SAVE_EVERY_CHUNKS = 16;
+    static final long SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final String fileName;
+    private final Path partFile;
+    private final Path metaFile;
+    private final long size;
+    private final String sha256;
+    // blocchi già scritti nel file (non ancora tutti registrati nel sidecar)
+    private final BitSet done;
+    // protegge la bitmap e i contatori del salvataggio; è tenuto solo per tempi brevi
+    private final ReentrantLock lock = new ReentrantLock();
+    // serializza force e riscrittura del sidecar, che avvengono senza tenere lock
+    private final ReentrantLock saveLock = new ReentrantLock();
+    private final FileChannel channel;
+    // blocchi completati dopo l'ultimo salvataggio del sidecar e istante di quel salvataggio
+    private int unsavedChunks;
+    private long lastSave = System.nanoTime();
+
+    private PartialDownload(String fileName, long size, String sha256, BitSet done, FileChannel channel) {
+        this.fileName = fileName;
+        this.partFile = partPath(fileName);
+        this.metaFile = metaPath(fileName);
+        this.size = size;
+        this.sha256 = sha256;
+        this.done = done;
+        this.channel = channel;
+    }
+
+    /**
+     * Riprende il download interrotto della risorsa, se nella repo c'è un file .part con un sidecar valido.
+     * Ritorna null se non c'è nessun download da riprendere.
+     */
+    public static PartialDownload resume(String fileName) throws IOException {
+        Path metaFile = metaPath(fileName);
+        Path partFile = partPath(fileName);
+        if (!Files.isRegularFile(metaFile) || !Files.isRegularFile(partFile)) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(metaFile)) {
+            meta.load(in);
+        }
+        try {
+            long size = Long.parseLong(meta.getProperty("size"));
+            int chunkSize = Integer.parseInt(meta.getProperty("chunkSize"));
+            String sha256 = meta.getProperty("sha256");
+            BitSet done = BitSet.valueOf(Base64.getDecoder().decode(meta.getProperty("done", "")));
+            // Un sidecar scritto con un'altra dimensione dei blocchi o non coerente con il .part non è riutilizzabile
+            if (chunkSize != CHUNK_SIZE || sha256 == null || Files.size(partFile) != size) {
+                return null;
+            }
+            FileChannel channel = new RandomAccessFile(partFile.toFile(), "rw").getChannel();
+            return new PartialDownload(fileName, size, sha256, done, channel);
+        } catch (RuntimeException e) {
+            // sidecar danneggiato: il download ripartirà da zero
+            Logger.warn("Sidecar del download di '" + fileName + "' non valido: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Prepara il download della risorsa con la dimensione e l'hash annunciati dal peer.
+     * Se c'è già un download interrotto della stessa versione del file lo riprende,
+     * altrimenti crea un nuovo file .part preallocato e un sidecar vuoto.
+     */
+    public static PartialDownload open(String fileName, long size, String sha256) throws IOException {
+        PartialDownload existing = resume(fileName);
+        if (existing != null) {
+            if (existing.size == size && existing.sha256.equalsIgnoreCase(sha256)) {
+                return existing;
+            }
+            // versione diversa del file: il vecchio parziale non serve più
+            existing.discard();
+        }
+        FileManager.ensureDownloadsFolder();
+        RandomAccessFile raf = new RandomAccessFile(partPath(fileName).toFile(), "rw");
+        FileChannel channel;
+        try {
+            raf.setLength(size);
+            channel = raf.getChannel();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        PartialDownload part = new PartialDownload(fileName, size, sha256, new BitSet(), channel);
+        part.saveMeta(new BitSet());
+        return part;
+    }
+
+    /** ritorna la dimensione totale del file */
+    public long getSize() {
+        return size;
+    }
+
+    /** ritorna l'hash SHA-256 atteso del file */
+    public String getSha256() {
+        return sha256;
+    }
+
+    /** ritorna il numero di blocchi del file */
+    public int getChunkCount() {
+        return (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /** ritorna true se il blocco è già stato scritto su disco */
+    public boolean isChunkDone(int chunk) {
+        lock.lock();
+        try {
+            return done.get(chunk);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** ritorna true se tutti i blocchi sono stati scritti */
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return done.nextClearBit(0) >= getChunkCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ritorna la posizione fino a cui il file è completo senza buchi:
+     * da qui un peer qualsiasi può continuare con una richiesta DOWNLOAD_RANGE.
+     */
+    public long getVerifiedOffset() {
+        lock.lock();
+        try {
+            return Math.min(size, (long) done.nextClearBit(0) * CHUNK_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Riceve count byte dal canale e li scrive nel file a partire da position, usando il buffer dato.
+     * Il buffer è in modalità lettura: gli eventuali byte tra position e limit (letti insieme
+     * all'header della risposta) sono i primi del contenuto e vengono scritti prima di leggere dal canale.
+     * I blocchi completati vengono registrati nel sidecar con la cadenza di salvataggio, così il
+     * progresso sopravvive a interruzioni e riavvii. Se digest non è null viene aggiornato con i byte ricevuti.
+     */
+    public void receive(ReadableByteChannel source, ByteBuffer buffer, long position, long count, MessageDigest digest) throws IOException {
+        long start = position;
+        long remaining = count;
+        long nextBoundary = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+        while (remaining > 0) {
+            int read;
+            int limit;
+            if (buffer.hasRemaining()) {
+                // byte già nel buffer: si usano solo quelli del contenuto, gli altri restano per chi legge dopo
+                limit = buffer.limit();
+                read = (int) Math.min(buffer.remaining(), remaining);
+                buffer.limit(buffer.position() + read);
+            } else {
+                buffer.clear();
+                if (remaining < buffer.capacity()) {
+                    buffer.limit((int) remaining);
+                }
+                read = source.read(buffer);
+                if (read == -1) {
+                    throw new IOException("Fine del flusso prima del previsto");
+                }
+                buffer.flip();
+                limit = buffer.limit();
+            }
+            if (digest != null) {
+                // mark/reset: l'hash consuma il buffer, che va poi riletto per la scrittura
+                buffer.mark();
+                digest.update(buffer);
+                buffer.reset();
+            }
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.limit(limit);
+            remaining -= read;
+            // registra i blocchi completati solo quando si supera il confine di un blocco
+            if (position >= nextBoundary || remaining == 0) {
+                markReceived(start, position);
+                nextBoundary = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Aggiorna l'hash con i byte [from, to) già presenti nel file.
+     * Serve a proseguire il calcolo incrementale quando si riprende un download.
+     */
+    public void digestRange(MessageDigest digest, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            if (to - position < buffer.capacity()) {
+                buffer.limit((int) (to - position));
+            }
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("File parziale più corto del previsto");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    /** Calcola l'hash dell'intero file con una lettura sequenziale (serve se i blocchi sono arrivati in ordine sparso) */
+    public String computeDigest() throws IOException {
+        return FileManager.computeDigest(channel, size);
+    }
+
+    /**
+     * Conclude il download: rinomina atomicamente il .part nel nome definitivo ed elimina il sidecar.
+     * Va chiamato solo dopo aver verificato l'hash.
+     */
+    public void commit() throws IOException {
+        channel.force(false);
+        channel.close();
+        FileManager.commitDownload(partFile, fileName);
+        Files.deleteIfExists(metaFile);
+    }
+
+    /** Abbandona il download eliminando il .part e il sidecar (ad esempio se l'hash non corrisponde) */
+    public void discard() {
+        try {
+            channel.close();
+            Files.deleteIfExists(partFile);
+            Files.deleteIfExists(metaFile);
+        } catch (IOException e) {
+            Logger.error("Impossibile eliminare il download parziale di '" + fileName + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Chiude il file lasciando .part e sidecar su disco, per riprendere il download in seguito.
+     * Prima salva i blocchi completati dopo l'ultimo salvataggio, anche se il download è fallito.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                flush();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Rende persistenti i blocchi completati che il sidecar non registra ancora */
+    public void flush() throws IOException {
+        saveLock.lock();
+        try {
+            persist();
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    // Segna come completati i blocchi interamente contenuti in [from, to) e salva il sidecar se è il momento
+    private void markReceived(long from, long to) throws IOException {
+        boolean due;
+        lock.lock();
+        try {
+            int first = (int) ((from + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            for (int chunk = first; (long) chunk * CHUNK_SIZE < to; chunk++) {
+                long chunkEnd = Math.min(size, (long) (chunk + 1) * CHUNK_SIZE);
+                if (chunkEnd > to) {
+                    break;
+                }
+                if (!done.get(chunk)) {
+                    done.set(chunk);
+                    unsavedChunks++;
+                }
+            }
+            due = unsavedChunks >= SAVE_EVERY_CHUNKS
+                    || (unsavedChunks > 0 && System.nanoTime() - lastSave >= SAVE_INTERVAL_NANOS);
+        } finally {
+            lock.unlock();
+        }
+        // se un altro worker sta già salvando non lo si aspetta: i blocchi restano per il prossimo salvataggio
+        if (due && saveLock.tryLock()) {
+            try {
+                persist();
+            } finally {
+                saveLock.unlock();
+            }
+        }
+    }
+
+    // Salva la bitmap corrente; va chiamato tenendo saveLock, così i sidecar vengono scritti in ordine
+    private void persist() throws IOException {
+        BitSet snapshot;
+        lock.lock();
+        try {
+            if (unsavedChunks == 0) {
+                return;
+            }
+            snapshot = (BitSet) done.clone();
+            unsavedChunks = 0;
+            lastSave = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
+        // i dati devono essere su disco prima che il sidecar li dichiari completi
+        channel.force(false);
+        saveMeta(snapshot);
+    }
+
+    // Scrive il sidecar in un file temporaneo e lo sostituisce atomicamente
+    private void saveMeta(BitSet saved) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("size", Long.toString(size));
+        meta.setProperty("sha256", sha256);
+        meta.setProperty("chunkSize", Integer.toString(CHUNK_SIZE));
+        meta.setProperty("done", Base64.getEncoder().encodeToString(saved.toByteArray()));
+        Path tmp = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            meta.store(out, "Download parziale di " + fileName);
+        }
+        try {
+            Files.move(tmp, metaFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, metaFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Path partPath(String fileName) {
+        return FileManager.resolveDownload("." + fileName + PART_SUFFIX);
+    }
+
+    private static Path metaPath(String fileName) {
+        return FileManager.resolveDownload("." + fileName + META_SUFFIX);
+    }
+}
@@ -0,0 +1,42 @@
+package Peer.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * File condiviso aperto in lettura per essere inviato a un altro peer.
+ * Dimensione e hash si riferiscono alla stessa versione del file a cui è legato il canale,
+ * anche se nel frattempo il file nella repo viene sostituito.
+ */
+public class SharedFile implements Closeable {
+    private final FileChannel channel;
+    private final long size;
+    private final String sha256;
+
+    SharedFile(FileChannel channel, long size, String sha256) {
+        this.channel = channel;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    /** ritorna il canale da cui leggere il contenuto del file */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /** ritorna la dimensione del file */
+    public long getSize() {
+        return size;
+    }
+
+    /** ritorna l'hash SHA-256 del file in esadecimale */
+    public String getSha256() {
+        return sha256;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}